@@ -0,0 +1,224 @@
+package flowerpot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.UncheckedIOException;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Compiles flowerpot rule files into the binary bundle read by FlowerpotBundle at runtime.
+ *
+ * Layout (big endian):
+ * - int magic, int format version, int string count, int pot count
+ * - int offset of every string
+ * - per pot: int name, int rule table offset, int rule count
+ * - rule tables: byte type, int value, and for code rules byte arg count followed by the args
+ * - strings: unsigned short byte length followed by the UTF-8 bytes
+ *
+ * Strings are interned across all pots, so packages listed in several categories are stored once.
+ */
+@SuppressWarnings("unused")
+public class FlowerpotBundleTask extends DefaultTask {
+    private static final int MAGIC = 0x46504231; // FPB1
+    private static final int SUPPORTED_VERSION = 1;
+
+    static final int RULE_PACKAGE = 0;
+    static final int RULE_INTENT_ACTION = 1;
+    static final int RULE_INTENT_CATEGORY = 2;
+    static final int RULE_CODE = 3;
+
+    private FileTree mSource;
+    private File mDestination;
+
+    @InputFiles
+    public FileTree getSource() {
+        return mSource;
+    }
+
+    public void setSource(FileTree source) {
+        mSource = source;
+        getInputs().files(source);
+    }
+
+    @OutputFile
+    public File getDestination() {
+        return mDestination;
+    }
+
+    public void setDestination(File destination) {
+        mDestination = destination;
+        getOutputs().file(destination);
+    }
+
+    @TaskAction
+    void exec() {
+        try {
+            // Sorted by name so that the output only depends on the content of the sources
+            TreeMap<String, List<String[]>> pots = new TreeMap<>();
+            for (File file : mSource.getFiles()) {
+                if (!file.getName().contains(".")) {
+                    pots.put(file.getName(), parse(file));
+                }
+            }
+            write(pots);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses a rule file the same way LineParser does, returning rules as type followed by
+     * their values.
+     */
+    private static List<String[]> parse(File file) throws IOException {
+        // Duplicates are dropped like in the runtime rule set
+        LinkedHashSet<List<String>> rules = new LinkedHashSet<>();
+        Integer version = null;
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String rest = line.substring(1);
+                char type = line.charAt(0);
+                if (type == '$') {
+                    if (version != null) {
+                        throw error(file, lineNumber, "Version declaration can only appear once");
+                    }
+                    version = Integer.parseInt(rest);
+                    if (version != SUPPORTED_VERSION) {
+                        throw error(file, lineNumber, "Unsupported version " + version);
+                    }
+                    continue;
+                }
+                if (version == null) {
+                    throw error(file, lineNumber,
+                            "Version has to be specified before any other rules");
+                }
+                List<String> rule = new ArrayList<>();
+                switch (type) {
+                    case ':':
+                        rule.add(Integer.toString(RULE_INTENT_ACTION));
+                        rule.add(rest);
+                        break;
+                    case ';':
+                        rule.add(Integer.toString(RULE_INTENT_CATEGORY));
+                        rule.add(rest);
+                        break;
+                    case '&':
+                        rule.add(Integer.toString(RULE_CODE));
+                        rule.addAll(Arrays.asList(rest.split("\\|", -1)));
+                        break;
+                    default:
+                        if (!Character.isLetter(type)) {
+                            throw error(file, lineNumber, "Unknown rule identifier '" + type + "'");
+                        }
+                        rule.add(Integer.toString(RULE_PACKAGE));
+                        rule.add(line);
+                }
+                rules.add(rule);
+            }
+        }
+        List<String[]> result = new ArrayList<>(rules.size());
+        for (List<String> rule : rules) {
+            result.add(rule.toArray(new String[0]));
+        }
+        return result;
+    }
+
+    private static GradleException error(File file, int line, String message) {
+        return new GradleException(file.getName() + ":" + line + ": " + message);
+    }
+
+    private void write(TreeMap<String, List<String[]>> pots) throws IOException {
+        ArrayList<byte[]> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndex = new HashMap<>();
+
+        ByteArrayOutputStream ruleBytes = new ByteArrayOutputStream();
+        DataOutputStream rules = new DataOutputStream(ruleBytes);
+        int[][] potTable = new int[pots.size()][3];
+        int potIndex = 0;
+        for (Map.Entry<String, List<String[]>> pot : pots.entrySet()) {
+            potTable[potIndex][0] = intern(pot.getKey(), strings, stringIndex);
+            potTable[potIndex][1] = rules.size();
+            potTable[potIndex][2] = pot.getValue().size();
+            for (String[] rule : pot.getValue()) {
+                int type = Integer.parseInt(rule[0]);
+                rules.writeByte(type);
+                rules.writeInt(intern(rule[1], strings, stringIndex));
+                if (type == RULE_CODE) {
+                    rules.writeByte(rule.length - 2);
+                    for (int i = 2; i < rule.length; i++) {
+                        rules.writeInt(intern(rule[i], strings, stringIndex));
+                    }
+                }
+            }
+            potIndex++;
+        }
+        rules.flush();
+
+        int headerSize = 16 + strings.size() * 4 + pots.size() * 12;
+        int rulesStart = headerSize;
+        int stringsStart = rulesStart + ruleBytes.size();
+
+        mDestination.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mDestination))) {
+            out.writeInt(MAGIC);
+            out.writeInt(SUPPORTED_VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(pots.size());
+            int offset = stringsStart;
+            for (byte[] s : strings) {
+                out.writeInt(offset);
+                offset += 2 + s.length;
+            }
+            for (int[] pot : potTable) {
+                out.writeInt(pot[0]);
+                out.writeInt(rulesStart + pot[1]);
+                out.writeInt(pot[2]);
+            }
+            ruleBytes.writeTo(out);
+            for (byte[] s : strings) {
+                out.writeShort(s.length);
+                out.write(s);
+            }
+        }
+    }
+
+    private static int intern(String s, List<byte[]> strings, Map<String, Integer> index) {
+        Integer i = index.get(s);
+        if (i == null) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff) {
+                throw new GradleException("String too long: " + s);
+            }
+            i = strings.size();
+            strings.add(bytes);
+            index.put(s, i);
+        }
+        return i;
+    }
+}
@@ -36,7 +36,7 @@ CATEGORY_MAP = {
 }
 
 IN_PATH = "playstore"
-OUT_PATH = "../assets/flowerpot/"
+OUT_PATH = "pots/"
 TEMPLATE_PATH = "templates"
 FORMAT_VERSION = "1"
 FORMAT_VERSION_HUMAN = "azalea"
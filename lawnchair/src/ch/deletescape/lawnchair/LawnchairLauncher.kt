@@ -59,7 +59,9 @@ import com.android.launcher3.util.SystemUiController
 import com.android.quickstep.views.LauncherRecentsView
 import com.google.android.apps.nexuslauncher.NexusLauncherActivity
 import java.io.File
+import java.io.FileDescriptor
 import java.io.FileOutputStream
+import java.io.PrintWriter
 import java.util.concurrent.Semaphore
 
 /**
@@ -269,6 +271,11 @@ open class LawnchairLauncher : NexusLauncherActivity(),
         }
     }
 
+    override fun dump(prefix: String, fd: FileDescriptor?, writer: PrintWriter, args: Array<String>?) {
+        super.dump(prefix, fd, writer, args)
+        lawnchairApp.smartspace.scheduler.dump(prefix, writer)
+    }
+
     fun startEditIcon(itemInfo: ItemInfo, infoProvider: CustomInfoProvider<ItemInfo>) {
         val component: ComponentKey? = when (itemInfo) {
             is AppInfo -> itemInfo.toComponentKey()
@@ -102,6 +102,7 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
     // Blur
     var enableBlur by BooleanPref("pref_enableBlur", lawnchairConfig.defaultEnableBlur, updateBlur)
     val blurRadius by FloatPref("pref_blurRadius", lawnchairConfig.defaultBlurStrength, updateBlur)
+    val liveBlur by BooleanPref("pref_liveBlur", true, updateBlur)
 
     // Theme
     private var iconPack by StringPref("pref_icon_pack", "", reloadIconPacks)
@@ -0,0 +1,215 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.adaptive
+
+import android.content.ComponentName
+import android.content.ContentValues
+import android.content.Context
+import android.content.pm.PackageManager
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.util.Log
+import ch.deletescape.lawnchair.util.SingletonHolder
+import com.android.launcher3.IconCache
+import com.android.launcher3.LauncherFiles
+import com.android.launcher3.Utilities
+import com.android.launcher3.util.ComponentKey
+import com.android.launcher3.util.SQLiteCacheHelper
+
+/**
+ * Persists the results of [AdaptiveIconGenerator]'s legacy icon analysis, so that reloading the
+ * icons doesn't rasterize and scan every legacy icon again.
+ *
+ * Entries are keyed by everything the analysis depends on: the source of the icon (component, app
+ * version and icon pack, see [getSourceKey]) plus the icon shape and the legacy treatment settings
+ * (see [getSettingsKey]). Any change of an input is a miss. Entries which can't be hit anymore,
+ * because the app was updated or removed or the settings changed, are deleted once per process
+ * and whenever the settings change.
+ */
+class AdaptiveIconAnalysisCache private constructor(private val context: Context) {
+
+    private val db = AnalysisDB(context)
+
+    @Volatile
+    private var prunedSettingsKey: String? = null
+
+    fun get(sourceKey: String, settingsKey: String): AdaptiveIconAnalysis? {
+        if (settingsKey != prunedSettingsKey) {
+            removeStaleEntries(settingsKey)
+        }
+        val key = "$sourceKey|$settingsKey"
+        try {
+            db.query(COLUMNS, "$COLUMN_KEY = ?", arrayOf(key)).use { c ->
+                if (!c.moveToNext()) return null
+                val flags = c.getInt(0)
+                return AdaptiveIconAnalysis(c.getInt(1),
+                        flags and FLAG_FULL_BLEED != 0,
+                        flags and FLAG_NO_MIXIN != 0,
+                        flags and FLAG_MATCHES_MASK != 0,
+                        flags and FLAG_BACKGROUND_WHITE != 0,
+                        c.getFloat(2), c.getInt(3), c.getInt(4), c.getFloat(5), c.getFloat(6))
+            }
+        } catch (e: SQLiteException) {
+            Log.d(TAG, "Error reading adaptive icon cache", e)
+            return null
+        }
+    }
+
+    fun put(sourceKey: String, settingsKey: String, analysis: AdaptiveIconAnalysis) {
+        var flags = 0
+        if (analysis.isFullBleed) flags = flags or FLAG_FULL_BLEED
+        if (analysis.noMixinNeeded) flags = flags or FLAG_NO_MIXIN
+        if (analysis.matchesMaskShape) flags = flags or FLAG_MATCHES_MASK
+        if (analysis.isBackgroundWhite) flags = flags or FLAG_BACKGROUND_WHITE
+        db.insertOrReplace(ContentValues().apply {
+            put(COLUMN_KEY, "$sourceKey|$settingsKey")
+            put(COLUMN_FLAGS, flags)
+            put(COLUMN_COLOR, analysis.backgroundColor)
+            put(COLUMN_SCALE, analysis.scale)
+            put(COLUMN_WIDTH, analysis.width)
+            put(COLUMN_HEIGHT, analysis.height)
+            put(COLUMN_VISIBLE_WIDTH, analysis.visibleWidth)
+            put(COLUMN_VISIBLE_HEIGHT, analysis.visibleHeight)
+        })
+    }
+
+    /**
+     * Deletes the entries for other settings than [settingsKey], and for apps or icon packs which
+     * were updated or removed since they were analyzed, like [IconCache] does for its own entries.
+     */
+    @Synchronized
+    private fun removeStaleEntries(settingsKey: String) {
+        if (settingsKey == prunedSettingsKey) return
+        val pm = context.packageManager
+        val updateTimes = HashMap<String, Long?>()
+        fun lastUpdateTime(packageName: String) = updateTimes.getOrPut(packageName) {
+            try {
+                pm.getPackageInfo(packageName, 0).lastUpdateTime
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+
+        val staleRows = HashSet<Long>()
+        try {
+            db.query(arrayOf(COLUMN_ROWID, COLUMN_KEY), null, null).use { c ->
+                while (c.moveToNext()) {
+                    // component#user|pack|lastUpdateTime|shape|flags, the shape may contain '|'
+                    val parts = c.getString(1).split('|', limit = 4)
+                    val packageName = ComponentName.unflattenFromString(
+                            parts[0].substringBefore('#'))?.packageName
+                    val packPackage = parts.getOrNull(1)?.substringBefore('@')
+                    if (parts.size < 4 || parts[3] != settingsKey || packageName == null
+                            || parts[2] != lastUpdateTime(packageName)?.toString()
+                            || (!packPackage.isNullOrEmpty()
+                                    && lastUpdateTime(packPackage) == null)) {
+                        staleRows.add(c.getLong(0))
+                    }
+                }
+            }
+        } catch (e: SQLiteException) {
+            Log.d(TAG, "Error reading adaptive icon cache", e)
+            return
+        }
+        if (!staleRows.isEmpty()) {
+            db.delete(Utilities.createDbSelectionQuery(COLUMN_ROWID, staleRows), null)
+        }
+        prunedSettingsKey = settingsKey
+    }
+
+    private class AnalysisDB(context: Context)
+        : SQLiteCacheHelper(context, LauncherFiles.ADAPTIVE_ICONS_DB, DB_VERSION, TABLE_NAME) {
+
+        override fun onCreateTable(db: SQLiteDatabase) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_NAME (" +
+                    "$COLUMN_KEY TEXT NOT NULL PRIMARY KEY, " +
+                    "$COLUMN_FLAGS INTEGER NOT NULL DEFAULT 0, " +
+                    "$COLUMN_COLOR INTEGER NOT NULL DEFAULT 0, " +
+                    "$COLUMN_SCALE REAL NOT NULL DEFAULT 0, " +
+                    "$COLUMN_WIDTH INTEGER NOT NULL DEFAULT 0, " +
+                    "$COLUMN_HEIGHT INTEGER NOT NULL DEFAULT 0, " +
+                    "$COLUMN_VISIBLE_WIDTH REAL NOT NULL DEFAULT 0, " +
+                    "$COLUMN_VISIBLE_HEIGHT REAL NOT NULL DEFAULT 0);")
+        }
+    }
+
+    companion object : SingletonHolder<AdaptiveIconAnalysisCache, Context>({
+        AdaptiveIconAnalysisCache(it.applicationContext)
+    }) {
+
+        private const val TAG = "AdaptiveIconCache"
+
+        private const val DB_VERSION = 1
+        private const val TABLE_NAME = "analysis"
+        private const val COLUMN_ROWID = "rowid"
+        private const val COLUMN_KEY = "icon_key"
+        private const val COLUMN_FLAGS = "flags"
+        private const val COLUMN_COLOR = "color"
+        private const val COLUMN_SCALE = "scale"
+        private const val COLUMN_WIDTH = "width"
+        private const val COLUMN_HEIGHT = "height"
+        private const val COLUMN_VISIBLE_WIDTH = "visible_width"
+        private const val COLUMN_VISIBLE_HEIGHT = "visible_height"
+        private val COLUMNS = arrayOf(COLUMN_FLAGS, COLUMN_COLOR, COLUMN_SCALE, COLUMN_WIDTH,
+                COLUMN_HEIGHT, COLUMN_VISIBLE_WIDTH, COLUMN_VISIBLE_HEIGHT)
+
+        private const val FLAG_FULL_BLEED = 1
+        private const val FLAG_NO_MIXIN = 1 shl 1
+        private const val FLAG_MATCHES_MASK = 1 shl 2
+        private const val FLAG_BACKGROUND_WHITE = 1 shl 3
+
+        /**
+         * Returns the part of the cache key for the icon shape and the legacy treatment settings,
+         * or null while the icon shape isn't known yet.
+         */
+        @JvmStatic
+        fun getSettingsKey(extractColor: Boolean, treatWhite: Boolean): String? {
+            val shapeManager = IconShapeManager.getInstanceNoCreate() ?: return null
+            return "${shapeManager.iconShape}|$extractColor,$treatWhite"
+        }
+
+        /**
+         * Returns the cache key for an icon of [key] coming from [pack], or null if the app is
+         * not installed.
+         */
+        @JvmStatic
+        fun getSourceKey(context: Context, key: ComponentKey, pack: String): String? {
+            return try {
+                val info = context.packageManager.getPackageInfo(key.componentName.packageName, 0)
+                "$key|$pack|${info.lastUpdateTime}"
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+    }
+}
+
+/**
+ * Output of [AdaptiveIconGenerator]'s analysis of a legacy icon.
+ */
+class AdaptiveIconAnalysis(
+        val backgroundColor: Int,
+        val isFullBleed: Boolean,
+        val noMixinNeeded: Boolean,
+        val matchesMaskShape: Boolean,
+        val isBackgroundWhite: Boolean,
+        val scale: Float,
+        val width: Int,
+        val height: Int,
+        val visibleWidth: Float,
+        val visibleHeight: Float)
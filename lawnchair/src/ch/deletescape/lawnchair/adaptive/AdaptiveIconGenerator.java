@@ -28,6 +28,7 @@ import android.graphics.RectF;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.graphics.ColorUtils;
 import android.util.Log;
 import android.util.SparseIntArray;
@@ -58,11 +59,15 @@ public class AdaptiveIconGenerator {
 
     private Context context;
     private Drawable icon;
+    // Source and settings parts of the analysis cache key, both null if it isn't cached
+    private final String cacheKey;
+    private final String settingsKey;
 
     private final boolean extractColor;
     private final boolean treatWhite;
 
     private boolean ranLoop;
+    private boolean analyzed;
     private boolean shouldWrap;
     private int backgroundColor = Color.WHITE;
     private boolean isFullBleed;
@@ -80,16 +85,58 @@ public class AdaptiveIconGenerator {
     private AdaptiveIconCompat tmp;
 
     public AdaptiveIconGenerator(Context context, @NonNull Drawable icon) {
+        this(context, icon, null);
+    }
+
+    /**
+     * @param sourceKey identifies the source of {@param icon}, see
+     *                  {@link AdaptiveIconAnalysisCache#getSourceKey}. If set, the analysis is
+     *                  persisted and reused for icons with the same key.
+     */
+    public AdaptiveIconGenerator(Context context, @NonNull Drawable icon,
+            @Nullable String sourceKey) {
         this.context = context;
         this.icon = AdaptiveIconCompat.wrap(icon);
         LawnchairPreferences prefs = Utilities.getLawnchairPrefs(context);
         shouldWrap = prefs.getEnableLegacyTreatment();
         extractColor = shouldWrap && prefs.getColorizedLegacyTreatment();
         treatWhite = extractColor && prefs.getEnableWhiteOnlyTreatment();
+        // Without a known icon shape the analysis can't be keyed, so it isn't cached
+        settingsKey = sourceKey == null ? null
+                : AdaptiveIconAnalysisCache.getSettingsKey(extractColor, treatWhite);
+        cacheKey = settingsKey == null ? null : sourceKey;
+    }
+
+    private boolean loadFromCache() {
+        if (cacheKey == null) {
+            return false;
+        }
+        AdaptiveIconAnalysis analysis =
+                AdaptiveIconAnalysisCache.Companion.getInstance(context).get(cacheKey, settingsKey);
+        if (analysis == null) {
+            return false;
+        }
+        backgroundColor = analysis.getBackgroundColor();
+        isFullBleed = analysis.isFullBleed();
+        noMixinNeeded = analysis.getNoMixinNeeded();
+        matchesMaskShape = analysis.getMatchesMaskShape();
+        isBackgroundWhite = analysis.isBackgroundWhite();
+        scale = analysis.getScale();
+        width = analysis.getWidth();
+        height = analysis.getHeight();
+        aWidth = analysis.getVisibleWidth();
+        aHeight = analysis.getVisibleHeight();
+        return true;
     }
 
     private void loop() {
         if (Utilities.ATLEAST_OREO && shouldWrap) {
+            if (loadFromCache()) {
+                onExitLoop();
+                return;
+            }
+            analyzed = true;
+
             Drawable extractee = icon;
             if (icon instanceof AdaptiveIconCompat) {
                 if (!treatWhite) {
@@ -262,6 +309,12 @@ public class AdaptiveIconGenerator {
 
     private void onExitLoop() {
         ranLoop = true;
+        if (analyzed && cacheKey != null) {
+            AdaptiveIconAnalysisCache.Companion.getInstance(context).put(cacheKey, settingsKey,
+                    new AdaptiveIconAnalysis(backgroundColor, isFullBleed, noMixinNeeded,
+                            matchesMaskShape, isBackgroundWhite, scale, width, height,
+                            aWidth, aHeight));
+        }
         result = genResult();
     }
 
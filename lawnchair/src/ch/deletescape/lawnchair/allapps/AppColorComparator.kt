@@ -28,40 +28,8 @@ class AppColorComparator(context: Context) : AppInfoComparator(context) {
 
     // TODO: move hue space to get the red apps at the end into the first bucket as well and try to move black and white into a sepearate bucket
     override fun compare(a: AppInfo, b: AppInfo): Int {
-        val hslA = FloatArray(3)
-        val hslB = FloatArray(3)
-
-        ColorUtils.colorToHSL(a.iconColor, hslA)
-        ColorUtils.colorToHSL(b.iconColor, hslB)
-
-        val h2A = remapHue(hslA[0])
-        val h2B = remapHue(hslB[0])
-        var s2A = remap(hslA[1])
-        var s2B = remap(hslB[1])
-        var l2A = remap(hslA[2])
-        var l2B = remap(hslB[2])
-
-        if (h2A % 2 == 1) {
-            s2A = REPETITIONS - s2A
-            l2A = REPETITIONS - l2A
-        }
-
-        if (h2B % 2 == 1) {
-            s2B = REPETITIONS - s2B
-            l2B = REPETITIONS - l2B
-        }
-
-        var result = h2A.compareTo(h2B)
-        if (result != 0) {
-            return result
-        }
-
-        result = l2A.compareTo(l2B)
-        if (result != 0) {
-            return result
-        }
-
-        result = s2A.compareTo(s2B)
+        val result = getSortKey(a).getColorKey(a.iconColor)
+                .compareTo(getSortKey(b).getColorKey(b.iconColor))
         if (result != 0) {
             return result
         }
@@ -78,5 +46,29 @@ class AppColorComparator(context: Context) : AppInfoComparator(context) {
 
         @JvmStatic
         fun remap(value: Float) = (value * REPETITIONS).toInt()
+
+        /**
+         * Packs the hue, lightness and saturation buckets of [hsl] into one int which sorts like
+         * comparing them in that order. Lightness and saturation are reversed for every other hue
+         * so that neighbouring buckets blend into each other.
+         */
+        @JvmStatic
+        fun packColorKey(hsl: FloatArray): Int {
+            val h = remapHue(hsl[0])
+            var s = remap(hsl[1])
+            var l = remap(hsl[2])
+            if (h % 2 == 1) {
+                s = REPETITIONS - s
+                l = REPETITIONS - l
+            }
+            return (h shl 16) or (l shl 8) or s
+        }
+
+        @JvmStatic
+        fun getSectionName(color: Int): String {
+            val hsl = FloatArray(3)
+            ColorUtils.colorToHSL(color, hsl)
+            return "${remapHue(hsl[0])}:${remap(hsl[2])}:${remap(hsl[1])}"
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.allapps
+
+import com.android.launcher3.AppInfo
+import me.xdrop.fuzzywuzzy.algorithms.DefaultStringFunction
+
+/**
+ * Search index over a fixed set of apps.
+ *
+ * Titles are normalized once with the same string processing fuzzywuzzy applies on every
+ * comparison, so a query only has to be processed once before every title is scored with
+ * [WinklerWeightedRatio]. Every app is scored: n-gram or word overlap doesn't bound the weighted
+ * ratio (a transposition like "amil" for "Gmail" shares no trigram but still scores above the
+ * minimum), so pruning on it would drop real matches.
+ */
+class AppSearchIndex(apps: List<AppInfo>) {
+
+    private val entries = apps.map { Entry(it) }
+
+    /**
+     * Returns the apps matching [query] with a score of at least [minScore], ordered by score and
+     * then by title.
+     */
+    fun query(query: String, minScore: Int): List<AppInfo> {
+        val processedQuery = STRING_FUNCTION.apply(query)
+        if (processedQuery.isEmpty()) {
+            return emptyList()
+        }
+
+        val results = ArrayList<ScoredEntry>()
+        for (entry in entries) {
+            val score = RATIO.applyProcessed(processedQuery, entry.processedTitle, entry.prefix)
+            if (score >= minScore) {
+                results.add(ScoredEntry(entry, score))
+            }
+        }
+        results.sortWith(RESULT_COMPARATOR)
+        return results.map { it.entry.app }
+    }
+
+    private class Entry(val app: AppInfo) {
+        val title = app.title?.toString() ?: ""
+        val processedTitle: String = STRING_FUNCTION.apply(title)
+        val prefix = processedTitle.take(WinklerWeightedRatio.MAX_PREFIX_LENGTH)
+    }
+
+    private class ScoredEntry(val entry: Entry, val score: Int)
+
+    companion object {
+
+        private val STRING_FUNCTION = DefaultStringFunction()
+        private val RATIO = WinklerWeightedRatio()
+
+        private val RESULT_COMPARATOR = Comparator<ScoredEntry> { a, b ->
+            if (a.score != b.score) b.score - a.score else a.entry.title.compareTo(b.entry.title)
+        }
+    }
+}
@@ -21,6 +21,7 @@ package ch.deletescape.lawnchair.allapps
 
 import android.content.ComponentName
 import android.content.Context
+import android.content.pm.LauncherActivityInfo
 import android.os.Handler
 import ch.deletescape.lawnchair.LawnchairAppFilter
 import ch.deletescape.lawnchair.lawnchairPrefs
@@ -31,8 +32,6 @@ import com.android.launcher3.allapps.search.AllAppsSearchBarController
 import com.android.launcher3.allapps.search.SearchAlgorithm
 import com.android.launcher3.compat.LauncherAppsCompat
 import com.android.launcher3.compat.UserManagerCompat
-import me.xdrop.fuzzywuzzy.FuzzySearch
-import me.xdrop.fuzzywuzzy.ToStringFunction
 
 class FuzzyAppSearchAlgorithm(private val context: Context, private val apps: List<AppInfo>) :
         SearchAlgorithm {
@@ -61,38 +60,94 @@ class FuzzyAppSearchAlgorithm(private val context: Context, private val apps: Li
     companion object {
         const val MIN_SCORE = 65
 
+        private var cachedIndex: AppSearchIndex? = null
+        private var cachedIndexKey: IndexKey? = null
+
         @JvmStatic
         fun getApps(context: Context, defaultApps: List<AppInfo>,
                     filter: AppFilter): List<AppInfo> {
             if (!context.lawnchairPrefs.searchHiddenApps) {
                 return defaultApps
             }
+            return getApps(context, getActivities(context, filter))
+        }
+
+        private fun getApps(context: Context,
+                            activities: List<LauncherActivityInfo>): List<AppInfo> {
             val iconCache = LauncherAppState.getInstance(context).iconCache
+            return activities.map { info ->
+                AppInfo(context, info, info.user).apply {
+                    iconCache.getTitleAndIcon(this, false)
+                }
+            }
+        }
+
+        private fun getActivities(context: Context, filter: AppFilter): List<LauncherActivityInfo> {
             val lac = LauncherAppsCompat.getInstance(context)
             return UserManagerCompat.getInstance(context).userProfiles.flatMap { user ->
-                val duplicatePreventionCache = mutableListOf<ComponentName>()
+                val duplicatePreventionCache = HashSet<ComponentName>()
                 lac.getActivityList(null, user).filter { info ->
                     filter.shouldShowApp(info.componentName, user) &&
-                    !duplicatePreventionCache.contains(info.componentName)
-                }.map { info ->
                     duplicatePreventionCache.add(info.componentName)
-                    AppInfo(context, info, user).apply {
-                        iconCache.getTitleAndIcon(this, false)
-                    }
                 }
             }
         }
 
+        /**
+         * Returns the search index for the current app list, only rebuilding it (and the hidden
+         * app list) when the apps, their titles or the hidden app settings changed.
+         */
+        @JvmStatic
+        @Synchronized
+        fun getIndex(context: Context, defaultApps: List<AppInfo>,
+                     filter: AppFilter): AppSearchIndex {
+            val prefs = context.lawnchairPrefs
+            val activities = if (prefs.searchHiddenApps) getActivities(context, filter) else null
+            val key = IndexKey(fingerprint(defaultApps),
+                               activities?.let { fingerprintActivities(it) }, prefs.hiddenAppSet)
+            cachedIndex?.let { if (key == cachedIndexKey) return it }
+            val apps = if (activities != null) getApps(context, activities) else defaultApps
+            return AppSearchIndex(apps).also {
+                cachedIndex = it
+                cachedIndexKey = key
+            }
+        }
+
         @JvmStatic
         fun query(context: Context, query: String, defaultApps: List<AppInfo>,
                   filter: AppFilter): List<AppInfo> {
-            return FuzzySearch.extractAll(query, getApps(context, defaultApps, filter),
-                                          ToStringFunction<AppInfo> { item ->
-                                              item?.title.toString()
-                                          }, WinklerWeightedRatio(), MIN_SCORE)
-                    .sortedBy { it.referent.title.toString() }
-                    .sortedByDescending { it.score }
-                    .map { it.referent }
+            return getIndex(context, defaultApps, filter).query(query, MIN_SCORE)
+        }
+
+        private fun fingerprint(apps: List<AppInfo>): Int {
+            var hash = apps.size
+            for (app in apps) {
+                hash = 31 * hash + System.identityHashCode(app)
+                hash = 31 * hash + (app.title?.hashCode() ?: 0)
+            }
+            return hash
         }
+
+        /**
+         * Hidden apps aren't part of the model's app list, so they are fingerprinted from the
+         * activity list itself. Updating a package moves it to a new code path, which also covers
+         * label changes that come with an update.
+         */
+        private fun fingerprintActivities(activities: List<LauncherActivityInfo>): Int {
+            var hash = activities.size
+            for (info in activities) {
+                hash = 31 * hash + info.componentName.hashCode()
+                hash = 31 * hash + info.user.hashCode()
+                hash = 31 * hash + (info.applicationInfo.sourceDir?.hashCode() ?: 0)
+            }
+            return hash
+        }
+
+        /**
+         * @param activitiesFingerprint Fingerprint of the activities searched when hidden apps are
+         * included, or null when only the model's apps are searched.
+         */
+        private data class IndexKey(val appsFingerprint: Int, val activitiesFingerprint: Int?,
+                                    val hiddenApps: Set<String>)
     }
-}
\ No newline at end of file
+}
@@ -37,6 +37,20 @@ class WinklerWeightedRatio: WeightedRatio() {
         return ((ratio + SCALING_FACTOR * cl * (1.0 - ratio)) * 100).roundToInt()
     }
 
+    /**
+     * Same as [apply], for strings that were already processed by the default string function.
+     * @param titlePrefix The first [MAX_PREFIX_LENGTH] characters of [title], cached by the caller.
+     */
+    fun applyProcessed(query: String, title: String, titlePrefix: String): Int {
+        val ratio = super.apply(query, title, ToStringFunction.NO_PROCESS) / 100.0
+        var cl = 0
+        val max = Math.min(query.length, titlePrefix.length)
+        while (cl < max && query[cl] == titlePrefix[cl]) {
+            cl++
+        }
+        return ((ratio + SCALING_FACTOR * cl * (1.0 - ratio)) * 100).roundToInt()
+    }
+
     /**
      * Calculates the number of characters from the beginning of the strings that match exactly one-to-one,
      * up to a maximum of four (4) characters.
@@ -69,11 +83,12 @@ class WinklerWeightedRatio: WeightedRatio() {
         }
 
         // Limit the result to 4.
-        return if (result > 4) 4 else result
+        return if (result > MAX_PREFIX_LENGTH) MAX_PREFIX_LENGTH else result
     }
 
 
     companion object {
         const val SCALING_FACTOR = .15
+        const val MAX_PREFIX_LENGTH = 4
     }
 }
\ No newline at end of file
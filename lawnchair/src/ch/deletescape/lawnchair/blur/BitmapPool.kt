@@ -0,0 +1,77 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.blur
+
+import android.graphics.Bitmap
+import android.graphics.Color
+
+/**
+ * Small pool of mutable bitmaps so that the blur pipeline doesn't allocate new tile and
+ * intermediate bitmaps for every wallpaper update.
+ */
+class BitmapPool(private val maxBytes: Int) {
+
+    private val bitmaps = ArrayList<Bitmap>()
+    private var currentBytes = 0
+
+    /**
+     * Returns a cleared mutable bitmap with exactly the given size, reusing a pooled one if possible.
+     */
+    @Synchronized
+    fun acquire(width: Int, height: Int, config: Bitmap.Config = Bitmap.Config.ARGB_8888): Bitmap {
+        val index = bitmaps.indexOfFirst {
+            it.width == width && it.height == height && it.config == config
+        }
+        if (index >= 0) {
+            val bitmap = bitmaps.removeAt(index)
+            currentBytes -= bitmap.allocationByteCount
+            bitmap.eraseColor(Color.TRANSPARENT)
+            return bitmap
+        }
+        return Bitmap.createBitmap(width, height, config)
+    }
+
+    /**
+     * Returns [bitmap] to the pool. The oldest bitmaps are recycled when the pool grows too large.
+     */
+    @Synchronized
+    fun release(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable || bitmaps.contains(bitmap)) return
+        val size = bitmap.allocationByteCount
+        if (size > maxBytes) {
+            bitmap.recycle()
+            return
+        }
+        while (currentBytes + size > maxBytes && bitmaps.isNotEmpty()) {
+            val evicted = bitmaps.removeAt(0)
+            currentBytes -= evicted.allocationByteCount
+            evicted.recycle()
+        }
+        bitmaps.add(bitmap)
+        currentBytes += size
+    }
+
+    @Synchronized
+    fun clear() {
+        bitmaps.forEach { it.recycle() }
+        bitmaps.clear()
+        currentBytes = 0
+    }
+}
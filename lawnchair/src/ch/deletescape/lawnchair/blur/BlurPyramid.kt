@@ -0,0 +1,137 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.blur
+
+import android.graphics.*
+
+/**
+ * Progressively downsampled copies of the wallpaper used to blur it while drawing.
+ *
+ * Every level is half the size of the previous one and smoothed with a small binomial filter, so
+ * scaling a level back up with bilinear filtering looks like a gaussian blur whose radius doubles
+ * from level to level. Blurring by any radius then only means cross-fading the two closest
+ * levels, which the GPU does while drawing the bitmap shaders. Changing the radius doesn't need
+ * a new blur pass or any new bitmaps.
+ *
+ * @param base the downsampled wallpaper, it is copied and not modified
+ * @param baseScale ratio between the screen sized wallpaper and [base]
+ */
+class BlurPyramid(base: Bitmap, private val baseScale: Float) {
+
+    private val levels = ArrayList<Bitmap>(LEVEL_COUNT)
+    private val shaders: List<BitmapShader>
+
+    init {
+        val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+        var previous = base.copy(Bitmap.Config.ARGB_8888, true).also { smooth(it) }
+        levels.add(previous)
+        while (levels.size < LEVEL_COUNT && previous.width > 1 && previous.height > 1) {
+            val level = Bitmap.createBitmap((previous.width + 1) / 2, (previous.height + 1) / 2,
+                    Bitmap.Config.ARGB_8888)
+            Canvas(level).drawBitmap(previous, null,
+                    Rect(0, 0, level.width, level.height), paint)
+            smooth(level)
+            levels.add(level)
+            previous = level
+        }
+        shaders = levels.map { level ->
+            BitmapShader(level, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP).apply {
+                // Scale every level back up to the size of the screen sized wallpaper
+                val scale = baseScale * base.width / level.width
+                setLocalMatrix(Matrix().apply { setScale(scale, scale) })
+            }
+        }
+    }
+
+    /**
+     * Sets up [lower] and [upper] to draw the wallpaper blurred by [radius] screen pixels with
+     * the given [alpha]. Both paints have to be drawn, [lower] first, unless this returns false in
+     * which case [lower] alone is enough.
+     *
+     * Drawn over each other the two levels have to add up to [alpha] in total, so that the
+     * content behind a translucent blur isn't covered twice. With the upper level at alpha * f,
+     * the lower one needs alpha * (1 - f) / (1 - alpha * f), which is fully opaque for alpha 255.
+     */
+    fun setupPaints(radius: Float, alpha: Int, lower: Paint, upper: Paint): Boolean {
+        // Upscaling a level by s blurs by about 2s, the smallest radius is the one of the first level
+        val level = (Math.log(radius / (2.0 * baseScale)) / LN_2).toFloat()
+                .coerceIn(0f, (levels.size - 1).toFloat())
+        val index = level.toInt()
+        val fraction = level - index
+        lower.shader = shaders[index]
+        if (fraction <= 0f) {
+            lower.alpha = alpha
+            return false
+        }
+        val total = alpha / 255f
+        val upperAlpha = total * fraction
+        lower.alpha = Math.round(255 * total * (1 - fraction) / (1 - upperAlpha))
+        upper.shader = shaders[index + 1]
+        upper.alpha = Math.round(255 * upperAlpha)
+        return true
+    }
+
+    fun recycle() {
+        levels.forEach { it.recycle() }
+    }
+
+    companion object {
+
+        // With the 8x downsampled base this covers radii up to about 256 screen pixels
+        const val LEVEL_COUNT = 5
+
+        private val LN_2 = Math.log(2.0)
+
+        /**
+         * Applies a separable [1 2 1] filter to [bitmap] in place.
+         */
+        private fun smooth(bitmap: Bitmap) {
+            val width = bitmap.width
+            val height = bitmap.height
+            val pixels = IntArray(width * height)
+            val tmp = IntArray(width * height)
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height)
+            for (y in 0 until height) {
+                val row = y * width
+                for (x in 0 until width) {
+                    tmp[row + x] = blend(pixels[row + Math.max(x - 1, 0)], pixels[row + x],
+                            pixels[row + Math.min(x + 1, width - 1)])
+                }
+            }
+            for (y in 0 until height) {
+                val above = Math.max(y - 1, 0) * width
+                val row = y * width
+                val below = Math.min(y + 1, height - 1) * width
+                for (x in 0 until width) {
+                    pixels[row + x] = blend(tmp[above + x], tmp[row + x], tmp[below + x])
+                }
+            }
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height)
+        }
+
+        private fun blend(a: Int, b: Int, c: Int): Int {
+            var result = 0
+            for (shift in 0..24 step 8) {
+                val channel = ((a ushr shift and 0xff) + 2 * (b ushr shift and 0xff) +
+                        (c ushr shift and 0xff) + 2) / 4
+                result = result or (channel shl shift)
+            }
+            return result
+        }
+    }
+}
@@ -27,6 +27,8 @@ class BlurWallpaperFilter(private val context: Context) : WallpaperFilter {
 
     private var blurRadius = 25
 
+    override val cacheKey get() = "stack$blurRadius"
+
     override fun applyPrefs(prefs: LawnchairPreferences) {
         blurRadius = prefs.blurRadius.toInt() / BlurWallpaperProvider.DOWNSAMPLE_FACTOR
         blurRadius = Math.max(1, Math.min(blurRadius, 25))
@@ -38,9 +40,9 @@ class BlurWallpaperFilter(private val context: Context) : WallpaperFilter {
                     .scheme(HokoBlur.SCHEME_OPENGL)
                     .mode(HokoBlur.MODE_STACK)
                     .radius(blurRadius)
-                    .sampleFactor(BlurWallpaperProvider.DOWNSAMPLE_FACTOR.toFloat())
+                    .sampleFactor(1f)
                     .forceCopy(false)
-                    .needUpscale(true)
+                    .needUpscale(false)
                     .processor()
                     .asyncBlur(wallpaper, object : AsyncBlurTask.Callback {
                         override fun onBlurSuccess(bitmap: Bitmap) {
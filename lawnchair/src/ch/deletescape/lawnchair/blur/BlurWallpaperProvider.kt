@@ -50,25 +50,41 @@ class BlurWallpaperProvider(val context: Context) {
                 field = value
             }
         }
+    /**
+     * Levels to blur [wallpaper] with while drawing, null when the blur is applied ahead of time
+     */
+    var pyramid: BlurPyramid? = null
+        private set(value) {
+            if (field != value) {
+                field?.recycle()
+                field = value
+            }
+        }
     private var mOffset: Float = 0.6f
+    @Volatile
     var blurRadius = 25
         private set
+    // Set once building the pyramid failed, from then on the wallpaper is blurred ahead of time
+    private var liveBlurFailed = false
     private val mNotifyRunnable = Runnable {
         for (listener in mListeners) {
             listener.onWallpaperChanged()
         }
     }
 
-    private val mVibrancyPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
-    private val mColorPaint = Paint(Paint.ANTI_ALIAS_FLAG)
-
-    private val mPath = Path()
+    private val mTilePaint = Paint(Paint.FILTER_BITMAP_FLAG).apply {
+        colorFilter = ColorMatrixColorFilter(ColorMatrix().apply { setSaturation(VIBRANCY) })
+    }
 
     private var mWallpaperWidth: Int = 0
     private var mDisplayHeight: Int = 0
     var wallpaperYOffset: Float = 0f
         private set
-    private val sCanvas = Canvas()
+    /**
+     * Ratio between the (screen sized) wallpaper and the downsampled [wallpaper] bitmap
+     */
+    var wallpaperScale: Float = DOWNSAMPLE_FACTOR.toFloat()
+        private set
 
     private val mUpdateRunnable = Runnable { updateWallpaper() }
 
@@ -77,6 +93,10 @@ class BlurWallpaperProvider(val context: Context) {
 
     private var updatePending = false
 
+    private val bitmapPool = BitmapPool(POOL_SIZE)
+    private val diskCache = BlurredWallpaperCache(context)
+    private var wallpaperKey: String? = null
+
     init {
         isEnabled = getEnabledStatus()
 
@@ -106,51 +126,134 @@ class BlurWallpaperProvider(val context: Context) {
         if (!isEnabled) {
             wallpaper = null
             placeholder = null
+            pyramid = null
+            wallpaperKey = null
+            bitmapPool.clear()
+            diskCache.clear()
             return
         }
 
         wallpaperFilter.applyPrefs(prefs)
-
-        var wallpaper = try {
-            Utilities.drawableToBitmap(mWallpaperManager.drawable, true) as Bitmap
-        } catch (e: Exception) {
-            prefs.enableBlur = false
-            runOnMainThread {
-                val msg = "${context.getString(R.string.failed)}: ${e.message}"
-                Toast.makeText(context, msg, Toast.LENGTH_LONG).show()
-                notifyWallpaperChanged()
+        val radius = prefs.blurRadius.toInt()
+        val radiusChanged = radius != blurRadius
+        blurRadius = radius
+        val live = prefs.liveBlur && !liveBlurFailed
+
+        // Prefer decoding the wallpaper file region by region so the full resolution image never
+        // has to be in memory at once, the drawable is only used for the built-in wallpaper.
+        val decoder = try {
+            mWallpaperManager.getWallpaperFile(WallpaperManager.FLAG_SYSTEM)?.use {
+                BitmapRegionDecoder.newInstance(it.fileDescriptor, false)
             }
-            return
+        } catch (e: Exception) {
+            Log.w(TAG, "Unable to open wallpaper file", e)
+            null
         }
-        wallpaper = scaleToScreenSize(wallpaper)
-        val wallpaperHeight = wallpaper.height
+        val drawable = if (decoder == null) {
+            try {
+                mWallpaperManager.drawable
+            } catch (e: Exception) {
+                onWallpaperFailed(e)
+                return
+            }
+        } else null
+        val sourceWidth = decoder?.width ?: drawable!!.intrinsicWidth
+        val sourceHeight = decoder?.height ?: drawable!!.intrinsicHeight
+
+        val scaledSize = scaleToScreenSize(sourceWidth, sourceHeight)
+        val wallpaperHeight = scaledSize.y
         wallpaperYOffset = if (wallpaperHeight > mDisplayHeight) {
             (wallpaperHeight - mDisplayHeight) * 0.5f
         } else {
             0f
         }
+        mWallpaperWidth = scaledSize.x
+
+        val width = Math.max(1, (scaledSize.x.toFloat() / DOWNSAMPLE_FACTOR).ceilToInt())
+        val height = Math.max(1, (scaledSize.y.toFloat() / DOWNSAMPLE_FACTOR).ceilToInt())
+        val wallpaperId = mWallpaperManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM)
+        // The live blur only depends on the downsampled wallpaper, not on the blur radius
+        val key = "${wallpaperId}_${sourceWidth}x${sourceHeight}_${width}x${height}_" +
+                "${if (live) "live" else wallpaperFilter.cacheKey}_v$VIBRANCY"
+        if (key == wallpaperKey && this.wallpaper != null) {
+            decoder?.recycle()
+            if (radiusChanged && live) {
+                // Drawables pick up the new radius when drawing
+                runOnMainThread(::notifyWallpaperChanged)
+            }
+            return
+        }
 
-        mWallpaperWidth = wallpaper.width
+        val cached = if (wallpaperId >= 0) diskCache.get(key) else null
+        if (cached != null) {
+            decoder?.recycle()
+            Log.d("BWP", "using cached blur")
+            if (!live) {
+                publishWallpaper(cached, key)
+            } else if (!publishLiveWallpaper(cached, key)) {
+                // Building the pyramid failed, blur the wallpaper ahead of time instead
+                cached.recycle()
+                updateWallpaper()
+            }
+            return
+        }
 
-        placeholder = createPlaceholder(wallpaper.width, wallpaper.height)
-        wallpaper = applyVibrancy(wallpaper)
+        val wallpaper = try {
+            bitmapPool.acquire(width, height).also {
+                if (decoder != null) {
+                    decodeTiled(decoder, it)
+                } else {
+                    val bitmap = Utilities.drawableToBitmap(drawable!!, true) as Bitmap
+                    Canvas(it).drawBitmap(bitmap, null, Rect(0, 0, width, height), mTilePaint)
+                }
+            }
+        } catch (e: Exception) {
+            onWallpaperFailed(e)
+            return
+        } finally {
+            decoder?.recycle()
+        }
+        if (live) {
+            if (publishLiveWallpaper(wallpaper, key)) {
+                if (wallpaperId >= 0) {
+                    val copy = wallpaper.copy(wallpaper.config, false)
+                    Utilities.THREAD_POOL_EXECUTOR.execute {
+                        diskCache.put(key, copy)
+                        copy.recycle()
+                    }
+                }
+                return
+            }
+            bitmapPool.release(wallpaper)
+            updateWallpaper()
+            return
+        }
         Log.d("BWP", "starting blur")
 
         applyTask = wallpaperFilter.apply(wallpaper).setCallback { result, error ->
             if (error == null) {
-                this@BlurWallpaperProvider.wallpaper = result
+                if (result !== wallpaper) {
+                    bitmapPool.release(wallpaper)
+                }
+                publishWallpaper(result!!, key)
                 Log.d("BWP", "blur done")
-                runOnMainThread(::notifyWallpaperChanged)
-                wallpaper.recycle()
+                if (wallpaperId >= 0) {
+                    val copy = result.copy(result.config, false)
+                    Utilities.THREAD_POOL_EXECUTOR.execute {
+                        diskCache.put(key, copy)
+                        copy.recycle()
+                    }
+                }
             } else {
                 if (error is OutOfMemoryError) {
+                    bitmapPool.clear()
                     prefs.enableBlur = false
                     runOnMainThread {
                         Toast.makeText(context, R.string.failed, Toast.LENGTH_LONG).show()
                         notifyWallpaperChanged()
                     }
                 }
-                wallpaper.recycle()
+                bitmapPool.release(wallpaper)
             }
             applyTask = null
             if (updatePending) {
@@ -160,11 +263,106 @@ class BlurWallpaperProvider(val context: Context) {
         }
     }
 
+    private fun publishWallpaper(bitmap: Bitmap, key: String) {
+        placeholder = createPlaceholder(bitmap.width, bitmap.height)
+        wallpaperScale = mWallpaperWidth.toFloat() / bitmap.width
+        pyramid = null
+        wallpaper = bitmap
+        wallpaperKey = key
+        runOnMainThread(::notifyWallpaperChanged)
+    }
+
+    /**
+     * Publishes the unblurred downsampled [bitmap] together with the pyramid to blur it while
+     * drawing. Returns false if the pyramid couldn't be built, in which case the caller should
+     * fall back to blurring ahead of time.
+     */
+    private fun publishLiveWallpaper(bitmap: Bitmap, key: String): Boolean {
+        val scale = mWallpaperWidth.toFloat() / bitmap.width
+        val pyramid = try {
+            BlurPyramid(bitmap, scale)
+        } catch (e: Throwable) {
+            if (e !is Exception && e !is OutOfMemoryError) throw e
+            Log.w(TAG, "Unable to create blur pyramid, falling back to blurring ahead of time", e)
+            liveBlurFailed = true
+            return false
+        }
+        placeholder = createPlaceholder(bitmap.width, bitmap.height)
+        wallpaperScale = scale
+        this.pyramid = pyramid
+        wallpaper = bitmap
+        wallpaperKey = key
+        runOnMainThread(::notifyWallpaperChanged)
+        return true
+    }
+
+    private fun onWallpaperFailed(e: Exception) {
+        prefs.enableBlur = false
+        runOnMainThread {
+            val msg = "${context.getString(R.string.failed)}: ${e.message}"
+            Toast.makeText(context, msg, Toast.LENGTH_LONG).show()
+            notifyWallpaperChanged()
+        }
+    }
+
+    /**
+     * Decodes the wallpaper into [target] in [TILE_SIZE] tiles, subsampling each tile while decoding
+     * and reusing a single pooled tile bitmap. Peak memory is one tile plus the downsampled target.
+     */
+    private fun decodeTiled(decoder: BitmapRegionDecoder, target: Bitmap) {
+        val sourceWidth = decoder.width
+        val sourceHeight = decoder.height
+        val scaleX = target.width.toFloat() / sourceWidth
+        val scaleY = target.height.toFloat() / sourceHeight
+
+        var sampleSize = 1
+        while (sampleSize * 2 * Math.max(scaleX, scaleY) <= 1) {
+            sampleSize *= 2
+        }
+        val tileSize = (TILE_SIZE + sampleSize - 1) / sampleSize
+        var tile = bitmapPool.acquire(tileSize, tileSize)
+        val options = BitmapFactory.Options().apply {
+            inSampleSize = sampleSize
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+        }
+
+        val canvas = Canvas(target)
+        val region = Rect()
+        val src = Rect()
+        val dst = RectF()
+        try {
+            for (top in 0 until sourceHeight step TILE_SIZE) {
+                for (left in 0 until sourceWidth step TILE_SIZE) {
+                    region.set(left, top, Math.min(left + TILE_SIZE, sourceWidth),
+                            Math.min(top + TILE_SIZE, sourceHeight))
+                    options.inBitmap = tile
+                    val decoded = decoder.decodeRegion(region, options) ?: continue
+                    if (decoded !== tile) {
+                        bitmapPool.release(tile)
+                        tile = decoded
+                    }
+                    // The pooled tile may be larger than the decoded region at the edges
+                    src.set(0, 0, (region.width() + sampleSize - 1) / sampleSize,
+                            (region.height() + sampleSize - 1) / sampleSize)
+                    dst.set(region.left * scaleX, region.top * scaleY,
+                            region.right * scaleX, region.bottom * scaleY)
+                    canvas.drawBitmap(tile, src, dst, mTilePaint)
+                }
+            }
+        } finally {
+            options.inBitmap = null
+            bitmapPool.release(tile)
+        }
+    }
+
     private fun notifyWallpaperChanged() {
         mListeners.forEach(Listener::onWallpaperChanged)
     }
 
-    private fun scaleToScreenSize(bitmap: Bitmap): Bitmap {
+    /**
+     * Returns the size the wallpaper has to be scaled to so it covers the whole screen
+     */
+    private fun scaleToScreenSize(sourceWidth: Int, sourceHeight: Int): Point {
         val wm = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
         val display = wm.defaultDisplay
         display.getRealMetrics(mDisplayMetrics)
@@ -173,32 +371,23 @@ class BlurWallpaperProvider(val context: Context) {
         val height = mDisplayMetrics.heightPixels
         mDisplayHeight = height
 
-        val widthFactor = width.toFloat() / bitmap.width
-        val heightFactor = height.toFloat() / bitmap.height
+        val widthFactor = width.toFloat() / sourceWidth
+        val heightFactor = height.toFloat() / sourceHeight
 
         val upscaleFactor = Math.max(widthFactor, heightFactor)
-        if (upscaleFactor <= 0) {
-            return bitmap
+        if (upscaleFactor <= 0 || sourceWidth <= 0 || sourceHeight <= 0) {
+            return Point(width, height)
         }
 
-        val scaledWidth = Math.max(width, (bitmap.width * upscaleFactor).ceilToInt())
-        val scaledHeight = Math.max(height, (bitmap.height * upscaleFactor).ceilToInt())
-        return Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, false)
+        val scaledWidth = Math.max(width, (sourceWidth * upscaleFactor).ceilToInt())
+        val scaledHeight = Math.max(height, (sourceHeight * upscaleFactor).ceilToInt())
+        return Point(scaledWidth, scaledHeight)
     }
 
     private fun createPlaceholder(width: Int, height: Int): Bitmap {
-        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        sCanvas.setBitmap(bitmap)
-
-        mPath.moveTo(0f, 0f)
-        mPath.lineTo(0f, height.toFloat())
-        mPath.lineTo(width.toFloat(), height.toFloat())
-        mPath.lineTo(width.toFloat(), 0f)
-        mColorPaint.xfermode = null
-        mColorPaint.color = tintColor
-        sCanvas.drawPath(mPath, mColorPaint)
-
-        return bitmap
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).apply {
+            eraseColor(tintColor)
+        }
     }
 
     val tintColor: Int
@@ -209,25 +398,6 @@ class BlurWallpaperProvider(val context: Context) {
         Utilities.THREAD_POOL_EXECUTOR.execute(mUpdateRunnable)
     }
 
-    private fun applyVibrancy(wallpaper: Bitmap): Bitmap {
-        val width = wallpaper.width
-        val height = wallpaper.height
-
-        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val canvas = Canvas()
-        canvas.setBitmap(bitmap)
-
-        val colorMatrix = ColorMatrix()
-        colorMatrix.setSaturation(1.25f)
-        val filter = ColorMatrixColorFilter(colorMatrix)
-        mVibrancyPaint.colorFilter = filter
-        canvas.drawBitmap(wallpaper, 0f, 0f, mVibrancyPaint)
-
-        wallpaper.recycle()
-
-        return bitmap
-    }
-
     fun addListener(listener: Listener) {
         mListeners.add(listener)
         listener.onOffsetChanged(mOffset)
@@ -290,6 +460,12 @@ class BlurWallpaperProvider(val context: Context) {
         const val BLUR_ALLAPPS = 4
         const val DOWNSAMPLE_FACTOR = 8
 
+        private const val TAG = "BlurWallpaperProvider"
+        private const val VIBRANCY = 1.25f
+        // Size of the source regions decoded at once
+        private const val TILE_SIZE = 512
+        private const val POOL_SIZE = 4 * 1024 * 1024
+
         var isEnabled: Boolean = false
         private var sEnabledFlag: Int = 0
 
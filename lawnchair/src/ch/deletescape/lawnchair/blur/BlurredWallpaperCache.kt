@@ -0,0 +1,76 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.blur
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * Persists the last blurred wallpaper so that a launcher restart doesn't have to blur it again.
+ *
+ * Only one entry is kept. The key contains everything the result depends on (wallpaper id, output
+ * size and filter parameters), so any change simply misses and replaces the stored file.
+ */
+class BlurredWallpaperCache(context: Context) {
+
+    private val dir = File(context.cacheDir, "blur")
+
+    fun get(key: String): Bitmap? {
+        val file = fileFor(key)
+        if (!file.exists()) return null
+        val options = BitmapFactory.Options().apply { inMutable = true }
+        return BitmapFactory.decodeFile(file.path, options).also {
+            if (it == null) file.delete()
+        }
+    }
+
+    /**
+     * Writes [bitmap] to disk, replacing any other entry. Call from a background thread.
+     */
+    fun put(key: String, bitmap: Bitmap) {
+        dir.mkdirs()
+        val file = fileFor(key)
+        val tmp = File(dir, "${file.name}.tmp")
+        try {
+            FileOutputStream(tmp).use { bitmap.compress(Bitmap.CompressFormat.PNG, 100, it) }
+            if (!tmp.renameTo(file)) throw IOException("Failed to rename $tmp")
+            dir.listFiles()?.filter { it != file }?.forEach { it.delete() }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to write blurred wallpaper", e)
+            tmp.delete()
+        }
+    }
+
+    fun clear() {
+        dir.listFiles()?.forEach { it.delete() }
+    }
+
+    private fun fileFor(key: String) = File(dir, "$key.png")
+
+    companion object {
+
+        private const val TAG = "BlurredWallpaperCache"
+    }
+}
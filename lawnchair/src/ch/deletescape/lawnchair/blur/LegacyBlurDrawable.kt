@@ -150,8 +150,12 @@ class LegacyBlurDrawable internal constructor(
 
     fun draw(canvas: Canvas, noRadius: Boolean) {
         val toDraw = bitmap
-        mShaderPaint.shader = BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP)
         if (!mShouldDraw || toDraw == null || toDraw.isRecycled) return
+        mShaderPaint.shader = BitmapShader(toDraw, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP).apply {
+            setLocalMatrix(Matrix().apply {
+                setScale(mProvider.wallpaperScale, mProvider.wallpaperScale)
+            })
+        }
 
         val rounded = mRounded && !noRadius
         val topRounded = mTopRounded && !noRadius
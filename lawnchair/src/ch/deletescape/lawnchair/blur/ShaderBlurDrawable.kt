@@ -26,11 +26,21 @@ class ShaderBlurDrawable internal constructor(
 
     private var blurAlpha = 255
     private val blurPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
+    // Paints for the two pyramid levels cross-faded by the live blur
+    private val lowerPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
+    private val upperPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
     private var blurBitmap: Bitmap? = null
         set(value) {
             if (field != value) {
                 field = value
-                blurPaint.shader = value?.let { BitmapShader(it, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) }
+                blurPaint.shader = value?.let {
+                    BitmapShader(it, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP).apply {
+                        // The blurred wallpaper is kept downsampled, scale it back up to screen size
+                        setLocalMatrix(Matrix().apply {
+                            setScale(blurProvider.wallpaperScale, blurProvider.wallpaperScale)
+                        })
+                    }
+                }
             }
         }
     private var blurOffset = 0f
@@ -81,18 +91,33 @@ class ShaderBlurDrawable internal constructor(
 
     override fun draw(canvas: Canvas, noRadius: Boolean) {
         if (blurAlpha == 0) return
-        blurBitmap = blurProvider.wallpaper
         setupBlurPath()
 
         canvas.translate(-blurOffset, 0f)
+        val pyramid = blurProvider.pyramid
+        if (pyramid != null) {
+            blurBitmap = null
+            val radius = blurProvider.blurRadius.toFloat()
+            val crossFade = pyramid.setupPaints(radius, blurAlpha, lowerPaint, upperPaint)
+            drawBlur(canvas, noRadius, lowerPaint)
+            if (crossFade) {
+                drawBlur(canvas, noRadius, upperPaint)
+            }
+        } else {
+            blurBitmap = blurProvider.wallpaper
+            drawBlur(canvas, noRadius, blurPaint)
+        }
+        canvas.translate(blurOffset, 0f)
+    }
+
+    private fun drawBlur(canvas: Canvas, noRadius: Boolean, paint: Paint) {
         if (noRadius) {
             canvas.drawRect(blurBounds.left + blurOffset, blurBounds.top,
                             blurBounds.right + blurOffset, blurBounds.bottom,
-                            blurPaint)
+                            paint)
         } else {
-            canvas.drawPath(blurPath, blurPaint)
+            canvas.drawPath(blurPath, paint)
         }
-        canvas.translate(blurOffset, 0f)
     }
 
     private fun setupBlurPath() {
@@ -22,8 +22,17 @@ import ch.deletescape.lawnchair.LawnchairPreferences
 
 interface WallpaperFilter {
 
+    /**
+     * Identifies the current filter parameters, used to key the persisted result
+     */
+    val cacheKey: String
+
     fun applyPrefs(prefs: LawnchairPreferences)
 
+    /**
+     * Applies the filter to [wallpaper], which has already been downsampled by
+     * [BlurWallpaperProvider.DOWNSAMPLE_FACTOR]
+     */
     fun apply(wallpaper: Bitmap): ApplyTask
 
     class ApplyTask {
@@ -19,6 +19,7 @@ package ch.deletescape.lawnchair.flowerpot
 
 import android.content.Context
 import ch.deletescape.lawnchair.ensureOnMainThread
+import ch.deletescape.lawnchair.flowerpot.parser.FlowerpotBundle
 import ch.deletescape.lawnchair.flowerpot.parser.FlowerpotReader
 import ch.deletescape.lawnchair.flowerpot.rules.Rule
 import ch.deletescape.lawnchair.toTitleCase
@@ -30,7 +31,8 @@ import java.io.InputStream
 /**
  * A ruleset for an app category
  */
-class Flowerpot(private val context: Context, val name: String, private val loader: Flowerpot.() -> Unit) {
+class Flowerpot(private val context: Context, val name: String,
+                private val classifier: FlowerpotClassifier, private val loader: Flowerpot.() -> Unit) {
 
     val displayName by lazy {
         val id = context.resources.getIdentifier("category_${name.toLowerCase()}", "string", context.packageName)
@@ -42,20 +44,22 @@ class Flowerpot(private val context: Context, val name: String, private val load
     private var loaded = false
     val rules: MutableSet<Rule> = mutableSetOf()
     val size get() = rules.size
-    lateinit var apps: FlowerpotApps
+    val apps = FlowerpotApps()
 
+    /**
+     * Makes sure [apps] is populated. All pots are loaded and classified together.
+     */
     fun ensureLoaded() {
+        classifier.ensureLoaded()
+    }
+
+    internal fun loadRules() {
         if (!loaded) {
-            load()
+            loader(this)
             loaded = true
         }
     }
 
-    private fun load() {
-        loader(this)
-        apps = FlowerpotApps(context, this)
-    }
-
     /**
      * Load all data from
      */
@@ -67,8 +71,9 @@ class Flowerpot(private val context: Context, val name: String, private val load
         /**
          * Load a flowerpot from an assets file
          */
-        fun fromAssets(context: Context, path: String, name: String): Flowerpot {
-            return Flowerpot(context, name) {
+        fun fromAssets(context: Context, path: String, name: String,
+                       classifier: FlowerpotClassifier): Flowerpot {
+            return Flowerpot(context, name, classifier) {
                 loadFromInputStream(context.assets.open(path))
             }
         }
@@ -87,6 +92,10 @@ class Flowerpot(private val context: Context, val name: String, private val load
          * Path relative to assets/ to the directory containing the shipped flowerpot files
          */
         const val ASSETS_PATH = "flowerpot"
+        /**
+         * Path relative to assets/ to the rule bundle compiled from flowerpot/pots/ by the build
+         */
+        const val BUNDLE_PATH = "flowerpot.bundle"
 
         private fun beautifyName(name: String): String {
             return name.replace('_', ' ').toLowerCase().toTitleCase()
@@ -110,18 +119,36 @@ class Flowerpot(private val context: Context, val name: String, private val load
     class Manager private constructor(private val context: Context) {
 
         private val pots = mutableMapOf<String, Flowerpot>()
+        private val classifier = FlowerpotClassifier(context)
 
         init {
+            loadBundle()
             loadAssets()
         }
 
         /**
-         * Load flowerpot files located in assets/
+         * Register the pots of the bundle compiled at build time, their rules are only decoded
+         * when they are loaded
+         */
+        private fun loadBundle() {
+            val bundle = FlowerpotBundle.fromAssets(context, BUNDLE_PATH) ?: return
+            bundle.potNames.forEach { name ->
+                pots.getOrPut(name) {
+                    Flowerpot(context, name, classifier) {
+                        rules.addAll(bundle.readRules(name))
+                    }.also(classifier::addPot)
+                }
+            }
+        }
+
+        /**
+         * Load flowerpot files located in assets/, pots with the same name as a bundled one are
+         * ignored
          */
         private fun loadAssets() {
             context.assets.list(ASSETS_PATH)?.forEach {
                 pots.getOrPut(it) {
-                    fromAssets(context, "$ASSETS_PATH/$it", it)
+                    fromAssets(context, "$ASSETS_PATH/$it", it, classifier).also(classifier::addPot)
                 }
             }
         }
@@ -0,0 +1,173 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.flowerpot
+
+import android.content.Context
+import android.content.Intent
+import android.content.pm.LauncherActivityInfo
+import android.os.UserHandle
+import ch.deletescape.lawnchair.flowerpot.rules.CodeRule
+import ch.deletescape.lawnchair.flowerpot.rules.Rule
+import com.android.launcher3.compat.LauncherAppsCompat
+import com.android.launcher3.compat.UserManagerCompat
+import com.android.launcher3.shortcuts.ShortcutInfoCompat
+
+/**
+ * Classifies the installed apps for all pots at once.
+ *
+ * The rules of every pot are compiled into lookup tables: a map from package to pots, one
+ * PackageManager query per distinct intent (shared by all pots using it) and one instance of every
+ * distinct code rule. Apps are then listed once per profile and matched against all pots in a
+ * single pass, and package changes only reclassify the affected package.
+ */
+class FlowerpotClassifier(private val context: Context) : LauncherAppsCompat.OnAppsChangedCallbackCompat {
+
+    private val launcherApps = LauncherAppsCompat.getInstance(context)
+    private val pots = mutableListOf<Flowerpot>()
+    private var loaded = false
+
+    private val packageRules = mutableMapOf<String, MutableSet<Flowerpot>>()
+    private val intentRules = mutableMapOf<IntentKey, MutableSet<Flowerpot>>()
+    private val codeRules = mutableMapOf<CodeRule, MutableSet<Flowerpot>>()
+
+    // Packages resolving each intent, and the resulting pots per package
+    private val intentResults = mutableMapOf<IntentKey, MutableSet<String>>()
+    private val intentMatches = mutableMapOf<String, MutableSet<Flowerpot>>()
+
+    fun addPot(pot: Flowerpot) {
+        pots.add(pot)
+    }
+
+    /**
+     * Loads the rules of all pots and classifies all apps, if that didn't happen yet.
+     */
+    @Synchronized
+    fun ensureLoaded() {
+        if (loaded) return
+        loaded = true
+        pots.forEach {
+            it.loadRules()
+            compile(it)
+        }
+        intentRules.keys.forEach { key ->
+            intentResults[key] = context.packageManager.queryIntentActivities(key.toIntent(), 0)
+                    .mapTo(mutableSetOf()) { it.activityInfo.packageName }
+        }
+        rebuildIntentMatches()
+        UserManagerCompat.getInstance(context).userProfiles.forEach { user ->
+            launcherApps.getActivityList(null, user).forEach { classify(it) }
+        }
+        launcherApps.addOnAppsChangedCallback(this)
+    }
+
+    private fun compile(pot: Flowerpot) {
+        pot.rules.forEach { rule ->
+            when (rule) {
+                is Rule.Package -> packageRules.getOrPut(rule.filter) { mutableSetOf() }.add(pot)
+                is Rule.IntentAction -> intentRules.getOrPut(IntentKey(rule.action, null)) { mutableSetOf() }.add(pot)
+                is Rule.IntentCategory -> intentRules.getOrPut(IntentKey(null, rule.category)) { mutableSetOf() }.add(pot)
+                is Rule.CodeRule -> codeRules.getOrPut(CodeRule.get(rule.rule, *rule.args)) { mutableSetOf() }.add(pot)
+                else -> { }
+            }
+        }
+    }
+
+    private fun rebuildIntentMatches() {
+        intentMatches.clear()
+        intentResults.forEach { (key, packages) ->
+            val matchingPots = intentRules[key] ?: return@forEach
+            packages.forEach { intentMatches.getOrPut(it) { mutableSetOf() }.addAll(matchingPots) }
+        }
+    }
+
+    private fun classify(app: LauncherActivityInfo) {
+        val packageName = app.componentName.packageName
+        val matched = mutableSetOf<Flowerpot>()
+        packageRules[packageName]?.let { matched.addAll(it) }
+        intentMatches[packageName]?.let { matched.addAll(it) }
+        codeRules.forEach { (rule, rulePots) ->
+            if (!matched.containsAll(rulePots) && rule.matches(app.applicationInfo)) {
+                matched.addAll(rulePots)
+            }
+        }
+        matched.forEach { it.apps.add(app.componentName, app.user) }
+    }
+
+    /**
+     * Updates the cached intent results for [packageName] only.
+     */
+    private fun updateIntentResults(packageName: String) {
+        intentResults.forEach { (key, packages) ->
+            val intent = key.toIntent().setPackage(packageName)
+            if (context.packageManager.queryIntentActivities(intent, 0).isEmpty()) {
+                packages.remove(packageName)
+            } else {
+                packages.add(packageName)
+            }
+        }
+        intentMatches.remove(packageName)
+        intentResults.forEach { (key, packages) ->
+            if (packages.contains(packageName)) {
+                intentMatches.getOrPut(packageName) { mutableSetOf() }.addAll(intentRules[key]!!)
+            }
+        }
+    }
+
+    @Synchronized
+    override fun onPackageAdded(packageName: String, user: UserHandle) {
+        updateIntentResults(packageName)
+        pots.forEach { it.apps.remove(packageName, user) }
+        launcherApps.getActivityList(packageName, user).forEach { classify(it) }
+    }
+
+    override fun onPackageChanged(packageName: String, user: UserHandle) {
+        onPackageAdded(packageName, user)
+    }
+
+    @Synchronized
+    override fun onPackageRemoved(packageName: String, user: UserHandle) {
+        pots.forEach { it.apps.remove(packageName, user) }
+    }
+
+    override fun onPackagesAvailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+        packageNames.forEach { onPackageAdded(it, user) }
+    }
+
+    override fun onPackagesUnavailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+        packageNames.forEach { onPackageRemoved(it, user) }
+    }
+
+    override fun onPackagesSuspended(packageNames: Array<out String>, user: UserHandle) {
+        packageNames.forEach { onPackageRemoved(it, user) }
+    }
+
+    override fun onPackagesUnsuspended(packageNames: Array<out String>, user: UserHandle) {
+        packageNames.forEach { onPackageAdded(it, user) }
+    }
+
+    override fun onShortcutsChanged(packageName: String?, shortcuts: MutableList<ShortcutInfoCompat>?, user: UserHandle?) {
+
+    }
+
+    private data class IntentKey(val action: String?, val category: String?) {
+
+        fun toIntent(): Intent {
+            return if (action != null) Intent(action) else Intent(Intent.ACTION_MAIN).addCategory(category)
+        }
+    }
+}
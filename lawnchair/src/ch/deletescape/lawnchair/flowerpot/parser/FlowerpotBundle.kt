@@ -0,0 +1,126 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.flowerpot.parser
+
+import android.content.Context
+import ch.deletescape.lawnchair.flowerpot.Flowerpot
+import ch.deletescape.lawnchair.flowerpot.FlowerpotFormatException
+import ch.deletescape.lawnchair.flowerpot.rules.Rule
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Reader for the rule bundle compiled from the flowerpot sources at build time (see
+ * FlowerpotBundleTask in buildSrc for the layout).
+ *
+ * Opening the bundle only reads the pot table, the rules of a pot are decoded when it is loaded.
+ */
+class FlowerpotBundle(private val buffer: ByteBuffer) {
+
+    private val stringCount: Int
+    private val potCount: Int
+    private val potsStart: Int
+
+    init {
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC) {
+            throw FlowerpotFormatException("Not a flowerpot bundle")
+        }
+        val version = buffer.getInt(4)
+        if (!Flowerpot.SUPPORTED_VERSIONS.contains(version)) {
+            throw FlowerpotFormatException("Unsupported version $version (supported are ${Flowerpot.SUPPORTED_VERSIONS.joinToString()})")
+        }
+        stringCount = buffer.getInt(8)
+        potCount = buffer.getInt(12)
+        potsStart = 16 + stringCount * 4
+    }
+
+    val potNames get() = (0 until potCount).map { getString(buffer.getInt(potsStart + it * 12)) }
+
+    /**
+     * Decodes the rules of the pot called [name], or returns an empty list if there is none.
+     */
+    fun readRules(name: String): List<Rule> {
+        val pot = (0 until potCount).firstOrNull {
+            getString(buffer.getInt(potsStart + it * 12)) == name
+        } ?: return emptyList()
+        var offset = buffer.getInt(potsStart + pot * 12 + 4)
+        val count = buffer.getInt(potsStart + pot * 12 + 8)
+        val rules = ArrayList<Rule>(count)
+        repeat(count) {
+            val type = buffer.get(offset).toInt()
+            val value = getString(buffer.getInt(offset + 1))
+            offset += 5
+            rules.add(when (type) {
+                RULE_PACKAGE -> Rule.Package(value)
+                RULE_INTENT_ACTION -> Rule.IntentAction(value)
+                RULE_INTENT_CATEGORY -> Rule.IntentCategory(value)
+                RULE_CODE -> {
+                    val argCount = buffer.get(offset).toInt() and 0xff
+                    val args = Array(argCount) { getString(buffer.getInt(offset + 1 + it * 4)) }
+                    offset += 1 + argCount * 4
+                    Rule.CodeRule(value, args)
+                }
+                else -> throw FlowerpotFormatException("Unknown rule type $type in bundle")
+            })
+        }
+        return rules
+    }
+
+    private fun getString(index: Int): String {
+        val offset = buffer.getInt(16 + index * 4)
+        val length = buffer.getShort(offset).toInt() and 0xffff
+        val bytes = ByteArray(length)
+        for (i in 0 until length) {
+            bytes[i] = buffer.get(offset + 2 + i)
+        }
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    companion object {
+
+        private const val MAGIC = 0x46504231 // FPB1
+
+        private const val RULE_PACKAGE = 0
+        private const val RULE_INTENT_ACTION = 1
+        private const val RULE_INTENT_CATEGORY = 2
+        private const val RULE_CODE = 3
+
+        /**
+         * Opens the bundle at [path] in the assets, or returns null if the build didn't include one.
+         */
+        fun fromAssets(context: Context, path: String): FlowerpotBundle? {
+            return try {
+                FlowerpotBundle(try {
+                    // The build stores the bundle uncompressed, so it can be mapped
+                    context.assets.openFd(path).use { fd ->
+                        FileInputStream(fd.fileDescriptor).channel.use {
+                            it.map(FileChannel.MapMode.READ_ONLY, fd.startOffset, fd.length)
+                        }
+                    }
+                } catch (e: FileNotFoundException) {
+                    ByteBuffer.wrap(context.assets.open(path).use { it.readBytes() })
+                })
+            } catch (e: IOException) {
+                null
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.iconpack
+
+import android.content.ComponentName
+import android.content.Context
+import android.util.Log
+import com.google.android.apps.nexuslauncher.clock.CustomClock
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Compiled form of an icon pack's appfilter.
+ *
+ * The appfilter is parsed once per pack version into a flat binary file: components are stored as
+ * records sorted by a 64-bit hash of their flattened name, together with the drawable name and the
+ * already resolved resource id. The file is memory-mapped, so loading a pack costs a header check
+ * instead of an XML walk and thousands of resource lookups. Every offset is checked when the file
+ * is opened, so a corrupted file is recompiled instead of crashing a lookup.
+ *
+ * Layout (big endian):
+ * - header, see [HEADER_SIZE]
+ * - int offset of every string
+ * - component records: long hash, int name, int type, int drawable, int resource id
+ * - dynamic clock records, sorted by resource id: int resource id, 6 int metadata values
+ * - int string index of every iconback, iconmask and iconupon image
+ * - strings: unsigned short byte length followed by the UTF-8 bytes
+ */
+class AppFilterIndex private constructor(private val buffer: ByteBuffer) {
+
+    private val stringCount = buffer.getInt(16)
+    private val componentCount = buffer.getInt(20)
+    private val clockCount = buffer.getInt(24)
+    val iconScale = buffer.getFloat(28)
+    // Dimension resource the scale is read from, or 0 if [iconScale] is the scale itself
+    val iconScaleRes = buffer.getInt(32)
+    val onlyMaskLegacy = buffer.getInt(36) != 0
+    private val backCount = buffer.getInt(40)
+    private val maskCount = buffer.getInt(44)
+    private val uponCount = buffer.getInt(48)
+
+    private val componentsStart = HEADER_SIZE + stringCount * 4
+    private val clocksStart = componentsStart + componentCount * COMPONENT_SIZE
+    private val imagesStart = clocksStart + clockCount * CLOCK_SIZE
+
+    val iconBacks get() = images(0, backCount)
+    val iconMasks get() = images(backCount, maskCount)
+    val iconUpons get() = images(backCount + maskCount, uponCount)
+
+    init {
+        validate()
+    }
+
+    /**
+     * Checks that all sections, strings and string references lie within the buffer.
+     */
+    private fun validate() {
+        val counts = intArrayOf(stringCount, componentCount, clockCount, backCount, maskCount,
+                uponCount)
+        if (counts.any { it < 0 }) throw IOException("Corrupt appfilter index")
+        val imageCount = backCount.toLong() + maskCount + uponCount
+        val stringsStart = HEADER_SIZE + stringCount * 4L +
+                componentCount.toLong() * COMPONENT_SIZE + clockCount.toLong() * CLOCK_SIZE +
+                imageCount * 4
+        if (stringsStart > buffer.capacity()) throw IOException("Truncated appfilter index")
+
+        for (i in 0 until stringCount) {
+            val offset = buffer.getInt(HEADER_SIZE + i * 4)
+            if (offset < stringsStart || offset.toLong() + 2 > buffer.capacity()
+                    || offset.toLong() + 2 + (buffer.getShort(offset).toInt() and 0xffff)
+                            > buffer.capacity()) {
+                throw IOException("Corrupt appfilter string $i")
+            }
+        }
+        for (i in 0 until componentCount) {
+            val record = componentsStart + i * COMPONENT_SIZE
+            checkStringIndex(buffer.getInt(record + 8))
+            checkStringIndex(buffer.getInt(record + 16))
+        }
+        for (i in 0 until imageCount.toInt()) {
+            checkStringIndex(buffer.getInt(imagesStart + i * 4))
+        }
+    }
+
+    private fun checkStringIndex(index: Int) {
+        if (index < 0 || index >= stringCount) throw IOException("Corrupt appfilter index")
+    }
+
+    /**
+     * Returns the drawable name mapped to [component] with the given [type].
+     */
+    fun getDrawableName(component: ComponentName, type: Int): String? {
+        val record = findRecord(component, type)
+        return if (record < 0) null else getString(buffer.getInt(record + 16))
+    }
+
+    /**
+     * Returns the resource id resolved at compile time for the drawable mapped to [component], or
+     * 0 if there is none.
+     */
+    fun getResourceId(component: ComponentName, type: Int): Int {
+        val record = findRecord(component, type)
+        return if (record < 0) 0 else buffer.getInt(record + 20)
+    }
+
+    fun getComponents(type: Int): List<ComponentName> {
+        val result = ArrayList<ComponentName>()
+        for (i in 0 until componentCount) {
+            val record = componentsStart + i * COMPONENT_SIZE
+            if (buffer.getInt(record + 12) == type) {
+                ComponentName.unflattenFromString(getString(buffer.getInt(record + 8)))
+                        ?.let { result.add(it) }
+            }
+        }
+        return result
+    }
+
+    fun getClockMetadata(resId: Int): CustomClock.Metadata? {
+        var low = 0
+        var high = clockCount - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val record = clocksStart + mid * CLOCK_SIZE
+            val id = buffer.getInt(record)
+            when {
+                id < resId -> low = mid + 1
+                id > resId -> high = mid - 1
+                else -> return CustomClock.Metadata(
+                        buffer.getInt(record + 4), buffer.getInt(record + 8),
+                        buffer.getInt(record + 12), buffer.getInt(record + 16),
+                        buffer.getInt(record + 20), buffer.getInt(record + 24))
+            }
+        }
+        return null
+    }
+
+    /**
+     * Returns the offset of the record for [component] and [type], or -1.
+     */
+    private fun findRecord(component: ComponentName, type: Int): Int {
+        val name = component.flattenToString()
+        val hash = hash(name)
+        var low = 0
+        var high = componentCount - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midHash = buffer.getLong(componentsStart + mid * COMPONENT_SIZE)
+            if (midHash < hash) {
+                low = mid + 1
+            } else {
+                high = mid - 1
+            }
+        }
+        // low is the first record with this hash, check all of them for collisions and the type
+        var i = low
+        while (i < componentCount) {
+            val record = componentsStart + i * COMPONENT_SIZE
+            if (buffer.getLong(record) != hash) break
+            if (buffer.getInt(record + 12) == type && getString(buffer.getInt(record + 8)) == name) {
+                return record
+            }
+            i++
+        }
+        return -1
+    }
+
+    private fun images(start: Int, count: Int) = (start until start + count).map {
+        getString(buffer.getInt(imagesStart + it * 4))
+    }
+
+    private fun getString(index: Int): String {
+        val offset = buffer.getInt(HEADER_SIZE + index * 4)
+        val length = buffer.getShort(offset).toInt() and 0xffff
+        val bytes = ByteArray(length)
+        for (i in 0 until length) {
+            bytes[i] = buffer.get(offset + 2 + i)
+        }
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    /**
+     * Collects the parsed appfilter and serializes it in the index format.
+     */
+    class Builder(private val sourceVersion: Long) {
+
+        var iconScale = 1f
+        var iconScaleRes = 0
+        var onlyMaskLegacy = false
+        val iconBacks = ArrayList<String>()
+        val iconMasks = ArrayList<String>()
+        val iconUpons = ArrayList<String>()
+
+        // Later entries replace earlier ones, like they did in the parsed maps
+        private val components = LinkedHashMap<Pair<String, Int>, Pair<String, Int>>()
+        private val clocks = HashMap<Int, IntArray>()
+
+        fun addComponent(component: ComponentName, type: Int, drawableName: String, resId: Int = 0) {
+            components[Pair(component.flattenToString(), type)] = Pair(drawableName, resId)
+        }
+
+        fun addClock(resId: Int, hourIndex: Int, minuteIndex: Int, secondIndex: Int,
+                     defaultHour: Int, defaultMinute: Int, defaultSecond: Int) {
+            clocks[resId] = intArrayOf(hourIndex, minuteIndex, secondIndex,
+                    defaultHour, defaultMinute, defaultSecond)
+        }
+
+        fun toByteArray(): ByteArray {
+            val strings = ArrayList<ByteArray>()
+            val stringIndex = HashMap<String, Int>()
+            val intern = { s: String ->
+                stringIndex.getOrPut(s) {
+                    strings.add(s.toByteArray(Charsets.UTF_8).let {
+                        if (it.size > 0xffff) throw IOException("String too long: $s")
+                        it
+                    })
+                    strings.size - 1
+                }
+            }
+
+            val records = components.entries
+                    .map { (key, value) ->
+                        ComponentRecord(hash(key.first), intern(key.first), key.second,
+                                intern(value.first), value.second)
+                    }
+                    .sortedBy { it.hash }
+            val sortedClocks = clocks.entries.sortedBy { it.key }
+            val images = (iconBacks + iconMasks + iconUpons).map(intern)
+
+            val stringsStart = HEADER_SIZE + strings.size * 4 + records.size * COMPONENT_SIZE +
+                    sortedClocks.size * CLOCK_SIZE + images.size * 4
+            val size = stringsStart + strings.sumBy { 2 + it.size }
+            val out = ByteBuffer.allocate(size)
+            out.putInt(MAGIC)
+            out.putInt(VERSION)
+            out.putLong(sourceVersion)
+            out.putInt(strings.size)
+            out.putInt(records.size)
+            out.putInt(sortedClocks.size)
+            out.putFloat(iconScale)
+            out.putInt(iconScaleRes)
+            out.putInt(if (onlyMaskLegacy) 1 else 0)
+            out.putInt(iconBacks.size)
+            out.putInt(iconMasks.size)
+            out.putInt(iconUpons.size)
+
+            var offset = stringsStart
+            strings.forEach {
+                out.putInt(offset)
+                offset += 2 + it.size
+            }
+            records.forEach {
+                out.putLong(it.hash)
+                out.putInt(it.name)
+                out.putInt(it.type)
+                out.putInt(it.drawable)
+                out.putInt(it.resId)
+            }
+            sortedClocks.forEach { (resId, metadata) ->
+                out.putInt(resId)
+                metadata.forEach { out.putInt(it) }
+            }
+            images.forEach { out.putInt(it) }
+            strings.forEach {
+                out.putShort(it.size.toShort())
+                out.put(it)
+            }
+            return out.array()
+        }
+
+        /**
+         * Writes the index to [file] and maps it. Falls back to an in-memory index if the file
+         * can't be written.
+         */
+        fun writeTo(file: File): AppFilterIndex {
+            val bytes = toByteArray()
+            file.parentFile?.mkdirs()
+            val tmp = File(file.path + ".tmp")
+            try {
+                FileOutputStream(tmp).use { it.write(bytes) }
+                if (!tmp.renameTo(file)) throw IOException("Failed to rename $tmp")
+                open(file, sourceVersion)?.let { return it }
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to write appfilter index", e)
+                tmp.delete()
+            }
+            return AppFilterIndex(ByteBuffer.wrap(bytes))
+        }
+
+        private class ComponentRecord(val hash: Long, val name: Int, val type: Int,
+                                      val drawable: Int, val resId: Int)
+    }
+
+    companion object {
+
+        private const val TAG = "AppFilterIndex"
+
+        private const val MAGIC = 0x41464958 // AFIX
+        private const val VERSION = 2
+
+        // magic, version, source version, 3 counts, scale, scale resource, onlyMaskLegacy,
+        // 3 image counts
+        private const val HEADER_SIZE = 52
+        private const val COMPONENT_SIZE = 24
+        private const val CLOCK_SIZE = 28
+
+        const val TYPE_ITEM = 0
+        const val TYPE_CALENDAR = 1
+        const val TYPE_CLOCK = 2
+
+        val EMPTY by lazy { AppFilterIndex(ByteBuffer.wrap(Builder(0).toByteArray())) }
+
+        fun getFile(context: Context, packPackageName: String) =
+                File(File(context.filesDir, "appfilter"), "$packPackageName.idx")
+
+        /**
+         * Maps the index in [file] if it was compiled from [sourceVersion] of the pack.
+         */
+        fun open(file: File, sourceVersion: Long): AppFilterIndex? {
+            if (!file.exists()) return null
+            return try {
+                val buffer = RandomAccessFile(file, "r").use {
+                    it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+                }
+                if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                        || buffer.getInt(4) != VERSION || buffer.getLong(8) != sourceVersion) {
+                    null
+                } else {
+                    AppFilterIndex(buffer)
+                }
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to read appfilter index", e)
+                null
+            }
+        }
+
+        /**
+         * 64-bit FNV-1a hash of [s].
+         */
+        private fun hash(s: String): Long {
+            var hash = -0x340d631b7bdddcdbL
+            for (c in s) {
+                hash = (hash xor c.toLong()) * 0x100000001b3L
+            }
+            return hash
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.content.res.Resources
 import android.graphics.Bitmap
 import android.graphics.drawable.Drawable
 import android.text.TextUtils
+import ch.deletescape.lawnchair.adaptive.AdaptiveIconAnalysisCache
 import ch.deletescape.lawnchair.adaptive.AdaptiveIconGenerator
 import ch.deletescape.lawnchair.getLauncherActivityInfo
 import com.android.launcher3.*
@@ -103,7 +104,8 @@ class DefaultPack(context: Context) : IconPack(context, "") {
         getRoundIcon(component, iconDpi)?.let {
             roundIcon = it.apply { mutate() }
         }
-        val gen = AdaptiveIconGenerator(context, roundIcon ?: originalIcon)
+        val gen = AdaptiveIconGenerator(context, roundIcon ?: originalIcon,
+                AdaptiveIconAnalysisCache.getSourceKey(context, key, packPackageName))
         return gen.result
     }
 
@@ -138,7 +140,9 @@ class DefaultPack(context: Context) : IconPack(context, "") {
             getRoundIcon(component, iconDpi)?.let {
                 roundIcon = it.apply { mutate() }
             }
-            val gen = AdaptiveIconGenerator(context, roundIcon ?: originalIcon)
+            // analysis 결과는 component, app version 별로 보관된다
+            val gen = AdaptiveIconGenerator(context, roundIcon ?: originalIcon,
+                    AdaptiveIconAnalysisCache.getSourceKey(context, key, packPackageName))
             return gen.result
         }
         return iconProvider.getDynamicIcon(info, iconDpi, flattenDrawable)
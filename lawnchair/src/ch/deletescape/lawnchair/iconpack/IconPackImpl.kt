@@ -32,6 +32,7 @@ import android.text.TextUtils
 import android.util.Log
 import android.util.Xml
 import android.widget.Toast
+import ch.deletescape.lawnchair.adaptive.AdaptiveIconAnalysisCache
 import ch.deletescape.lawnchair.adaptive.AdaptiveIconGenerator
 import ch.deletescape.lawnchair.get
 import ch.deletescape.lawnchair.toTitleCase
@@ -60,14 +61,12 @@ import kotlin.collections.ArrayList
 class IconPackImpl(context: Context, packPackageName: String) : IconPack(context, packPackageName) {
 
     private val packComponents: MutableMap<ComponentName, Entry> = HashMap()
-    // Calendar icon 정보를 담고 있는 Map
-    private val packCalendars: MutableMap<ComponentName, String> = HashMap()
-    private val packDirectClocks: MutableMap<ComponentName, String> = HashMap()
-    // icon 정보들을 담고 있는 Map
-    private val customPackComponents: MutableMap<ComponentName, String> = HashMap()
     private val packClocks: MutableMap<Int, CustomClock.Metadata> = HashMap()
-    // Clock 관련 icon 정보를 담고 있는 Map
-    private val customPackClocks: MutableMap<Int, CustomClock.Metadata> = HashMap()
+    // appfilter 를 번역한 index (component 별 calendar, clock, icon 정보)
+    @Volatile
+    private var appFilter = AppFilterIndex.EMPTY
+    // theme app 의 version (lastUpdateTime)
+    private var packVersion = 0L
     // 변하는 icon 들의 정보를 담고 있는 Map
     private val packDynamicDrawables: MutableMap<Int, DynamicDrawable.Metadata> = HashMap()
     // icon mask 관련 변수
@@ -98,7 +97,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         val model = LauncherAppState.getInstance(context).model
         val shortcutManager = DeepShortcutManager.getInstance(context)
         for (user in UserManagerCompat.getInstance(context).userProfiles) {
-            packCalendars.keys.forEach {
+            appFilter.getComponents(AppFilterIndex.TYPE_CALENDAR).forEach {
                 val pkg = it.packageName
                 if (!apps.getActivityList(pkg, user).isEmpty()) {
                     CustomIconUtils.reloadIcon(shortcutManager, model, user, pkg)
@@ -109,85 +108,21 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
 
     /**
      * Theme app 에서부터 해당 theme 에 관한 icon 들을 읽는 함수
+     * 번역된 index 가 theme app 의 현재 version 과 일치하면 xml 을 해석하지 않고 그대로 리용한다
      */
     override fun loadPack() {
         try {
             val startTime = System.currentTimeMillis()
-            val compStart = "ComponentInfo{"
-            val compStartlength = compStart.length
-            val compEnd = "}"
-            val compEndLength = compEnd.length
-
-            val parseXml = getXml("appfilter", packPackageName) ?: throw IllegalStateException("parser is null")
-            while (parseXml.next() != XmlPullParser.END_DOCUMENT) {
-                if (parseXml.eventType == XmlPullParser.START_TAG) {
-                    val name = parseXml.name
-                    val isCalendar = name == "calendar"
-                    val isClock = name == "clock"
-                    when {
-                        isClock || isCalendar || name == "item" -> {
-                            var componentName: String? = parseXml[null, "component"]
-                            val drawableName = parseXml[if (isCalendar) "prefix" else "drawable"]
-                            if (componentName != null && drawableName != null) {
-                                if (componentName.startsWith(compStart) && componentName.endsWith(compEnd)) {
-                                    componentName = componentName.substring(compStartlength, componentName.length - compEndLength)
-                                }
-                                val parsed = ComponentName.unflattenFromString(componentName)
-                                if (parsed != null) {
-                                    if (isCalendar) {
-                                        packCalendars[parsed] = drawableName
-                                    } else if (isClock) {
-                                        packDirectClocks[parsed] = drawableName
-                                    } else {
-                                        customPackComponents[parsed] = drawableName
-                                    }
-                                }
-                            }
-                        }
-                        name == "dynamic-clock" -> {
-                            val drawableName = parseXml["drawable"]
-                            if (drawableName != null) {
-                                val drawableId = customGetDrawableId(drawableName)
-                                if (drawableId != 0) {
-                                    customPackClocks[drawableId] = CustomClock.Metadata(
-                                            if (parseXml["hourLayerIndex"] != null) parseXml.getAttributeValue(null, "hourLayerIndex").toInt() else -1,
-                                            if (parseXml["minuteLayerIndex"] != null) parseXml.getAttributeValue(null, "minuteLayerIndex").toInt() else -1,
-                                            if (parseXml["secondLayerIndex"] != null) parseXml.getAttributeValue(null, "secondLayerIndex").toInt() else -1,
-                                            if (parseXml["defaultHour"] != null) parseXml.getAttributeValue(null, "defaultHour").toInt() else 0,
-                                            if (parseXml["defaultMinute"] != null) parseXml.getAttributeValue(null, "defaultMinute").toInt() else 0,
-                                            if (parseXml["defaultSecond"] != null) parseXml.getAttributeValue(null, "defaultSecond").toInt() else 0)
-                                }
-                            }
-                        }
-                        name == "scale" -> {
-                            val scale = parseXml["factor"]!!.toFloat()
-                            if (scale > 0x7f070000) {
-                                packMask.iconScale = packResources.getDimension(scale.toInt())
-                            } else {
-                                packMask.iconScale = scale
-                            }
-                        }
-                        name == "iconback" -> {
-                            // TODO: handle packs with multiple masks
-                            addImgsTo(parseXml, packMask.iconBackEntries)
-                        }
-                        name == "iconmask" -> {
-                            addImgsTo(parseXml, packMask.iconMaskEntries)
-                        }
-                        name == "iconupon" -> {
-                            addImgsTo(parseXml, packMask.iconUponEntries)
-                        }
-                        name == "config" -> {
-                            val onlyMaskLegacy = parseXml["onlyMaskLegacy"]
-                            if (!TextUtils.isEmpty(onlyMaskLegacy)) {
-                                packMask.onlyMaskLegacy = onlyMaskLegacy!!.toBoolean()
-                            }
-                        }
-                    }
-                }
-            }
+            val sourceVersion = context.packageManager
+                    .getPackageInfo("com.android.themes", 0).lastUpdateTime
+            val file = AppFilterIndex.getFile(context, packPackageName)
+            val index = AppFilterIndex.open(file, sourceVersion)
+                    ?: parseAppFilter(sourceVersion).writeTo(file)
+            applyMask(index)
+            packVersion = sourceVersion
+            appFilter = index
             val endTime = System.currentTimeMillis()
-            d("completed parsing pack $packPackageName in ${endTime - startTime}ms")
+            d("completed loading pack $packPackageName in ${endTime - startTime}ms")
             return
         } catch (e: PackageManager.NameNotFoundException) {
             e.printStackTrace()
@@ -202,16 +137,115 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
     }
 
     /**
-     * 주어진 xml 에 Attribute 가 img 인것이 있으면 entry 에 추가하는 함수
+     * appfilter xml 을 해석하여 index 를 만드는 함수
+     * drawable id 들은 여기서 한번만 얻어 index 에 보관한다
+     */
+    private fun parseAppFilter(sourceVersion: Long): AppFilterIndex.Builder {
+        val builder = AppFilterIndex.Builder(sourceVersion)
+        val compStart = "ComponentInfo{"
+        val compStartlength = compStart.length
+        val compEnd = "}"
+        val compEndLength = compEnd.length
+
+        val parseXml = getXml("appfilter", packPackageName) ?: throw IllegalStateException("parser is null")
+        while (parseXml.next() != XmlPullParser.END_DOCUMENT) {
+            if (parseXml.eventType == XmlPullParser.START_TAG) {
+                val name = parseXml.name
+                val isCalendar = name == "calendar"
+                val isClock = name == "clock"
+                when {
+                    isClock || isCalendar || name == "item" -> {
+                        var componentName: String? = parseXml[null, "component"]
+                        val drawableName = parseXml[if (isCalendar) "prefix" else "drawable"]
+                        if (componentName != null && drawableName != null) {
+                            if (componentName.startsWith(compStart) && componentName.endsWith(compEnd)) {
+                                componentName = componentName.substring(compStartlength, componentName.length - compEndLength)
+                            }
+                            val parsed = ComponentName.unflattenFromString(componentName)
+                            if (parsed != null) {
+                                if (isCalendar) {
+                                    builder.addComponent(parsed, AppFilterIndex.TYPE_CALENDAR, drawableName)
+                                } else if (isClock) {
+                                    builder.addComponent(parsed, AppFilterIndex.TYPE_CLOCK, drawableName,
+                                            customGetDrawableId(drawableName))
+                                } else {
+                                    builder.addComponent(parsed, AppFilterIndex.TYPE_ITEM, drawableName)
+                                }
+                            }
+                        }
+                    }
+                    name == "dynamic-clock" -> {
+                        val drawableName = parseXml["drawable"]
+                        if (drawableName != null) {
+                            val drawableId = customGetDrawableId(drawableName)
+                            if (drawableId != 0) {
+                                builder.addClock(drawableId,
+                                        if (parseXml["hourLayerIndex"] != null) parseXml.getAttributeValue(null, "hourLayerIndex").toInt() else -1,
+                                        if (parseXml["minuteLayerIndex"] != null) parseXml.getAttributeValue(null, "minuteLayerIndex").toInt() else -1,
+                                        if (parseXml["secondLayerIndex"] != null) parseXml.getAttributeValue(null, "secondLayerIndex").toInt() else -1,
+                                        if (parseXml["defaultHour"] != null) parseXml.getAttributeValue(null, "defaultHour").toInt() else 0,
+                                        if (parseXml["defaultMinute"] != null) parseXml.getAttributeValue(null, "defaultMinute").toInt() else 0,
+                                        if (parseXml["defaultSecond"] != null) parseXml.getAttributeValue(null, "defaultSecond").toInt() else 0)
+                            }
+                        }
+                    }
+                    name == "scale" -> {
+                        val scale = parseXml["factor"]!!.toFloat()
+                        if (scale > 0x7f070000) {
+                            // dimension 은 화면밀도에 따라 달라지므로 resource id 를 보관하고 적재할때 읽는다
+                            builder.iconScaleRes = scale.toInt()
+                        } else {
+                            builder.iconScale = scale
+                        }
+                    }
+                    name == "iconback" -> {
+                        // TODO: handle packs with multiple masks
+                        addImgsTo(parseXml, builder.iconBacks)
+                    }
+                    name == "iconmask" -> {
+                        addImgsTo(parseXml, builder.iconMasks)
+                    }
+                    name == "iconupon" -> {
+                        addImgsTo(parseXml, builder.iconUpons)
+                    }
+                    name == "config" -> {
+                        val onlyMaskLegacy = parseXml["onlyMaskLegacy"]
+                        if (!TextUtils.isEmpty(onlyMaskLegacy)) {
+                            builder.onlyMaskLegacy = onlyMaskLegacy!!.toBoolean()
+                        }
+                    }
+                }
+            }
+        }
+        return builder
+    }
+
+    /**
+     * index 에 보관된 mask 정보를 packMask 에 설정하는 함수
+     */
+    private fun applyMask(index: AppFilterIndex) {
+        packMask.iconScale = if (index.iconScaleRes != 0) {
+            packResources.getDimension(index.iconScaleRes)
+        } else {
+            index.iconScale
+        }
+        packMask.onlyMaskLegacy = index.onlyMaskLegacy
+        index.iconBacks.mapTo(packMask.iconBackEntries) { Entry(it) }
+        index.iconMasks.mapTo(packMask.iconMaskEntries) { Entry(it) }
+        index.iconUpons.mapTo(packMask.iconUponEntries) { Entry(it) }
+    }
+
+    /**
+     * 주어진 xml 에 Attribute 가 img 인것이 있으면 목록에 추가하는 함수
      * @param parseXml 검색할 XmlPullParser
-     * @param collection 얻은 img attribute 내용을 추가할 entry
+     * @param collection 얻은 img attribute 내용(drawable 이름)을 추가할 목록
      */
-    private fun addImgsTo(parseXml: XmlPullParser, collection: MutableCollection<Entry>) {
+    private fun addImgsTo(parseXml: XmlPullParser, collection: MutableCollection<String>) {
         for (i in (0 until parseXml.attributeCount)) {
             if (parseXml.getAttributeName(i).startsWith("img")) {
                 val drawableName = parseXml.getAttributeValue(i)
                 if (!TextUtils.isEmpty(drawableName)) {
-                    collection.add(Entry(drawableName))
+                    collection.add(drawableName)
                 }
             }
         }
@@ -281,21 +315,22 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         val component = launcherActivityInfo.componentName
 
         val assets = packResources.assets
+        val appFilter = appFilter
         try {
-            if (packCalendars.containsKey(component)) {
-                val inputStream = assets.open("theme/$packPackageName/icons/"+packCalendars[component]+Calendar.getInstance().get(Calendar.DAY_OF_MONTH)+".png")
+            val calendarPrefix = appFilter.getDrawableName(component, AppFilterIndex.TYPE_CALENDAR)
+            if (calendarPrefix != null) {
+                val inputStream = assets.open("theme/$packPackageName/icons/"+calendarPrefix+Calendar.getInstance().get(Calendar.DAY_OF_MONTH)+".png")
                 return Drawable.createFromStream(inputStream, null).mutate()
             }
-            if (packDirectClocks.containsKey(component)) {
-                val drawableId = customGetDrawableId(packDirectClocks[component] ?: throw java.lang.IllegalStateException("packDirectClocks is null"))
-                if (drawableId != 0) {
-                    val drawable = AdaptiveIconCompat.wrap(packResources.getDrawableForDensity(drawableId, iconDpi)
-                            ?: packResources.getDrawable(drawableId))
-                    return CustomClock.getClock(context, drawable, customPackClocks[drawableId], iconDpi).mutate()
-                }
+            val drawableId = appFilter.getResourceId(component, AppFilterIndex.TYPE_CLOCK)
+            if (drawableId != 0) {
+                val drawable = AdaptiveIconCompat.wrap(packResources.getDrawableForDensity(drawableId, iconDpi)
+                        ?: packResources.getDrawable(drawableId))
+                return CustomClock.getClock(context, drawable, appFilter.getClockMetadata(drawableId), iconDpi).mutate()
             }
-            if (customPackComponents.containsKey(component)) {
-                val inputStream = assets.open("theme/$packPackageName/icons/"+customPackComponents[component]+".png")
+            val drawableName = appFilter.getDrawableName(component, AppFilterIndex.TYPE_ITEM)
+            if (drawableName != null) {
+                val inputStream = assets.open("theme/$packPackageName/icons/$drawableName.png")
                 return Drawable.createFromStream(inputStream, null).mutate()
             }
         } catch (e: java.lang.Exception) {
@@ -308,7 +343,9 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
             Log.e("IconPackImpl getIcon ", "componentname is "+component+" baseicon height is "+baseIcon.intrinsicHeight+" width is "+baseIcon.intrinsicWidth)
             val icon = packMask.getIcon(context, baseIcon, launcherActivityInfo.componentName)
             if (prefs.adaptifyIconPacks) {
-                val gen = AdaptiveIconGenerator(context, icon)
+                val key = ComponentKey(launcherActivityInfo.componentName, launcherActivityInfo.user)
+                val gen = AdaptiveIconGenerator(context, icon,
+                        AdaptiveIconAnalysisCache.getSourceKey(context, key, "$packPackageName@$packVersion/mask"))
                 return gen.result
             }
             return icon
@@ -353,15 +390,14 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         ensureInitialLoadComplete()
 
         if (Utilities.ATLEAST_OREO && itemInfo.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-            val component = itemInfo.targetComponent
-            if (packDirectClocks.containsKey(component)) {
-                val id: Int = customGetDrawableId(packDirectClocks[component] ?: throw java.lang.IllegalStateException("packDirectClocks is null"))
-                if (id != 0) {
-                    val drawable = AdaptiveIconCompat.wrap(packResources.getDrawable(id))
-                    return drawableFactory.customClockDrawer.drawIcon(icon, drawable, customPackClocks[id])
-                }
+            val component = itemInfo.targetComponent ?: return null
+            val appFilter = appFilter
+            val id = appFilter.getResourceId(component, AppFilterIndex.TYPE_CLOCK)
+            if (id != 0) {
+                val drawable = AdaptiveIconCompat.wrap(packResources.getDrawable(id))
+                return drawableFactory.customClockDrawer.drawIcon(icon, drawable, appFilter.getClockMetadata(id))
             }
-            if (customPackComponents.containsKey(component)) {
+            if (appFilter.getDrawableName(component, AppFilterIndex.TYPE_ITEM) != null) {
                 return FastBitmapDrawable(icon)
             }
         }
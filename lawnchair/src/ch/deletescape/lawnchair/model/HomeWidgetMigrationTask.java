@@ -39,6 +39,7 @@ import com.android.launcher3.Utilities;
 import com.android.launcher3.Workspace;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.model.GridSizeMigrationTask;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.provider.RestoreDbTask;
 import com.android.launcher3.util.GridOccupancy;
 import com.android.launcher3.widget.custom.CustomWidgetParser;
@@ -130,6 +131,7 @@ public class HomeWidgetMigrationTask extends GridSizeMigrationTask {
         if (!needsMigration) return;
         // Save the pref so we only run migration once
         prefs.edit().putBoolean(PREF_MIGRATION_STATUS, true).commit();
+        WorkspaceSnapshot.invalidate(context);
 
         HashSet<String> validPackages = getValidPackages(context);
 
@@ -352,7 +352,7 @@ open class LawnchairEventPredictor(private val context: Context): CustomAppPredi
     inner class CountRankedArrayPreference(private val prefs: SharedPreferences, private val key: String, private val maxSize: Int = -1, private val delimiter: String = ";") {
         private var list = load()
 
-        fun getRanked() : Set<String> = list.distinct().sortedBy { value -> list.count { it == value } }.reversed().toSet()
+        fun getRanked() : Set<String> = rank(list)
 
         fun add(string: String) {
             list.add(0, string)
@@ -439,5 +439,11 @@ open class LawnchairEventPredictor(private val context: Context): CustomAppPredi
         // Our definition of "Recently"
         @JvmStatic
         val DURATION_RECENTLY = TimeUnit.MINUTES.toMillis(2)
+
+        /**
+         * Distinct values of [list] ordered by how often they occur, most frequent first
+         */
+        @JvmStatic
+        fun rank(list: List<String>): Set<String> = list.distinct().sortedBy { value -> list.count { it == value } }.reversed().toSet()
     }
 }
\ No newline at end of file
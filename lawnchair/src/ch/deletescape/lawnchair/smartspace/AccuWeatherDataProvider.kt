@@ -50,7 +50,17 @@ class AccuWeatherDataProvider(controller: LawnchairSmartspaceController) :
         } else null
     }
 
-    private var keyCache = Pair("", "")
+    // The location key of a city never changes, keep it across restarts to save a search request
+    private val devicePrefs = Utilities.getDevicePrefs(context)
+    private var keyCache: Pair<String, String>
+        get() = Pair(devicePrefs.getString(KEY_CACHE_CITY, "")!!,
+                devicePrefs.getString(KEY_CACHE_LOCATION, "")!!)
+        set(value) {
+            devicePrefs.edit()
+                    .putString(KEY_CACHE_CITY, value.first)
+                    .putString(KEY_CACHE_LOCATION, value.second)
+                    .apply()
+        }
 
     init {
         prefs.addOnPreferenceChangeListener(this, "pref_weather_city")
@@ -71,6 +81,7 @@ class AccuWeatherDataProvider(controller: LawnchairSmartspaceController) :
             if (keyCache.first != prefs.weatherCity) {
                 AccuRetrofitServiceFactory.accuSearchRetrofitService.search(prefs.weatherCity, context.locale.language).enqueue(object : Callback<List<AccuLocationGSon>> {
                     override fun onFailure(call: Call<List<AccuLocationGSon>>, t: Throwable) {
+                        onRefreshFailed()
                         updateData(null, null)
                     }
 
@@ -90,6 +101,7 @@ class AccuWeatherDataProvider(controller: LawnchairSmartspaceController) :
     private fun loadWeather() {
         AccuRetrofitServiceFactory.accuWeatherRetrofitService.getLocalWeather(keyCache.second, context.locale.language).enqueue(object : Callback<AccuLocalWeatherGSon> {
             override fun onFailure(call: Call<AccuLocalWeatherGSon>, t: Throwable) {
+                onRefreshFailed()
                 updateData(null, null)
             }
 
@@ -120,6 +132,9 @@ class AccuWeatherDataProvider(controller: LawnchairSmartspaceController) :
     }
 
     companion object {
+        private const val KEY_CACHE_CITY = "pref_accu_location_key_city"
+        private const val KEY_CACHE_LOCATION = "pref_accu_location_key"
+
         // reference: http://apidev.accuweather.com/developers/weatherIcons
         private val ID_MAP = mapOf(
                 1 to WeatherIconManager.Icon.CLEAR,
@@ -23,8 +23,6 @@ import android.content.*
 import android.content.pm.PackageManager
 import android.graphics.Bitmap
 import android.net.Uri
-import android.os.Handler
-import android.os.HandlerThread
 import android.provider.Settings
 import android.service.notification.StatusBarNotification
 import android.support.annotation.Keep
@@ -62,6 +60,8 @@ class LawnchairSmartspaceController(val context: Context) {
 
     var requiresSetup = false
 
+    val scheduler by lazy { SmartspaceScheduler(context) }
+
     init {
         onProviderChanged()
         initStockProviders()
@@ -274,6 +274,11 @@ class LawnchairSmartspaceController(val context: Context) {
             currentCard = card
             weatherUpdateListener?.invoke(weather)
             cardUpdateListener?.invoke(this, card)
+            onDataUpdated()
+        }
+
+        protected open fun onDataUpdated() {
+
         }
 
         open fun forceUpdate() {
@@ -311,36 +316,45 @@ class LawnchairSmartspaceController(val context: Context) {
         }
     }
 
+    /**
+     * Provider refreshed every [timeout] by the shared [SmartspaceScheduler]. [updateData] runs on
+     * the scheduler thread, providers loading data asynchronously finish the refresh by calling
+     * [updateData] with the result, [onRefreshFailed] or [onRefreshSkipped].
+     */
     abstract class PeriodicDataProvider(controller: LawnchairSmartspaceController) : DataProvider(controller) {
 
-        private val handlerThread = HandlerThread(this::class.java.simpleName).apply { if (!isAlive) start() }
-        private val handler = Handler(handlerThread.looper)
-        private val update = ::periodicUpdate
+        private val scheduler get() = controller.scheduler
 
         open val timeout = TimeUnit.MINUTES.toMillis(30)
 
         override fun startListening() {
             super.startListening()
-            handler.post(update)
-        }
-
-        private fun periodicUpdate() {
-            try {
-                updateData()
-            } catch (e: Exception) {
-                Log.d("PeriodicDataProvider", "failed to update data", e)
-            }
-            handler.postDelayed(update, timeout)
+            scheduler.register(this)
         }
 
         override fun stopListening() {
             super.stopListening()
-            handlerThread.quit()
+            scheduler.unregister(this)
         }
 
         protected fun updateNow() {
-            handler.removeCallbacks(update)
-            handler.post(update)
+            scheduler.refreshNow(this)
+        }
+
+        override fun onDataUpdated() {
+            scheduler.onRefreshFinished(this, true)
+        }
+
+        protected fun onRefreshFailed() {
+            scheduler.onRefreshFinished(this, false)
+        }
+
+        /**
+         * Ends the refresh without data when it can't succeed until the user acts, for example
+         * because a permission is missing. The next refresh happens after the normal [timeout].
+         */
+        protected fun onRefreshSkipped() {
+            scheduler.onRefreshFinished(this, false, skipped = true)
         }
 
         open fun updateData() {
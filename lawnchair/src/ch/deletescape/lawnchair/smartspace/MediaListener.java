@@ -16,6 +16,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import ch.deletescape.lawnchair.smartspace.NotificationsManager.Delta;
 import ch.deletescape.lawnchair.smartspace.NotificationsManager.OnChangeListener;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.notification.NotificationListener;
@@ -182,8 +183,21 @@ public class MediaListener extends MediaController.Callback
     }
 
     @Override
-    public void onNotificationsChanged() {
-        onActiveSessionsChanged(null);
+    public void onNotificationsChanged(Delta delta) {
+        // Only media notifications change whether a session is shown
+        if (delta.isFullRefresh() || !delta.getRemoved().isEmpty()
+                || containsMediaNotification(delta.getAdded())) {
+            onActiveSessionsChanged(null);
+        }
+    }
+
+    private boolean containsMediaNotification(List<StatusBarNotification> notifications) {
+        for (StatusBarNotification notif : notifications) {
+            if (notif.getNotification().extras.containsKey(Notification.EXTRA_MEDIA_SESSION)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public class MediaInfo {
@@ -39,11 +39,13 @@ class NotificationUnreadProvider(controller: LawnchairSmartspaceController) :
     private var flowerpotLoaded = false
     private var flowerpotApps: FlowerpotApps? = null
     private val tmpKey = PackageUserKey(null, null)
+    // Notifications which could be shown, updated from the deltas on the main thread
+    private val candidates = LinkedHashMap<String, StatusBarNotification>()
     private var zenModeEnabled = false
         set(value) {
             if (field != value) {
                 field = value
-                onNotificationsChanged()
+                updateCard()
             }
         }
     private val zenModeListener = ZenModeListener(controller.context.contentResolver) {
@@ -58,17 +60,45 @@ class NotificationUnreadProvider(controller: LawnchairSmartspaceController) :
         runOnUiWorkerThread {
             flowerpotApps = Flowerpot.Manager.getInstance(controller.context)
                     .getPot("COMMUNICATION", true)?.apps
-            flowerpotLoaded = true
-            onNotificationsChanged()
+            runOnMainThread {
+                flowerpotLoaded = true
+                candidates.clear()
+                manager.notifications.filter(::isCandidate).associateByTo(candidates) { it.key }
+                updateCard()
+            }
         }
     }
 
-    override fun onNotificationsChanged() {
+    override fun onNotificationsChanged(delta: NotificationsManager.Delta) {
+        if (!flowerpotLoaded) return
+
+        var changed = delta.isFullRefresh
+        if (delta.isFullRefresh) candidates.clear()
+        delta.removed.forEach { if (candidates.remove(it) != null) changed = true }
+        delta.added.forEach {
+            if (isCandidate(it)) {
+                candidates[it.key] = it
+                changed = true
+            } else if (candidates.remove(it.key) != null) {
+                changed = true
+            }
+        }
+        // Most notifications in a burst aren't from communication apps, skip those entirely
+        if (changed) updateCard()
+    }
+
+    private fun updateCard() {
         runOnMainThread {
             updateData(null, getEventCard())
         }
     }
 
+    private fun isCandidate(sbn: StatusBarNotification): Boolean {
+        return !sbn.isOngoing
+               && sbn.notification.priority >= PRIORITY_DEFAULT
+               && isCommunicationApp(sbn)
+    }
+
     private fun isCommunicationApp(sbn: StatusBarNotification): Boolean {
         return tmpKey.updateFromNotification(sbn)
                && flowerpotApps?.packageMatches?.contains(tmpKey) != false
@@ -77,11 +107,7 @@ class NotificationUnreadProvider(controller: LawnchairSmartspaceController) :
     private fun getEventCard(): CardData? {
         if (!flowerpotLoaded) return null
 
-        val sbn = manager.notifications
-                .asSequence()
-                .filter { !it.isOngoing }
-                .filter { it.notification.priority >= PRIORITY_DEFAULT }
-                .filter { isCommunicationApp(it) }
+        val sbn = candidates.values
                 .maxWith(compareBy(
                         { it.notification.priority },
                         { it.notification.`when`})) ?: return null
@@ -18,9 +18,12 @@
 package ch.deletescape.lawnchair.smartspace
 
 import android.os.Looper
+import android.os.SystemClock
 import android.service.notification.StatusBarNotification
+import android.support.annotation.VisibleForTesting
 import ch.deletescape.lawnchair.runOnMainThread
 import ch.deletescape.lawnchair.runOnUiWorkerThread
+import ch.deletescape.lawnchair.uiWorkerHandler
 import com.android.launcher3.LauncherNotifications
 import com.android.launcher3.MainThreadExecutor
 import com.android.launcher3.notification.NotificationKeyData
@@ -31,14 +34,30 @@ import java.util.*
 import java.util.concurrent.Callable
 import java.util.concurrent.ExecutionException
 
+/**
+ * Keeps track of the active notifications for the smartspace providers.
+ *
+ * Changes are collected on the ui worker thread and handed to the main thread in batches of at
+ * most one per frame, so a burst of notifications only results in a single dispatch. Listeners get
+ * what was added and removed in the batch, [notifications] is updated in place.
+ */
 class NotificationsManager private constructor(): NotificationListener.NotificationsChangedListener {
 
     private val bgNotificationsMap = mutableMapOf<String, StatusBarNotification>()
     private val listeners  = mutableListOf<OnChangeListener>()
     private var refreshPending = false
 
-    var notifications = emptyList<StatusBarNotification>()
-        private set
+    // Changes which weren't dispatched yet, only accessed on the worker thread
+    private val pendingAdded = LinkedHashMap<String, StatusBarNotification>()
+    private val pendingRemoved = LinkedHashSet<String>()
+    private var pendingFullRefresh = false
+    private var dispatchScheduled = false
+    private var lastDispatch = 0L
+    private val dispatchRunnable = Runnable { dispatchChanges() }
+
+    private val notificationsMap = LinkedHashMap<String, StatusBarNotification>()
+    val notifications: Collection<StatusBarNotification> = Collections.unmodifiableCollection(
+            notificationsMap.values)
 
     init {
         LauncherNotifications.getInstance().addListener(this)
@@ -63,13 +82,7 @@ class NotificationsManager private constructor(): NotificationListener.Notificat
             val sbn = NotificationListener.getInstanceIfConnected()
                     ?.getNotificationsForKeys(Collections.singletonList(notificationKey))
                     ?.firstOrNull()
-            val key = notificationKey.notificationKey
-            if (sbn != null) {
-                bgNotificationsMap[key] = sbn
-            } else {
-                bgNotificationsMap.remove(key)
-            }
-            onChange()
+            updateNotification(notificationKey.notificationKey, sbn)
         }
     }
 
@@ -77,8 +90,7 @@ class NotificationsManager private constructor(): NotificationListener.Notificat
             removedPackageUserKey: PackageUserKey?,
             notificationKey: NotificationKeyData) {
         runOnUiWorkerThread {
-            bgNotificationsMap.remove(notificationKey.notificationKey)
-            onChange()
+            updateNotification(notificationKey.notificationKey, null)
         }
     }
 
@@ -89,6 +101,25 @@ class NotificationsManager private constructor(): NotificationListener.Notificat
         }
     }
 
+    /**
+     * Records that the notification with [key] was posted or updated to [sbn], or removed if
+     * [sbn] is null. Has to be called on the ui worker thread.
+     */
+    @VisibleForTesting
+    fun updateNotification(key: String, sbn: StatusBarNotification?) {
+        if (sbn != null) {
+            bgNotificationsMap[key] = sbn
+            pendingRemoved.remove(key)
+            pendingAdded[key] = sbn
+        } else if (bgNotificationsMap.remove(key) != null) {
+            pendingAdded.remove(key)
+            pendingRemoved.add(key)
+        } else {
+            return
+        }
+        scheduleDispatch()
+    }
+
     private fun doFullRefresh() {
         if (listeners.isEmpty()) {
             refreshPending = true
@@ -99,24 +130,58 @@ class NotificationsManager private constructor(): NotificationListener.Notificat
         bgNotificationsMap.clear()
         NotificationListener.getInstanceIfConnected()?.activeNotifications
                 ?.associateByTo(bgNotificationsMap) { it.key }
-        onChange()
+        // Everything is sent again, the pending changes are contained in that
+        pendingAdded.clear()
+        pendingRemoved.clear()
+        pendingFullRefresh = true
+        scheduleDispatch()
+    }
+
+    private fun scheduleDispatch() {
+        if (dispatchScheduled) return
+        dispatchScheduled = true
+        // The first change after a quiet period goes out right away, bursts are batched per frame
+        val delay = lastDispatch + FRAME_MS - SystemClock.uptimeMillis()
+        uiWorkerHandler.postDelayed(dispatchRunnable, Math.max(0L, delay))
     }
 
-    private fun onChange() {
-        val notifications = bgNotificationsMap.values.toList()
+    private fun dispatchChanges() {
+        dispatchScheduled = false
+        lastDispatch = SystemClock.uptimeMillis()
+        val fullRefresh = pendingFullRefresh
+        val added = (if (fullRefresh) bgNotificationsMap else pendingAdded).values.toList()
+        val removed = if (fullRefresh) emptyList() else pendingRemoved.toList()
+        pendingFullRefresh = false
+        pendingAdded.clear()
+        pendingRemoved.clear()
+        val delta = Delta(added, removed, fullRefresh)
         runOnMainThread {
-            this.notifications = notifications
-            listeners.forEach(OnChangeListener::onNotificationsChanged)
+            if (fullRefresh) notificationsMap.clear()
+            removed.forEach { notificationsMap.remove(it) }
+            added.forEach { notificationsMap[it.key] = it }
+            listeners.forEach { it.onNotificationsChanged(delta) }
         }
     }
 
+    /**
+     * Changes since the last call to [OnChangeListener.onNotificationsChanged]. [added] contains
+     * new and updated notifications, [removed] the keys of removed ones. If [isFullRefresh] is
+     * set, [added] contains all active notifications and everything else is gone.
+     */
+    class Delta(
+            val added: List<StatusBarNotification>,
+            val removed: List<String>,
+            val isFullRefresh: Boolean)
+
     interface OnChangeListener {
 
-        fun onNotificationsChanged()
+        fun onNotificationsChanged(delta: Delta)
     }
 
     companion object {
 
+        private const val FRAME_MS = 16L
+
         private var INSTANCE: NotificationsManager? = null
 
         @JvmStatic
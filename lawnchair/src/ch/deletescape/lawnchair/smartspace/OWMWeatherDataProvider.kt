@@ -58,12 +58,15 @@ class OWMWeatherDataProvider(controller: LawnchairSmartspaceController) :
         if (prefs.weatherCity == "##Auto") {
             if (!locationAccess) {
                 Utilities.requestLocationPermission(context.lawnchairApp.activityHandler.foregroundActivity)
+                onRefreshSkipped()
                 return
             }
             val locationProvider = locationManager?.getBestProvider(Criteria(), true)
             val location = locationManager?.getLastKnownLocation(locationProvider)
             if (location != null) {
                 owm.getCurrentWeatherByGeoCoordinates(location.latitude, location.longitude, this)
+            } else {
+                onRefreshFailed()
             }
         } else {
             owm.getCurrentWeatherByCityName(prefs.weatherCity, this)
@@ -85,6 +88,7 @@ class OWMWeatherDataProvider(controller: LawnchairSmartspaceController) :
 
     override fun onFailure(throwable: Throwable?) {
         Log.w("OWM", "Updating weather data failed", throwable)
+        onRefreshFailed()
         if (prefs.weatherApiKey == context.getString(R.string.default_owm_key)
                 || throwable?.message == apiKeyError) {
             Toast.makeText(context, R.string.owm_get_your_own_key, Toast.LENGTH_LONG).show()
@@ -0,0 +1,264 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.smartspace
+
+import android.app.Activity
+import android.app.Application
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.PowerManager
+import android.os.SystemClock
+import android.util.Log
+import ch.deletescape.lawnchair.smartspace.LawnchairSmartspaceController.PeriodicDataProvider
+import java.io.PrintWriter
+import java.util.concurrent.TimeUnit
+
+/**
+ * Runs the refreshes of all [PeriodicDataProvider]s on a single shared thread.
+ *
+ * Wakeups are aligned to [ALIGNMENT_MS] slots and every provider due within the slot is refreshed
+ * in the same batch. Failed refreshes are retried with exponential backoff, intervals are
+ * stretched while battery saver is on, and nothing is refreshed while none of our activities is
+ * visible, overdue providers are refreshed as soon as one is started again.
+ */
+class SmartspaceScheduler(private val context: Context) : Application.ActivityLifecycleCallbacks {
+
+    private val thread = HandlerThread("smartspace-scheduler").apply { start() }
+    private val handler = Handler(thread.looper)
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+    // Only changed on the scheduler thread, other threads have to hold the lock to read it
+    private val entries = LinkedHashMap<PeriodicDataProvider, Entry>()
+    private val batchRunnable = Runnable { runBatch() }
+
+    // Assume we are visible until told otherwise, the first refreshes happen while starting up
+    private var startedActivities = 0
+    @Volatile private var foreground = true
+
+    private val powerSaveReceiver = object : BroadcastReceiver() {
+
+        override fun onReceive(context: Context, intent: Intent) {
+            // The stretched intervals are computed when scheduling
+            handler.post(::schedule)
+        }
+    }
+
+    init {
+        (context.applicationContext as Application).registerActivityLifecycleCallbacks(this)
+        context.registerReceiver(powerSaveReceiver,
+                IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED), null, handler)
+    }
+
+    fun register(provider: PeriodicDataProvider) {
+        handler.post {
+            synchronized(entries) { entries[provider] = Entry(provider) }
+            schedule()
+        }
+    }
+
+    fun unregister(provider: PeriodicDataProvider) {
+        handler.post {
+            synchronized(entries) { entries.remove(provider) }?.let {
+                handler.removeCallbacks(it.timeout)
+            }
+            schedule()
+        }
+    }
+
+    /**
+     * Refreshes [provider] as soon as possible, even while in the background.
+     */
+    fun refreshNow(provider: PeriodicDataProvider) {
+        handler.post {
+            val entry = entries[provider] ?: return@post
+            synchronized(entries) { entry.forced = true }
+            schedule()
+        }
+    }
+
+    /**
+     * Called by providers when a refresh finished, possibly asynchronously. Reports without a
+     * refresh in progress are ignored.
+     *
+     * Providers which couldn't refresh for a reason retrying won't fix, like a missing
+     * permission, report a [skipped] refresh. It isn't counted as a failure and the next refresh
+     * happens after the normal interval.
+     */
+    fun onRefreshFinished(provider: PeriodicDataProvider, success: Boolean,
+                          skipped: Boolean = false) {
+        if (Looper.myLooper() != handler.looper) {
+            handler.post { onRefreshFinished(provider, success, skipped) }
+            return
+        }
+        val entry = entries[provider] ?: return
+        if (!entry.pending) return
+        handler.removeCallbacks(entry.timeout)
+        val now = SystemClock.uptimeMillis()
+        synchronized(entries) {
+            entry.pending = false
+            entry.lastFinished = now
+            if (skipped) {
+                entry.failures = 0
+            } else {
+                entry.lastLatency = now - entry.startedAt
+                entry.lastSuccess = success
+                entry.failures = if (success) 0 else entry.failures + 1
+            }
+        }
+        schedule()
+    }
+
+    /**
+     * Returns how long the last refresh of [provider] took in milliseconds, or -1 if it didn't
+     * finish any refresh yet.
+     */
+    fun getLastLatency(provider: PeriodicDataProvider) =
+            synchronized(entries) { entries[provider]?.lastLatency } ?: -1L
+
+    private fun dueAt(entry: Entry): Long {
+        if (entry.forced || entry.lastFinished < 0) return 0
+        if (entry.failures > 0) {
+            val backoff = MIN_BACKOFF_MS shl Math.min(entry.failures - 1, MAX_BACKOFF_SHIFT)
+            return entry.lastFinished + Math.min(backoff, entry.provider.timeout)
+        }
+        val interval = entry.provider.timeout
+        return entry.lastFinished +
+                if (powerManager.isPowerSaveMode) interval * POWER_SAVE_MULTIPLIER else interval
+    }
+
+    private fun schedule() {
+        handler.removeCallbacks(batchRunnable)
+        val waiting = entries.values.filter { !it.pending && (foreground || it.forced) }
+        val due = waiting.map { dueAt(it) }.min() ?: return
+        val now = SystemClock.uptimeMillis()
+        if (due <= now) {
+            handler.post(batchRunnable)
+        } else {
+            // Round up to the next slot so that providers due close together share one wakeup
+            val slot = (due + ALIGNMENT_MS - 1) / ALIGNMENT_MS * ALIGNMENT_MS
+            handler.postAtTime(batchRunnable, slot)
+        }
+    }
+
+    private fun runBatch() {
+        val batchEnd = SystemClock.uptimeMillis() + ALIGNMENT_MS
+        entries.values
+                .filter { !it.pending && (foreground || it.forced) && dueAt(it) < batchEnd }
+                .forEach { refresh(it) }
+        schedule()
+    }
+
+    private fun refresh(entry: Entry) {
+        synchronized(entries) {
+            entry.forced = false
+            entry.pending = true
+            entry.startedAt = SystemClock.uptimeMillis()
+        }
+        handler.postDelayed(entry.timeout, REFRESH_TIMEOUT_MS)
+        try {
+            entry.provider.updateData()
+        } catch (e: Exception) {
+            Log.d(TAG, "failed to update data of ${entry.provider::class.java.simpleName}", e)
+            onRefreshFinished(entry.provider, false)
+        }
+    }
+
+    fun dump(prefix: String, writer: PrintWriter) {
+        writer.println("${prefix}SmartspaceScheduler: foreground=$foreground" +
+                " powerSave=${powerManager.isPowerSaveMode}")
+        val now = SystemClock.uptimeMillis()
+        // Dumps run on a binder thread, copy the state out instead of blocking the scheduler
+        val lines = synchronized(entries) {
+            entries.values.map {
+                "$prefix  ${it.provider::class.java.simpleName}:" +
+                        " lastLatency=${it.lastLatency}ms lastSuccess=${it.lastSuccess}" +
+                        " failures=${it.failures} pending=${it.pending}" +
+                        " dueIn=${Math.max(0L, dueAt(it) - now)}ms"
+            }
+        }
+        lines.forEach { writer.println(it) }
+    }
+
+    override fun onActivityStarted(activity: Activity) {
+        handler.post {
+            startedActivities++
+            if (!foreground) {
+                foreground = true
+                schedule()
+            }
+        }
+    }
+
+    override fun onActivityStopped(activity: Activity) {
+        handler.post {
+            // Activities started before we were created are never counted
+            startedActivities = Math.max(0, startedActivities - 1)
+            foreground = startedActivities > 0
+        }
+    }
+
+    override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {
+
+    }
+
+    override fun onActivityResumed(activity: Activity) {
+
+    }
+
+    override fun onActivityPaused(activity: Activity) {
+
+    }
+
+    override fun onActivitySaveInstanceState(activity: Activity, outState: Bundle?) {
+
+    }
+
+    override fun onActivityDestroyed(activity: Activity) {
+
+    }
+
+    private inner class Entry(val provider: PeriodicDataProvider) {
+
+        var forced = false
+        var pending = false
+        var startedAt = 0L
+        var lastFinished = -1L
+        var lastLatency = -1L
+        var lastSuccess = false
+        var failures = 0
+
+        // Providers which never report back count as failed
+        val timeout = Runnable { onRefreshFinished(provider, false) }
+    }
+
+    companion object {
+
+        private const val TAG = "SmartspaceScheduler"
+
+        private val ALIGNMENT_MS = TimeUnit.MINUTES.toMillis(5)
+        private val MIN_BACKOFF_MS = TimeUnit.MINUTES.toMillis(1)
+        private const val MAX_BACKOFF_SHIFT = 6
+        private val REFRESH_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1)
+        private const val POWER_SAVE_MULTIPLIER = 4
+    }
+}
@@ -24,6 +24,7 @@ import com.android.launcher3.LauncherAppState
 import okhttp3.OkHttpClient
 import retrofit2.Retrofit
 import retrofit2.converter.gson.GsonConverterFactory
+import java.util.concurrent.TimeUnit
 
 
 object AccuRetrofitServiceFactory {
@@ -61,7 +62,10 @@ object AccuRetrofitServiceFactory {
         if (okHttpClient == null) {
             synchronized(AccuRetrofitServiceFactory::class.java) {
                 if (okHttpClient == null) {
-                    okHttpClient = OkHttpClientBuilder().addQueryParam(ACCU_APIKEY).addQueryParam(ACCU_DETAILS).addQueryParam(ACCU_METRIC).build(LauncherAppState.getInstanceNoCreate().context)
+                    okHttpClient = OkHttpClientBuilder().addQueryParam(ACCU_APIKEY).addQueryParam(ACCU_DETAILS).addQueryParam(ACCU_METRIC)
+                            // Forecasts only change every few minutes, poll the cache in between
+                            .defaultMaxAge(TimeUnit.MINUTES.toMillis(15))
+                            .build(LauncherAppState.getInstanceNoCreate().context)
                 }
             }
         }
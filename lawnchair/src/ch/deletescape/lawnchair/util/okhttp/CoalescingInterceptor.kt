@@ -0,0 +1,109 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.util.okhttp
+
+import okhttp3.HttpUrl
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.BufferedSource
+import okio.ForwardingSource
+import okio.buffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Holds back GET requests while an identical one is in flight, until the response of the first
+ * one has been read. The followers then usually get the freshly cached response instead of going
+ * to the network themselves, if the response can't be cached they are still sent as usual.
+ */
+class CoalescingInterceptor : Interceptor {
+
+    private val inFlight = HashMap<HttpUrl, CountDownLatch>()
+
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+        if (request.method != "GET") return chain.proceed(request)
+
+        val url = request.url
+        var latch: CountDownLatch? = null
+        while (latch == null) {
+            var pending: CountDownLatch? = null
+            synchronized(inFlight) {
+                pending = inFlight[url]
+                if (pending == null) {
+                    latch = CountDownLatch(1).also { inFlight[url] = it }
+                }
+            }
+            val waitFor = pending ?: break
+            if (!waitFor.await(WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                // The first request is taking too long, don't wait for it any longer
+                return chain.proceed(request)
+            }
+        }
+        val ownLatch = latch!!
+        val release = {
+            synchronized(inFlight) {
+                if (inFlight[url] === ownLatch) inFlight.remove(url)
+            }
+            ownLatch.countDown()
+        }
+        val response = try {
+            chain.proceed(request)
+        } catch (e: Exception) {
+            release()
+            throw e
+        }
+        val body = response.body ?: return response.also { release() }
+        return response.newBuilder().body(ReleasingBody(body, release)).build()
+    }
+
+    /**
+     * Calls [release] once the body is closed, which is also when the cache entry is committed.
+     */
+    private class ReleasingBody(private val body: ResponseBody, release: () -> Unit) : ResponseBody() {
+
+        private val source = object : ForwardingSource(body.source()) {
+
+            private var released = false
+
+            override fun close() {
+                try {
+                    super.close()
+                } finally {
+                    if (!released) {
+                        released = true
+                        release()
+                    }
+                }
+            }
+        }.buffer()
+
+        override fun contentType(): MediaType? = body.contentType()
+
+        override fun contentLength() = body.contentLength()
+
+        override fun source(): BufferedSource = source
+    }
+
+    companion object {
+
+        private const val WAIT_TIMEOUT_MS = 10_000L
+    }
+}
@@ -18,20 +18,46 @@
 package ch.deletescape.lawnchair.util.okhttp
 
 import android.content.Context
+import android.support.annotation.VisibleForTesting
 import ch.deletescape.lawnchair.lawnchairPrefs
+import okhttp3.Cache
+import okhttp3.Interceptor
 import okhttp3.OkHttpClient
+import okhttp3.Response
 import okhttp3.logging.HttpLoggingInterceptor
+import java.io.File
+import java.util.concurrent.TimeUnit
 
+/**
+ * Builds clients derived from one shared client, so that all of them use the same connection
+ * pool, dispatcher and disk backed HTTP cache. The cache revalidates stale responses with their
+ * ETag or Last-Modified, and concurrent identical GET requests are coalesced into one network
+ * request (see [CoalescingInterceptor]).
+ */
 class OkHttpClientBuilder {
-    private val builder = OkHttpClient.Builder()
     private val queryParams = mutableMapOf<String, String>()
+    private var defaultMaxAge = 0L
 
     fun addQueryParam(param: Pair<String, String>): OkHttpClientBuilder {
         queryParams.putAll(arrayOf(param))
         return this
     }
 
+    /**
+     * Lets responses which don't specify how long they can be cached be reused for [maxAgeMs].
+     */
+    fun defaultMaxAge(maxAgeMs: Long): OkHttpClientBuilder {
+        defaultMaxAge = maxAgeMs
+        return this
+    }
+
     fun build(context: Context?): OkHttpClient {
+        return build(context, context?.let { getSharedClient(it) })
+    }
+
+    @VisibleForTesting
+    fun build(context: Context?, base: OkHttpClient?): OkHttpClient {
+        val builder = base?.newBuilder() ?: OkHttpClient.Builder()
         if (queryParams.isNotEmpty()) {
             builder.addInterceptor {
                 val urlBuilder = it.request().url.newBuilder()
@@ -48,6 +74,46 @@ class OkHttpClientBuilder {
                 HttpLoggingInterceptor.Level.BASIC
             }
         })
+        if (defaultMaxAge > 0) {
+            builder.addNetworkInterceptor(DefaultMaxAgeInterceptor(defaultMaxAge))
+        }
         return builder.build()
     }
-}
\ No newline at end of file
+
+    private class DefaultMaxAgeInterceptor(maxAgeMs: Long) : Interceptor {
+
+        private val cacheControl = "max-age=${TimeUnit.MILLISECONDS.toSeconds(maxAgeMs)}"
+
+        override fun intercept(chain: Interceptor.Chain): Response {
+            val response = chain.proceed(chain.request())
+            if (chain.request().method != "GET" || !response.isSuccessful
+                    || response.header("Cache-Control") != null
+                    || response.header("Expires") != null) {
+                return response
+            }
+            return response.newBuilder().header("Cache-Control", cacheControl).build()
+        }
+    }
+
+    companion object {
+
+        private const val CACHE_DIR = "http"
+        private const val CACHE_SIZE = 10L * 1024 * 1024
+
+        private var sharedClient: OkHttpClient? = null
+
+        @Synchronized
+        fun getSharedClient(context: Context): OkHttpClient {
+            return sharedClient ?: newBaseClient(File(context.applicationContext.cacheDir,
+                    CACHE_DIR)).also { sharedClient = it }
+        }
+
+        @VisibleForTesting
+        fun newBaseClient(cacheDir: File): OkHttpClient {
+            return OkHttpClient.Builder()
+                    .cache(Cache(cacheDir, CACHE_SIZE))
+                    .addInterceptor(CoalescingInterceptor())
+                    .build()
+        }
+    }
+}
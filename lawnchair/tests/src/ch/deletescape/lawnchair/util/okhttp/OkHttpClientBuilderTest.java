@@ -0,0 +1,136 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.util.okhttp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Tests for the caching and request coalescing of {@link OkHttpClientBuilder}.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class OkHttpClientBuilderTest {
+
+    private MockWebServer mServer;
+    private File mCacheDir;
+    private OkHttpClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mCacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "http-test-" + System.nanoTime());
+        mClient = new OkHttpClientBuilder()
+                .defaultMaxAge(TimeUnit.MINUTES.toMillis(15))
+                .build(null, OkHttpClientBuilder.Companion.newBaseClient(mCacheDir));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mClient.cache().delete();
+    }
+
+    @Test
+    public void testDefaultMaxAgeServesFromCache() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("weather"));
+
+        assertEquals("weather", get("/weather"));
+        assertEquals("weather", get("/weather"));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testRevalidatesWithETag() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("weather")
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "no-cache"));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        assertEquals("weather", get("/weather"));
+        assertEquals("weather", get("/weather"));
+        assertEquals(2, mServer.getRequestCount());
+
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+        RecordedRequest revalidation = mServer.takeRequest();
+        assertEquals("\"v1\"", revalidation.getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testNoStoreIsRespected() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("a").setHeader("Cache-Control", "no-store"));
+        mServer.enqueue(new MockResponse().setBody("b").setHeader("Cache-Control", "no-store"));
+
+        assertEquals("a", get("/location"));
+        assertEquals("b", get("/location"));
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testCoalescesConcurrentRequests() throws Exception {
+        mServer.enqueue(new MockResponse().setBody("weather")
+                .setBodyDelay(500, TimeUnit.MILLISECONDS));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Callable<String> call = () -> get("/weather");
+            Future<?>[] results = new Future[4];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = executor.submit(call);
+            }
+            for (Future<?> result : results) {
+                assertEquals("weather", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private String get(String path) throws Exception {
+        Request request = new Request.Builder().url(mServer.url(path)).build();
+        try (Response response = mClient.newCall(request).execute()) {
+            return response.body().string();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.android.launcher3.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.launcher3.LauncherSettings.Favorites;
+import com.android.launcher3.model.GridSizeMigrationTask.DbEntry;
+import com.android.launcher3.util.GridOccupancy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the time budget of {@link PlacementSolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PlacementSolverTest {
+
+    /**
+     * On a 3x2 grid a 2x2 widget and three icons only all fit if the widget shrinks to 1x2. The
+     * greedy placement keeps the widget at full size and loses an icon.
+     */
+    private static ArrayList<DbEntry> widgetAndThreeIcons() {
+        ArrayList<DbEntry> items = new ArrayList<>();
+        items.add(entry(Favorites.ITEM_TYPE_APPWIDGET, 0, 0, 2, 2, 2));
+        items.add(entry(Favorites.ITEM_TYPE_APPLICATION, 2, 0, 1, 1, 1));
+        items.add(entry(Favorites.ITEM_TYPE_APPLICATION, 2, 1, 1, 1, 1));
+        items.add(entry(Favorites.ITEM_TYPE_APPLICATION, 1, 1, 1, 1, 1));
+        return items;
+    }
+
+    @Test
+    public void testSearchWithinBudget() {
+        PlacementSolver solver = new PlacementSolver(3, 2, new GridOccupancy(3, 2),
+                widgetAndThreeIcons(), 0, false, Long.MAX_VALUE);
+        solver.find();
+
+        assertFalse(solver.timedOut);
+        assertEquals(0, solver.lowestWeightLoss, 0);
+        assertEquals(0, solver.optimalityLoss, 0);
+        assertEquals(4, solver.finalPlacedItems.size());
+    }
+
+    @Test
+    public void testGreedyFallbackAfterDeadline() {
+        PlacementSolver solver = new PlacementSolver(3, 2, new GridOccupancy(3, 2),
+                widgetAndThreeIcons(), 0, false, SystemClock.uptimeMillis() - 1);
+        solver.find();
+
+        assertTrue(solver.timedOut);
+        // The widget keeps its size and one of the icons doesn't fit anymore
+        assertEquals(1, solver.lowestWeightLoss, 0);
+        assertEquals(3, solver.finalPlacedItems.size());
+        // Everything fits in the free area, so the lost icon counts fully
+        assertEquals(1, solver.optimalityLoss, 0);
+    }
+
+    private static DbEntry entry(int type, int x, int y, int spanX, int spanY, float weight) {
+        DbEntry entry = new DbEntry();
+        entry.itemType = type;
+        entry.cellX = x;
+        entry.cellY = y;
+        entry.spanX = spanX;
+        entry.spanY = spanY;
+        entry.minSpanX = 1;
+        entry.minSpanY = 1;
+        entry.weight = weight;
+        return entry;
+    }
+}
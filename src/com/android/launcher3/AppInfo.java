@@ -24,6 +24,7 @@ import android.content.pm.LauncherActivityInfo;
 import android.os.Build;
 import android.os.Process;
 import android.os.UserHandle;
+import com.android.launcher3.allapps.AppSortKey;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.util.ComponentKey;
@@ -41,6 +42,9 @@ public class AppInfo extends ItemInfoWithIcon {
 
     public CharSequence originalTitle;
 
+    //모든 앱 목록에서 정렬에 리용되는 열쇠, AppInfoComparator가 갱신한다
+    public AppSortKey sortKey;
+
     public AppInfo() {
         itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
     }
@@ -16,6 +16,8 @@
 
 package com.android.launcher3;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -40,11 +42,14 @@ import android.text.TextUtils;
 import android.util.Log;
 import ch.deletescape.lawnchair.iconpack.LawnchairIconProvider;
 import ch.deletescape.lawnchair.override.AppInfoProvider;
+import com.android.launcher3.LauncherSettings.Favorites;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.graphics.BitmapInfo;
 import com.android.launcher3.graphics.BitmapRenderer;
+import com.android.launcher3.graphics.IconCodec;
 import com.android.launcher3.graphics.LauncherIcons;
+import com.android.launcher3.model.BgDataModel;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.InstantAppResolver;
@@ -53,15 +58,35 @@ import com.android.launcher3.util.Provider;
 import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Reads of cached entries don't take any lock. Entries are only written (and missing entries only
+ * loaded from the DB) while holding the lock stripe of their package and user, so loading the
+ * icons of one app never blocks lookups or loads for other apps. Entries are never modified once
+ * they have been published to the in-memory cache, except for their access time.
+ *
+ * The in-memory cache is bounded: high-res and low-res entries are accounted in two tiers with
+ * separate byte budgets, and the least recently used entries are evicted when a tier grows past
+ * its budget or when the system asks to trim memory. Evicted entries are reloaded from the DB.
  */
 public class IconCache {
 
@@ -77,16 +102,45 @@ public class IconCache {
 
     private static final int LOW_RES_SCALE_FACTOR = 5;
 
+    // Number of locks guarding cache writes, must be a power of two.
+    private static final int LOCK_STRIPES = 16;
+
     @Thunk static final Object ICON_UPDATE_TOKEN = new Object();
 
+    // Number of rendered icons written to the DB in one transaction.
+    private static final int ICON_UPDATE_BATCH_SIZE = 16;
+
+    private static final int RENDER_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Renders icons for {@link IconUpdateTask}. Each job obtains its own {@link LauncherIcons}, so
+     * the normalizer and shadow generator state is never shared between the threads.
+     */
+    private static final ThreadPoolExecutor RENDER_EXECUTOR = new ThreadPoolExecutor(
+            RENDER_THREADS, RENDER_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "launcher-icon-render"));
+
+    static {
+        RENDER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     public static class CacheEntry extends BitmapInfo {
         public CharSequence title = "";
         public CharSequence originalTitle = null;
         public CharSequence contentDescription = "";
         public boolean isLowResIcon;
+
+        // Bytes accounted to the entry's tier, 0 for entries that are never evicted
+        int byteCount;
+        volatile long lastAccess;
     }
 
-    private final HashMap<UserHandle, BitmapInfo> mDefaultIcons = new HashMap<>();
+    private final ConcurrentHashMap<UserHandle, BitmapInfo> mDefaultIcons =
+            new ConcurrentHashMap<>();
     @Thunk final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
 
     private final Context mContext;
@@ -95,11 +149,24 @@ public class IconCache {
     private final AppInfoProvider mInfoProvider;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ConcurrentHashMap<ComponentKey, CacheEntry> mCache =
+            new ConcurrentHashMap<>(INITIAL_ICON_CACHE_CAPACITY);
+    private final ReentrantLock[] mLocks = new ReentrantLock[LOCK_STRIPES];
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mContentionCount = new AtomicLong();
+
+    private final Object mTrimLock = new Object();
+    private final AtomicLong mHighResBytes = new AtomicLong();
+    private final AtomicLong mLowResBytes = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+    private volatile long mMaxHighResBytes;
+    private volatile long mMaxLowResBytes;
     private final InstantAppResolver mInstantAppResolver;
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
+    private final IconCodec mIconCodec;
 
     @Thunk final Handler mWorkerHandler;
 
@@ -108,6 +175,9 @@ public class IconCache {
 
     private int mPendingIconRequestCount = 0;
 
+    // Only accessed on the worker thread
+    private final ArrayList<IconUpdateTask> mIconUpdateTasks = new ArrayList<>();
+
     public IconCache(Context context, InvariantDeviceProfile inv) {
         mContext = context;
         mPackageManager = context.getPackageManager();
@@ -116,10 +186,22 @@ public class IconCache {
         mInstantAppResolver = InstantAppResolver.newInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context, inv.iconBitmapSize);
+        mIconDb.enableWriteBehind(LauncherModel.getWorkerLooper());
+        mIconCodec = new IconCodec(context);
 
         mInfoProvider = AppInfoProvider.Companion.getInstance(context);
         mIconProvider = IconProvider.newInstance(context);
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new ReentrantLock();
+        }
+
+        Resources res = context.getResources();
+        long memoryClassBytes = (long) ((ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() * 1024 * 1024;
+        int highResPercent = res.getInteger(R.integer.config_iconCacheHighResPercent);
+        int lowResPercent = res.getInteger(R.integer.config_iconCacheLowResPercent);
+        setMaxSize(memoryClassBytes * highResPercent / 100, memoryClassBytes * lowResPercent / 100);
 
         mLowResOptions = new BitmapFactory.Options();
         // Always prefer RGB_565 config for low res. If the bitmap has transparency, it will
@@ -208,15 +290,155 @@ public class IconCache {
         }
     }
 
+    /**
+     * Acquires and returns the lock guarding the entries of {@param packageName} for
+     * {@param user}. The caller must release it.
+     */
+    private ReentrantLock lock(String packageName, UserHandle user) {
+        int hash = 31 * packageName.hashCode() + user.hashCode();
+        ReentrantLock lock = mLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+        lock(lock);
+        return lock;
+    }
+
+    private void lock(ReentrantLock lock) {
+        if (!lock.tryLock()) {
+            mContentionCount.incrementAndGet();
+            lock.lock();
+        }
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : mLocks) {
+            lock(lock);
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+            mLocks[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the cached entry for {@param key} if it can be used as is.
+     */
+    private CacheEntry getCachedEntry(ComponentKey key, boolean useLowResIcon) {
+        CacheEntry entry = mCache.get(key);
+        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+            return null;
+        }
+        entry.lastAccess = SystemClock.uptimeMillis();
+        return entry;
+    }
+
+    /**
+     * Publishes {@param entry} to the in-memory cache and evicts old entries if its tier is over
+     * budget. Must be called while holding the lock of the package.
+     */
+    private void putEntry(ComponentKey key, CacheEntry entry, boolean evictable) {
+        entry.byteCount = evictable && entry.icon != null && !isDefaultIcon(entry.icon, key.user)
+                ? entry.icon.getAllocationByteCount() : 0;
+        entry.lastAccess = SystemClock.uptimeMillis();
+        CacheEntry old = mCache.put(key, entry);
+        if (old != null) {
+            getTierBytes(old).addAndGet(-old.byteCount);
+        }
+        long maxBytes = entry.isLowResIcon ? mMaxLowResBytes : mMaxHighResBytes;
+        if (getTierBytes(entry).addAndGet(entry.byteCount) > maxBytes) {
+            // Trim a bit further than needed so that the next few entries don't trigger another
+            // pass over the whole cache.
+            trimToSize(mMaxHighResBytes - mMaxHighResBytes / 8,
+                    mMaxLowResBytes - mMaxLowResBytes / 8);
+        }
+    }
+
+    /**
+     * Must be called while holding the lock of the package.
+     */
+    private void removeEntry(ComponentKey key) {
+        CacheEntry old = mCache.remove(key);
+        if (old != null) {
+            getTierBytes(old).addAndGet(-old.byteCount);
+        }
+    }
+
+    private AtomicLong getTierBytes(CacheEntry entry) {
+        return entry.isLowResIcon ? mLowResBytes : mHighResBytes;
+    }
+
+    /**
+     * Evicts the least recently used entries until each tier fits in the given size.
+     */
+    private void trimToSize(long maxHighResBytes, long maxLowResBytes) {
+        synchronized (mTrimLock) {
+            if (mHighResBytes.get() <= maxHighResBytes && mLowResBytes.get() <= maxLowResBytes) {
+                return;
+            }
+
+            // Snapshot the access times, they keep changing while we sort.
+            ArrayList<EvictionCandidate> candidates = new ArrayList<>();
+            for (Map.Entry<ComponentKey, CacheEntry> e : mCache.entrySet()) {
+                if (e.getValue().byteCount > 0) {
+                    candidates.add(new EvictionCandidate(e.getKey(), e.getValue()));
+                }
+            }
+            Collections.sort(candidates, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+            for (EvictionCandidate candidate : candidates) {
+                CacheEntry entry = candidate.entry;
+                AtomicLong tierBytes = getTierBytes(entry);
+                long maxBytes = entry.isLowResIcon ? maxLowResBytes : maxHighResBytes;
+                // The entry might have been replaced in the meantime, only evict the one we saw.
+                if (tierBytes.get() > maxBytes && mCache.remove(candidate.key, entry)) {
+                    tierBytes.addAndGet(-entry.byteCount);
+                    mEvictionCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the memory budgets of the high-res and low-res tiers, evicting entries if needed.
+     */
+    public void setMaxSize(long maxHighResBytes, long maxLowResBytes) {
+        mMaxHighResBytes = maxHighResBytes;
+        mMaxLowResBytes = maxLowResBytes;
+        trimToSize(maxHighResBytes, maxLowResBytes);
+    }
+
+    /**
+     * Shrinks the in-memory cache according to {@param level}, see
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // We are likely to be killed next, everything can be reloaded from the DB.
+            trimToSize(0, 0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // Bound items keep their own bitmaps, the cached high-res copies aren't needed.
+            trimToSize(0, mMaxLowResBytes / 2);
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(mMaxHighResBytes / 2, mMaxLowResBytes);
+        }
+    }
+
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandle user) {
-        mCache.remove(new ComponentKey(componentName, user));
+    public void remove(ComponentName componentName, UserHandle user) {
+        ReentrantLock lock = lock(componentName.getPackageName(), user);
+        try {
+            removeEntry(new ComponentKey(componentName, user));
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Remove any records for the supplied package name from memory.
+     * Must be called while holding the lock of the package.
      */
     private void removeFromMemCacheLocked(String packageName, UserHandle user) {
         HashSet<ComponentKey> forDeletion = new HashSet<>();
@@ -227,16 +449,17 @@ public class IconCache {
             }
         }
         for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
+            removeEntry(condemned);
         }
     }
 
     /**
      * Updates the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void updateIconsForPkg(String packageName, UserHandle user) {
-        removeIconsForPkg(packageName, user);
+    public void updateIconsForPkg(String packageName, UserHandle user) {
+        ReentrantLock lock = lock(packageName, user);
         try {
+            removeIconsForPkg(packageName, user);
             PackageInfo info = mPackageManager.getPackageInfo(packageName,
                     PackageManager.GET_UNINSTALLED_PACKAGES);
             long userSerial = mUserManager.getSerialNumberForUser(user);
@@ -245,29 +468,47 @@ public class IconCache {
             }
         } catch (NameNotFoundException e) {
             Log.d(TAG, "Package not found", e);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * Removes the entries related to the given package in memory and persistent DB.
      */
-    public synchronized void removeIconsForPkg(String packageName, UserHandle user) {
-        removeFromMemCacheLocked(packageName, user);
-        long userSerial = mUserManager.getSerialNumberForUser(user);
-        mIconDb.delete(
-                IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
-                new String[]{packageName + "/%", Long.toString(userSerial)});
+    public void removeIconsForPkg(String packageName, UserHandle user) {
+        ReentrantLock lock = lock(packageName, user);
+        try {
+            removeFromMemCacheLocked(packageName, user);
+            long userSerial = mUserManager.getSerialNumberForUser(user);
+            mIconDb.delete(
+                    IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
+                    new String[]{packageName + "/%", Long.toString(userSerial)});
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void removeAllIcons() {
+    public void removeAllIcons() {
         Preconditions.assertWorkerThread();
-        mCache.clear();
-        mIconDb.delete(null, null);
+        lockAll();
+        try {
+            for (ComponentKey key : mCache.keySet()) {
+                removeEntry(key);
+            }
+            mIconDb.delete(null, null);
+        } finally {
+            unlockAll();
+        }
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
         // Remove all active icon update tasks.
         mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
+        for (IconUpdateTask task : mIconUpdateTasks) {
+            task.cancel();
+        }
+        mIconUpdateTasks.clear();
 
         mIconProvider.updateSystemStateString(mContext);
         for (UserHandle user : mUserManager.getUserProfiles()) {
@@ -306,8 +547,10 @@ public class IconCache {
         }
 
         HashSet<Integer> itemsToRemove = new HashSet<>();
-        Stack<LauncherActivityInfo> appsToUpdate = new Stack<>();
+        ArrayList<LauncherActivityInfo> appsToUpdate = new ArrayList<>();
 
+        // Rows which are still pending would otherwise look missing or outdated
+        mIconDb.flush();
         Cursor c = null;
         try {
             c = mIconDb.query(
@@ -369,10 +612,19 @@ public class IconCache {
 
         // Insert remaining apps.
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
-            Stack<LauncherActivityInfo> appsToAdd = new Stack<>();
-            appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, pkgInfoMap,
-                    appsToAdd, appsToUpdate).scheduleNext();
+            IconUpdateTask task = new IconUpdateTask(userSerial, user, pkgInfoMap);
+            for (LauncherActivityInfo app : appsToUpdate) {
+                task.addApp(app, true /* replace existing */);
+            }
+            for (LauncherActivityInfo app : componentMap.values()) {
+                // We do not check the pkgInfoMap when generating the apps to add. Although every
+                // app should have package info, this is not guaranteed by the api
+                if (pkgInfoMap.containsKey(app.getComponentName().getPackageName())) {
+                    task.addApp(app, false /* replace existing */);
+                }
+            }
+            mIconUpdateTasks.add(task);
+            task.start();
         }
     }
 
@@ -382,19 +634,31 @@ public class IconCache {
      *                        the memory. This is useful then the previous bitmap was created using
      *                        old data.
      */
-    @Thunk synchronized void addIconToDBAndMemCache(LauncherActivityInfo app,
+    @Thunk void addIconToDBAndMemCache(LauncherActivityInfo app,
             PackageInfo info, long userSerial, boolean replaceExisting) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = null;
-        if (!replaceExisting) {
-            entry = mCache.get(key);
-            // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
-            }
+        ReentrantLock lock = lock(key.componentName.getPackageName(), key.user);
+        try {
+            CacheEntry entry = renderEntry(key, app, replaceExisting);
+            putEntry(key, entry, true);
+            addIconToDB(newContentValues(entry, app), app.getComponentName(), info, userSerial);
+        } finally {
+            lock.unlock();
         }
-        if (entry == null) {
-            entry = new CacheEntry();
+    }
+
+    /**
+     * Creates a new entry for {@param app}, without adding it to the cache. Can be called from
+     * any thread.
+     */
+    private CacheEntry renderEntry(ComponentKey key, LauncherActivityInfo app,
+            boolean replaceExisting) {
+        CacheEntry entry = new CacheEntry();
+        CacheEntry existing = replaceExisting ? null : mCache.get(key);
+        // We can't reuse the entry if the high-res icon is not present.
+        if (existing != null && !existing.isLowResIcon && existing.icon != null) {
+            existing.applyTo(entry);
+        } else {
             LauncherIcons li = LauncherIcons.obtain(mContext);
             li.createBadgedIconBitmap(getFullResIcon(app), app.getUser(),
                     app.getApplicationInfo().targetSdkVersion).applyTo(entry);
@@ -402,12 +666,7 @@ public class IconCache {
         }
         entry.title = mInfoProvider.getTitle(app);
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(key, entry);
-
-        Bitmap lowResIcon = generateLowResIcon(entry.icon);
-        ContentValues values = newContentValues(entry.icon, lowResIcon, entry.color,
-                entry.title.toString(), app.getApplicationInfo().packageName);
-        addIconToDB(values, app.getComponentName(), info, userSerial);
+        return entry;
     }
 
     /**
@@ -416,11 +675,20 @@ public class IconCache {
      */
     private void addIconToDB(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial) {
+        addVersionInfo(values, key, info, userSerial);
+        mIconDb.insertOrReplaceDeferred(getRowKey(key, userSerial), values);
+    }
+
+    private static String getRowKey(ComponentName key, long userSerial) {
+        return key.flattenToString() + "#" + userSerial;
+    }
+
+    private static void addVersionInfo(ContentValues values, ComponentName key,
+            PackageInfo info, long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.insertOrReplace(values);
     }
 
     /**
@@ -463,7 +731,7 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
+    public void updateTitleAndIcon(AppInfo application) {
         CacheEntry entry = cacheLocked(application.componentName,
                 Provider.<LauncherActivityInfo>of(null),
                 application.user, false, application.usingLowResIcon);
@@ -475,7 +743,7 @@ public class IconCache {
     /**
      * Fill in {@param info} with the icon and label for {@param activityInfo}
      */
-    public synchronized void getTitleAndIcon(ItemInfoWithIcon info,
+    public void getTitleAndIcon(ItemInfoWithIcon info,
             LauncherActivityInfo activityInfo, boolean useLowResIcon) {
         // If we already have activity info, no need to use package icon
         getTitleAndIcon(info, Provider.of(activityInfo), false, useLowResIcon);
@@ -485,7 +753,7 @@ public class IconCache {
      * Fill in {@param info} with the icon and label. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ItemInfoWithIcon info, boolean useLowResIcon) {
+    public void getTitleAndIcon(ItemInfoWithIcon info, boolean useLowResIcon) {
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
         if (info.getTargetComponent() == null) {
@@ -502,7 +770,7 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    private synchronized void getTitleAndIcon(
+    private void getTitleAndIcon(
             @NonNull ItemInfoWithIcon infoInOut,
             @NonNull Provider<LauncherActivityInfo> activityInfoProvider,
             boolean usePkgIcon, boolean useLowResIcon) {
@@ -514,7 +782,7 @@ public class IconCache {
     /**
      * Fill in {@param infoInOut} with the corresponding icon and label.
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             PackageItemInfo infoInOut, boolean useLowResIcon) {
         CacheEntry entry = getEntryForPackageLocked(
                 infoInOut.packageName, infoInOut.user, useLowResIcon);
@@ -528,11 +796,16 @@ public class IconCache {
         ((entry.icon == null) ? getDefaultIcon(info.user) : entry).applyTo(info);
     }
 
-    public synchronized BitmapInfo getDefaultIcon(UserHandle user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public BitmapInfo getDefaultIcon(UserHandle user) {
+        BitmapInfo info = mDefaultIcons.get(user);
+        if (info == null) {
+            // Callers compare against the default bitmap, so only the first one created is kept.
+            BitmapInfo existing = mDefaultIcons.putIfAbsent(user, info = makeDefaultIcon(user));
+            if (existing != null) {
+                info = existing;
+            }
         }
-        return mDefaultIcons.get(user);
+        return info;
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandle user) {
@@ -541,50 +814,46 @@ public class IconCache {
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Cache hits don't take any lock, misses are loaded while holding the lock of the package.
      */
     protected CacheEntry cacheLocked(
             @NonNull ComponentName componentName,
             @NonNull Provider<LauncherActivityInfo> infoProvider,
             UserHandle user, boolean usePackageIcon, boolean useLowResIcon) {
-        long t1 = System.currentTimeMillis();
         Preconditions.assertWorkerThread();
         ComponentKey cacheKey = new ComponentKey(componentName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        long t2 = System.currentTimeMillis();
-
-        Log.w("IconCache-cache", "step1: " + (t2 - t1));
+        CacheEntry entry = getCachedEntry(cacheKey, useLowResIcon);
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+            return entry;
+        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
-            long t3 = System.currentTimeMillis();
-            Log.w("IconCache-cache", "step1: " + (t3 - t2));
+        ReentrantLock lock = lock(componentName.getPackageName(), user);
+        try {
+            // Another thread might have loaded the entry while we were waiting for the lock.
+            entry = getCachedEntry(cacheKey, useLowResIcon);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                return entry;
+            }
+            mMissCount.incrementAndGet();
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             LauncherActivityInfo info = null;
             boolean providerFetchedOnce = false;
 
             if (!getEntryFromDB(cacheKey, entry, useLowResIcon) || DEBUG_IGNORE_CACHE) {
-                long t4 = System.currentTimeMillis();
                 info = infoProvider.get();
                 providerFetchedOnce = true;
 
-                Log.w("IconCache-cache", "step2: " + (t4 - t3));
-
                 if (info != null) {
-                    long t5 = System.currentTimeMillis();
                     LauncherIcons li = LauncherIcons.obtain(mContext);
-                    long t0 = System.currentTimeMillis();
                     li.createBadgedIconBitmap(getFullResIcon(info), info.getUser(),
                             info.getApplicationInfo().targetSdkVersion).applyTo(entry);
                     li.recycle();
-                    long t6 = System.currentTimeMillis();
-                    Log.w("IconCache-cache", "step3: " + (t6 - t5));
                 } else {
-                    long t7 = System.currentTimeMillis();
                     if (usePackageIcon) {
-                        long t8 = System.currentTimeMillis();
                         CacheEntry packageEntry = getEntryForPackageLocked(
                                 componentName.getPackageName(), user, false);
                         if (packageEntry != null) {
@@ -593,72 +862,73 @@ public class IconCache {
                             packageEntry.applyTo(entry);
                             entry.title = packageEntry.title;
                             entry.contentDescription = packageEntry.contentDescription;
-                            long t9 = System.currentTimeMillis();
-                            Log.w("IconCache-cache", "step4: " + (t9 - t8));
                         }
                     }
                     if (entry.icon == null) {
                         if (DEBUG) Log.d(TAG, "using default icon for " +
                                 componentName.toShortString());
                         getDefaultIcon(user).applyTo(entry);
-                        long t10 = System.currentTimeMillis();
-                        Log.w("IconCache-cache", "step5: " + (t10 - t7));
                     }
                 }
             }
 
             if (TextUtils.isEmpty(entry.title)) {
-                long t11 = System.currentTimeMillis();
                 if (info == null && !providerFetchedOnce) {
                     info = infoProvider.get();
                     providerFetchedOnce = true;
-                    long t12 = System.currentTimeMillis();
-                    Log.w("IconCache-cache", "step6: " + (t12 - t11));
                 }
                 if (info != null) {
                     entry.title = info.getLabel();
                     entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
-                    long t12 = System.currentTimeMillis();
-                    Log.w("IconCache-cache", "step7: " + (t12 - t11));
                 }
             }
 
             entry.originalTitle = entry.title;
+            // Only publish the entry once it is filled out, readers don't synchronize.
+            putEntry(cacheKey, entry, true);
+            return entry;
+        } finally {
+            lock.unlock();
         }
-
-        return entry;
     }
 
-    public synchronized void clear() {
+    public void clear() {
         Preconditions.assertWorkerThread();
-        mIconDb.clear();
+        lockAll();
+        try {
+            mIconDb.clear();
+        } finally {
+            unlockAll();
+        }
     }
 
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
      */
-    public synchronized void cachePackageInstallInfo(String packageName, UserHandle user,
+    public void cachePackageInstallInfo(String packageName, UserHandle user,
             Bitmap icon, CharSequence title) {
-        removeFromMemCacheLocked(packageName, user);
-
-        ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        ReentrantLock lock = lock(packageName, user);
+        try {
+            // This also drops the previous package entry, so a new one is always created.
+            removeFromMemCacheLocked(packageName, user);
 
-        // For icon caching, do not go through DB. Just update the in-memory entry.
-        if (entry == null) {
-            entry = new CacheEntry();
-        }
-        if (!TextUtils.isEmpty(title)) {
-            entry.title = title;
-        }
-        if (icon != null) {
-            LauncherIcons li = LauncherIcons.obtain(mContext);
-            li.createIconBitmap(icon).applyTo(entry);
-            li.recycle();
-        }
-        if (!TextUtils.isEmpty(title) && entry.icon != null) {
-            mCache.put(cacheKey, entry);
+            // For icon caching, do not go through DB. Just update the in-memory entry.
+            CacheEntry entry = new CacheEntry();
+            if (!TextUtils.isEmpty(title)) {
+                entry.title = title;
+            }
+            if (icon != null) {
+                LauncherIcons li = LauncherIcons.obtain(mContext);
+                li.createIconBitmap(icon).applyTo(entry);
+                li.recycle();
+            }
+            if (!TextUtils.isEmpty(title) && entry.icon != null) {
+                // Not persisted, so this entry must not be evicted.
+                putEntry(getPackageKey(packageName, user), entry, false);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -669,15 +939,25 @@ public class IconCache {
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
     private CacheEntry getEntryForPackageLocked(String packageName, UserHandle user,
             boolean useLowResIcon) {
         Preconditions.assertWorkerThread();
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        CacheEntry entry = getCachedEntry(cacheKey, useLowResIcon);
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+            return entry;
+        }
 
-        if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
+        ReentrantLock lock = lock(packageName, user);
+        try {
+            entry = getCachedEntry(cacheKey, useLowResIcon);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                return entry;
+            }
+            mMissCount.incrementAndGet();
             entry = new CacheEntry();
             boolean entryUpdated = true;
 
@@ -722,13 +1002,74 @@ public class IconCache {
 
             // Only add a filled-out entry to the cache
             if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                putEntry(cacheKey, entry, true);
             }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of lookups served from the in-memory cache.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Number of lookups which had to load the entry from the DB or the package manager.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Number of times a write had to wait for another thread holding the same lock stripe.
+     */
+    public long getContentionCount() {
+        return mContentionCount.get();
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "IconCache: entries=" + mCache.size()
+                + " hits=" + getHitCount()
+                + " misses=" + getMissCount()
+                + " contention=" + getContentionCount()
+                + " evictions=" + mEvictionCount.get());
+        writer.println(prefix + "  highResBytes=" + mHighResBytes.get() + "/" + mMaxHighResBytes
+                + " lowResBytes=" + mLowResBytes.get() + "/" + mMaxLowResBytes);
+    }
+
+    private static class EvictionCandidate {
+        final ComponentKey key;
+        final CacheEntry entry;
+        final long lastAccess;
+
+        EvictionCandidate(ComponentKey key, CacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
         }
-        return entry;
     }
 
     private boolean getEntryFromDB(ComponentKey cacheKey, CacheEntry entry, boolean lowRes) {
+        long userSerial = mUserManager.getSerialNumberForUser(cacheKey.user);
+        ContentValues pending = mIconDb.getPendingValues(
+                getRowKey(cacheKey.componentName, userSerial));
+        if (pending != null) {
+            entry.icon = IconCodec.decode(pending.getAsByteArray(
+                    lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON),
+                    lowRes ? mLowResOptions : mHighResOptions);
+            entry.color = ColorUtils.setAlphaComponent(
+                    pending.getAsInteger(IconDB.COLUMN_ICON_COLOR), 255);
+            entry.isLowResIcon = lowRes;
+            entry.title = pending.getAsString(IconDB.COLUMN_LABEL);
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(
+                    entry.title, cacheKey.user);
+            return true;
+        }
+
         Cursor c = null;
         try {
             c = mIconDb.query(
@@ -736,7 +1077,7 @@ public class IconCache {
                         IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL},
                 IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{cacheKey.componentName.flattenToString(),
-                        Long.toString(mUserManager.getSerialNumberForUser(cacheKey.user))});
+                        Long.toString(userSerial)});
             if (c.moveToNext()) {
                 entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : mHighResOptions);
                 // Set the alpha to be 255, so that we never have a wrong color
@@ -787,60 +1128,176 @@ public class IconCache {
     }
 
     /**
-     * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfo list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * Re-renders a set of icons in parallel on {@link #RENDER_EXECUTOR}. The rendered icons are
+     * written to the DB and the memory cache in batches on the worker thread, and the model is
+     * notified after every batch so that icons update progressively. Apps on the hotseat and the
+     * first screen are rendered first, followed by the rest of the workspace.
      */
-    @Thunk class SerializedIconUpdateTask implements Runnable {
+    @Thunk class IconUpdateTask implements Runnable {
         private final long mUserSerial;
+        private final UserHandle mUser;
         private final HashMap<String, PackageInfo> mPkgInfoMap;
-        private final Stack<LauncherActivityInfo> mAppsToAdd;
-        private final Stack<LauncherActivityInfo> mAppsToUpdate;
-        private final HashSet<String> mUpdatedPackages = new HashSet<>();
+        private final ArrayList<UpdateRequest> mRequests = new ArrayList<>();
+
+        private final ConcurrentLinkedQueue<UpdateRequest> mRendered =
+                new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mPendingCount = new AtomicInteger();
+        private final AtomicInteger mUnwrittenCount = new AtomicInteger();
+        private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+        private volatile boolean mCancelled;
+
+        private long mStartTime;
+        private int mWrittenCount;
 
-        @Thunk SerializedIconUpdateTask(long userSerial, HashMap<String, PackageInfo> pkgInfoMap,
-                Stack<LauncherActivityInfo> appsToAdd,
-                Stack<LauncherActivityInfo> appsToUpdate) {
+        @Thunk IconUpdateTask(long userSerial, UserHandle user,
+                HashMap<String, PackageInfo> pkgInfoMap) {
             mUserSerial = userSerial;
+            mUser = user;
             mPkgInfoMap = pkgInfoMap;
-            mAppsToAdd = appsToAdd;
-            mAppsToUpdate = appsToUpdate;
         }
 
+        public void addApp(LauncherActivityInfo app, boolean replaceExisting) {
+            mRequests.add(new UpdateRequest(app, replaceExisting));
+        }
+
+        public void start() {
+            Preconditions.assertWorkerThread();
+            mStartTime = SystemClock.uptimeMillis();
+            assignPriorities();
+            // Stable sort, so updates stay ahead of additions with the same priority
+            Collections.sort(mRequests, (a, b) -> Integer.compare(a.priority, b.priority));
+
+            mPendingCount.set(mRequests.size());
+            for (UpdateRequest request : mRequests) {
+                RENDER_EXECUTOR.execute(() -> render(request));
+            }
+        }
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        private void assignPriorities() {
+            HashMap<ComponentName, Integer> priorities = new HashMap<>();
+            BgDataModel dataModel = LauncherModel.sBgDataModel;
+            synchronized (dataModel) {
+                long firstScreenId = dataModel.workspaceScreens.isEmpty()
+                        ? -1 : dataModel.workspaceScreens.get(0);
+                for (ItemInfo item : dataModel.itemsIdMap) {
+                    ComponentName cn = item.getTargetComponent();
+                    if (cn == null || !mUser.equals(item.user)) {
+                        continue;
+                    }
+                    boolean firstPage = item.container == Favorites.CONTAINER_HOTSEAT
+                            || (item.container == Favorites.CONTAINER_DESKTOP
+                            && item.screenId == firstScreenId);
+                    int priority = firstPage ? 0 : 1;
+                    Integer existing = priorities.get(cn);
+                    if (existing == null || existing > priority) {
+                        priorities.put(cn, priority);
+                    }
+                }
+            }
+            for (UpdateRequest request : mRequests) {
+                Integer priority = priorities.get(request.app.getComponentName());
+                request.priority = priority == null ? 2 : priority;
+            }
+        }
+
+        /**
+         * Called on a render thread.
+         */
+        private void render(UpdateRequest request) {
+            try {
+                if (mCancelled) {
+                    return;
+                }
+                LauncherActivityInfo app = request.app;
+                ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
+                request.entry = renderEntry(key, app, request.replaceExisting);
+                request.values = newContentValues(request.entry, app);
+                addVersionInfo(request.values, app.getComponentName(),
+                        mPkgInfoMap.get(app.getComponentName().getPackageName()), mUserSerial);
+                mRendered.add(request);
+                mUnwrittenCount.incrementAndGet();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to render icon for " + request.app.getComponentName(), e);
+            } finally {
+                boolean done = mPendingCount.decrementAndGet() == 0;
+                if ((done || mUnwrittenCount.get() >= ICON_UPDATE_BATCH_SIZE)
+                        && mWriteScheduled.compareAndSet(false, true)) {
+                    mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN,
+                            SystemClock.uptimeMillis() + 1);
+                }
+            }
+        }
+
+        /**
+         * Writes the icons rendered so far, called on the worker thread.
+         */
         @Override
         public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                LauncherActivityInfo app = mAppsToUpdate.pop();
-                String pkg = app.getComponentName().getPackageName();
-                PackageInfo info = mPkgInfoMap.get(pkg);
-                addIconToDBAndMemCache(app, info, mUserSerial, true /*replace existing*/);
-                mUpdatedPackages.add(pkg);
-
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify model.
-                    LauncherAppState.getInstance(mContext).getModel().onPackageIconsUpdated(
-                            mUpdatedPackages, mUserManager.getUserForSerialNumber(mUserSerial));
-                }
+            mWriteScheduled.set(false);
+            if (mCancelled) {
+                return;
+            }
 
-                // Let it run one more time.
-                scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                LauncherActivityInfo app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(app.getComponentName().getPackageName());
-                // We do not check the mPkgInfoMap when generating the mAppsToAdd. Although every
-                // app should have package info, this is not guaranteed by the api
-                if (info != null) {
-                    addIconToDBAndMemCache(app, info, mUserSerial, false /*replace existing*/);
+            ArrayList<UpdateRequest> batch = new ArrayList<>();
+            ArrayList<ContentValues> values = new ArrayList<>();
+            UpdateRequest request;
+            while ((request = mRendered.poll()) != null) {
+                mUnwrittenCount.decrementAndGet();
+                batch.add(request);
+                values.add(request.values);
+            }
+            // Older deferred writes must not overwrite this batch
+            mIconDb.flush();
+            mIconDb.insertOrReplace(values);
+
+            HashSet<String> updatedPackages = new HashSet<>();
+            for (UpdateRequest r : batch) {
+                ComponentKey key = new ComponentKey(r.app.getComponentName(), r.app.getUser());
+                ReentrantLock lock = lock(key.componentName.getPackageName(), key.user);
+                try {
+                    putEntry(key, r.entry, true);
+                } finally {
+                    lock.unlock();
+                }
+                if (r.replaceExisting) {
+                    updatedPackages.add(key.componentName.getPackageName());
                 }
+            }
+            mWrittenCount += batch.size();
+
+            if (!updatedPackages.isEmpty()) {
+                LauncherAppState.getInstance(mContext).getModel().onPackageIconsUpdated(
+                        updatedPackages, mUser);
+            }
 
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+            if (mPendingCount.get() == 0 && mRendered.isEmpty()) {
+                mIconUpdateTasks.remove(this);
+                if (DEBUG) {
+                    Log.d(TAG, "Updated " + mWrittenCount + "/" + mRequests.size() + " icons in "
+                            + (SystemClock.uptimeMillis() - mStartTime) + "ms");
                 }
+            } else if (DEBUG) {
+                Log.d(TAG, "Updated " + mWrittenCount + "/" + mRequests.size() + " icons");
             }
         }
+    }
+
+    private static class UpdateRequest {
+        final LauncherActivityInfo app;
+        final boolean replaceExisting;
+        int priority;
+
+        // Set on the render thread, published through the rendered queue
+        CacheEntry entry;
+        ContentValues values;
 
-        public void scheduleNext() {
-            mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN, SystemClock.uptimeMillis() + 1);
+        UpdateRequest(LauncherActivityInfo app, boolean replaceExisting) {
+            this.app = app;
+            this.replaceExisting = replaceExisting;
         }
     }
 
@@ -883,11 +1340,16 @@ public class IconCache {
         }
     }
 
+    private ContentValues newContentValues(CacheEntry entry, LauncherActivityInfo app) {
+        return newContentValues(entry.icon, generateLowResIcon(entry.icon), entry.color,
+                entry.title.toString(), app.getApplicationInfo().packageName);
+    }
+
     private ContentValues newContentValues(Bitmap icon, Bitmap lowResIcon, int iconColor,
             String label, String packageName) {
         ContentValues values = new ContentValues();
-        values.put(IconDB.COLUMN_ICON, Utilities.flattenBitmap(icon));
-        values.put(IconDB.COLUMN_ICON_LOW_RES, Utilities.flattenBitmap(lowResIcon));
+        values.put(IconDB.COLUMN_ICON, mIconCodec.encode(icon));
+        values.put(IconDB.COLUMN_ICON_LOW_RES, mIconCodec.encode(lowResIcon));
         values.put(IconDB.COLUMN_ICON_COLOR, iconColor);
 
         values.put(IconDB.COLUMN_LABEL, label);
@@ -908,7 +1370,7 @@ public class IconCache {
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
         byte[] data = c.getBlob(iconIndex);
         try {
-            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            return IconCodec.decode(data, options);
         } catch (Exception e) {
             return null;
         }
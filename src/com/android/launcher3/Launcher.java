@@ -93,6 +93,7 @@ import com.android.launcher3.allapps.AllAppsContainerView;
 import com.android.launcher3.allapps.AllAppsRecyclerView;
 import com.android.launcher3.allapps.AllAppsTransitionController;
 import com.android.launcher3.allapps.DiscoveryBounce;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 import com.android.launcher3.badge.BadgeInfo;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherAppsCompatVO;
@@ -2010,6 +2011,7 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
         }
+        mIconCache.onTrimMemory(level);
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.onTrimMemory(level);
         }
@@ -2274,6 +2276,66 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
         workspace.requestLayout();
     }
 
+    /**
+     * Bind the items read from the workspace snapshot. Unlike {@link #bindItems} this never
+     * writes to the database or touches the widget host, since the items are only shown until
+     * the workspace is loaded: colliding items are skipped, widgets are bound as placeholders
+     * and folders can't be opened.
+     */
+    @Override
+    public void bindSnapshotItems(List<ItemInfo> items) {
+        Workspace workspace = mWorkspace;
+        for (ItemInfo item : items) {
+            if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT &&
+                    mHotseat == null) {
+                continue;
+            }
+
+            final View view;
+            switch (item.itemType) {
+                case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                case LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT: {
+                    view = createShortcut((ShortcutInfo) item);
+                    break;
+                }
+                case LauncherSettings.Favorites.ITEM_TYPE_FOLDER: {
+                    view = FolderIcon.fromXml(R.layout.folder_icon, this,
+                            (ViewGroup) workspace.getChildAt(workspace.getCurrentPage()),
+                            (FolderInfo) item);
+                    // Opening a folder updates its options
+                    view.setOnClickListener(null);
+                    break;
+                }
+                case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                case LauncherSettings.Favorites.ITEM_TYPE_CUSTOM_APPWIDGET: {
+                    LauncherAppWidgetInfo info = (LauncherAppWidgetInfo) item;
+                    if (info.providerName == null) {
+                        continue;
+                    }
+                    PendingAppWidgetHostView widget =
+                            new PendingAppWidgetHostView(this, info, mIconCache, true);
+                    // Clicks would start the restore flow for the widget id
+                    widget.setOnClickListener(null);
+                    prepareAppWidget(widget, info);
+                    view = widget;
+                    break;
+                }
+                default:
+                    continue;
+            }
+
+            if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                CellLayout cl = workspace.getScreenWithId(item.screenId);
+                if (cl != null && cl.isOccupied(item.cellX, item.cellY)) {
+                    continue;
+                }
+            }
+            workspace.addInScreenFromBind(view, item);
+        }
+        workspace.requestLayout();
+    }
+
     /**
      * Add the views for a widget to the workspace.
      */
@@ -2800,6 +2862,8 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
         }
 
         mModel.dumpState(prefix, fd, writer, args);
+        LocalSearchIndex.getInstance(this).dump(prefix, writer);
+        mIconCache.dump(prefix, writer);
 
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
@@ -6,6 +6,7 @@ import android.app.backup.BackupDataOutput;
 import android.os.ParcelFileDescriptor;
 
 import com.android.launcher3.logging.FileLog;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.provider.RestoreDbTask;
 
 public class LauncherBackupAgent extends BackupAgent {
@@ -32,5 +33,6 @@ public class LauncherBackupAgent extends BackupAgent {
     @Override
     public void onRestoreFinished() {
         RestoreDbTask.setPending(this, true);
+        WorkspaceSnapshot.invalidate(this);
     }
 }
@@ -53,6 +53,7 @@ import com.android.launcher3.model.PackageInstallStateChangedTask;
 import com.android.launcher3.model.PackageUpdatedTask;
 import com.android.launcher3.model.ShortcutsChangedTask;
 import com.android.launcher3.model.UserLockStateChangedTask;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.provider.LauncherDbUtils;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
@@ -75,6 +76,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -122,6 +124,9 @@ public class LauncherModel extends BroadcastReceiver
     // < only access in worker thread >
     private final AllAppsList mBgAllAppsList;
 
+    // Whether a refresh of all widgets is already queued on the worker thread
+    private final AtomicBoolean mFullWidgetRefreshPending = new AtomicBoolean();
+
     /**
      * All the static data should be accessed on the background thread, A lock should be acquired
      * on this object when accessing any data from this model.
@@ -149,6 +154,7 @@ public class LauncherModel extends BroadcastReceiver
         void clearPendingBinds();
         void startBinding();
         void bindItems(List<ItemInfo> shortcuts, boolean forceAnimateIcons);
+        void bindSnapshotItems(List<ItemInfo> items);
         void bindScreens(ArrayList<Long> orderedScreenIds);
         void finishFirstPageBind(ViewOnDrawExecutor executor);
         void finishBindingItems(int pageBoundFirst);
@@ -310,6 +316,7 @@ public class LauncherModel extends BroadcastReceiver
                     sBgDataModel.workspaceScreens.clear();
                     sBgDataModel.workspaceScreens.addAll(screensCopy);
                 }
+                WorkspaceSnapshot.scheduleWrite(context, sBgDataModel);
             }
         };
         runOnWorkerThread(r);
@@ -682,11 +689,22 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     public void refreshAndBindWidgetsAndShortcuts(@Nullable final PackageUserKey packageUser) {
+        if (packageUser == null) {
+            // Provider changes arrive once per package during batch updates, a single pending
+            // full refresh picks all of them up.
+            if (mFullWidgetRefreshPending.getAndSet(true)) {
+                return;
+            }
+        }
         enqueueModelUpdateTask(new BaseModelUpdateTask() {
             @Override
             public void execute(LauncherAppState app, BgDataModel dataModel, AllAppsList apps) {
-                dataModel.widgetsModel.update(app, packageUser);
-                bindUpdatedWidgets(dataModel);
+                if (packageUser == null) {
+                    mFullWidgetRefreshPending.set(false);
+                }
+                if (dataModel.widgetsModel.update(app, packageUser)) {
+                    bindUpdatedWidgets(dataModel);
+                }
             }
         });
     }
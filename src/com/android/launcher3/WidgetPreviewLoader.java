@@ -1,5 +1,6 @@
 package com.android.launcher3;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -21,13 +22,15 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.UserHandle;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.LruCache;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.ShortcutConfigActivityInfo;
@@ -43,29 +46,32 @@ import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WidgetPreviewLoader {
 
     private static final String TAG = "WidgetPreviewLoader";
     private static final boolean DEBUG = false;
 
+    // Previews are rendered on a small pool of its own, so that scrolling the widgets list doesn't
+    // compete with other background work for the shared executors.
+    private static final int PREVIEW_THREADS = 2;
+
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
-    /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
-     */
-    @Thunk final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    // Previews are shared between the cache and the cells, so they are never recycled or reused
+    // for decoding. Guarded by itself.
+    private final LruCache<WidgetCacheKey, Bitmap> mMemoryCache;
+
+    private final ThreadPoolExecutor mPreviewExecutor;
+    private final AtomicLong mRequestSequence = new AtomicLong();
 
     private final Context mContext;
     private final IconCache mIconCache;
@@ -73,7 +79,7 @@ public class WidgetPreviewLoader {
     private final AppWidgetManagerCompat mWidgetManager;
     private final CacheDb mDb;
 
-    private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
+    @Thunk final Handler mMainHandler = new Handler(Looper.getMainLooper());
     @Thunk final Handler mWorkerHandler;
 
     public WidgetPreviewLoader(Context context, IconCache iconCache) {
@@ -83,27 +89,62 @@ public class WidgetPreviewLoader {
         mUserManager = UserManagerCompat.getInstance(context);
         mDb = new CacheDb(context);
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        int maxBytes = (int) ((long) memoryClass * 1024 * 1024
+                * context.getResources().getInteger(R.integer.config_widgetPreviewCachePercent)
+                / 100);
+        mMemoryCache = new LruCache<WidgetCacheKey, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(WidgetCacheKey key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+
+        mPreviewExecutor = new ThreadPoolExecutor(PREVIEW_THREADS, PREVIEW_THREADS,
+                1, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), r -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "widget-preview"));
+        mPreviewExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
-     * called on UI thread
+     * Loads the widget preview from memory, the DB, or by rendering it on the preview threads.
+     * Requests with a lower {@param priority} run first, the widgets list uses the position of
+     * the cell. Must be called on UI thread.
      *
      * @return a request id which can be used to cancel the request.
      */
     public CancellationSignal getPreview(WidgetItem item, int previewWidth,
-            int previewHeight, WidgetCell caller) {
+            int previewHeight, WidgetCell caller, int priority) {
+        Preconditions.assertUIThread();
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
 
-        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
-
         CancellationSignal signal = new CancellationSignal();
-        signal.setOnCancelListener(task);
+        Bitmap cached;
+        synchronized (mMemoryCache) {
+            cached = mMemoryCache.get(key);
+        }
+        if (cached != null) {
+            caller.applyPreview(cached);
+            return signal;
+        }
+
+        PreviewLoadRequest request = new PreviewLoadRequest(key, item, previewWidth,
+                previewHeight, caller, priority, mRequestSequence.getAndIncrement());
+        signal.setOnCancelListener(request);
+        mPreviewExecutor.execute(request);
         return signal;
     }
 
+    public CancellationSignal getPreview(WidgetItem item, int previewWidth,
+            int previewHeight, WidgetCell caller) {
+        return getPreview(item, previewWidth, previewHeight, caller, 0);
+    }
+
     /**
      * The DB holds the generated previews for various components. Previews can also have different
      * sizes (landscape vs portrait).
@@ -159,6 +200,14 @@ public class WidgetPreviewLoader {
         synchronized(mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        synchronized (mMemoryCache) {
+            for (WidgetCacheKey key : mMemoryCache.snapshot().keySet()) {
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mMemoryCache.remove(key);
+                }
+            }
+        }
 
         mDb.delete(
                 CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
@@ -176,6 +225,18 @@ public class WidgetPreviewLoader {
      */
     public void removeObsoletePreviews(ArrayList<? extends ComponentKey> list,
             @Nullable PackageUserKey packageUser) {
+        removeObsoletePreviews(list,
+                packageUser == null ? null : Collections.singletonList(packageUser));
+    }
+
+    /**
+     * Same as {@link #removeObsoletePreviews(ArrayList, PackageUserKey)} for several packages.
+     *
+     * @param packageUsers if provided, specifies that list only contains previews for the
+     *                     given packages/users, otherwise the list contains all previews
+     */
+    public void removeObsoletePreviews(ArrayList<? extends ComponentKey> list,
+            @Nullable Collection<PackageUserKey> packageUsers) {
         Preconditions.assertWorkerThread();
 
         LongSparseArray<HashSet<String>> validPackages = new LongSparseArray<>();
@@ -190,9 +251,21 @@ public class WidgetPreviewLoader {
             packages.add(key.componentName.getPackageName());
         }
 
+        LongSparseArray<HashSet<String>> passedPackages = null;
+        if (packageUsers != null) {
+            passedPackages = new LongSparseArray<>();
+            for (PackageUserKey packageUser : packageUsers) {
+                final long userId = mUserManager.getSerialNumberForUser(packageUser.mUser);
+                HashSet<String> packages = passedPackages.get(userId);
+                if (packages == null) {
+                    packages = new HashSet<>();
+                    passedPackages.put(userId, packages);
+                }
+                packages.add(packageUser.mPackageName);
+            }
+        }
+
         LongSparseArray<HashSet<String>> packagesToDelete = new LongSparseArray<>();
-        long passedUserId = packageUser == null ? 0
-                : mUserManager.getSerialNumberForUser(packageUser.mUser);
         Cursor c = null;
         try {
             c = mDb.query(
@@ -205,8 +278,8 @@ public class WidgetPreviewLoader {
                 long lastUpdated = c.getLong(2);
                 long version = c.getLong(3);
 
-                if (packageUser != null && (!pkg.equals(packageUser.mPackageName)
-                        || userId != passedUserId)) {
+                if (passedPackages != null && (passedPackages.get(userId) == null
+                        || !passedPackages.get(userId).contains(pkg))) {
                     // This preview is associated with a different package/user, no need to remove.
                     continue;
                 }
@@ -248,7 +321,7 @@ public class WidgetPreviewLoader {
     /**
      * Reads the preview bitmap from the DB or null if the preview is not in the DB.
      */
-    @Thunk Bitmap readFromDb(WidgetCacheKey key, Bitmap recycle, PreviewLoadTask loadTask) {
+    @Thunk Bitmap readFromDb(WidgetCacheKey key, PreviewLoadRequest loadTask) {
         Cursor cursor = null;
         try {
             cursor = mDb.query(
@@ -266,11 +339,9 @@ public class WidgetPreviewLoader {
             }
             if (cursor.moveToNext()) {
                 byte[] blob = cursor.getBlob(0);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inBitmap = recycle;
                 try {
                     if (!loadTask.isCancelled()) {
-                        return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
+                        return BitmapFactory.decodeByteArray(blob, 0, blob.length);
                     }
                 } catch (Exception e) {
                     return null;
@@ -324,7 +395,7 @@ public class WidgetPreviewLoader {
                 drawable = null;
             }
             if (drawable != null) {
-                drawable = mutateOnMainThread(drawable);
+                drawable = mutateForRendering(drawable);
             } else {
                 Log.w(TAG, "Can't load widget preview drawable 0x" +
                         Integer.toHexString(info.previewImage) + " for provider: " + info.provider);
@@ -418,7 +489,7 @@ public class WidgetPreviewLoader {
                     int iconSize = (int) Math.min(appIconSize * scale,
                             Math.min(boxRect.width(), boxRect.height()));
 
-                    icon = mutateOnMainThread(icon);
+                    icon = mutateForRendering(icon);
                     int hoffset = (previewWidth - iconSize) / 2;
                     int yoffset = (previewHeight - iconSize) / 2;
                     icon.setBounds(hoffset, yoffset, hoffset + iconSize, yoffset + iconSize);
@@ -474,7 +545,7 @@ public class WidgetPreviewLoader {
         Bitmap icon = null;
         try {
             icon = li.createScaledBitmapWithoutShadow(
-                mutateOnMainThread(info.getFullResIcon(mIconCache)), 0);
+                mutateForRendering(info.getFullResIcon(mIconCache)), 0);
         } catch (Exception e) {
             Log.e(TAG, "Failed to create scaledBitmap", e);
         }
@@ -492,20 +563,14 @@ public class WidgetPreviewLoader {
         return preview;
     }
 
-    private Drawable mutateOnMainThread(final Drawable drawable) {
-        try {
-            return mMainThreadExecutor.submit(new Callable<Drawable>() {
-                @Override
-                public Drawable call() throws Exception {
-                    return drawable.mutate();
-                }
-            }).get();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException(e);
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Returns a drawable which can be changed and drawn on the calling thread. A drawable created
+     * from the constant state isn't used anywhere else, so it can be mutated here instead of
+     * waiting for the main thread.
+     */
+    private static Drawable mutateForRendering(Drawable drawable) {
+        Drawable.ConstantState state = drawable.getConstantState();
+        return (state != null ? state.newDrawable() : drawable).mutate();
     }
 
     /**
@@ -530,144 +595,102 @@ public class WidgetPreviewLoader {
         }
     }
 
-    public class PreviewLoadTask extends AsyncTask<Void, Void, Bitmap>
-            implements CancellationSignal.OnCancelListener {
+    /**
+     * Loads one preview on the preview threads. Ordered by priority, then by submission.
+     */
+    public class PreviewLoadRequest implements Runnable, Comparable<PreviewLoadRequest>,
+            CancellationSignal.OnCancelListener {
         @Thunk final WidgetCacheKey mKey;
         private final WidgetItem mInfo;
         private final int mPreviewHeight;
         private final int mPreviewWidth;
         private final WidgetCell mCaller;
         private final BaseActivity mActivity;
-        @Thunk long[] mVersions;
-        @Thunk Bitmap mBitmapToRecycle;
+        private final int mPriority;
+        private final long mSequence;
+        private volatile boolean mCancelled;
 
-        PreviewLoadTask(WidgetCacheKey key, WidgetItem info, int previewWidth,
-                int previewHeight, WidgetCell caller) {
+        PreviewLoadRequest(WidgetCacheKey key, WidgetItem info, int previewWidth,
+                int previewHeight, WidgetCell caller, int priority, long sequence) {
             mKey = key;
             mInfo = info;
             mPreviewHeight = previewHeight;
             mPreviewWidth = previewWidth;
             mCaller = caller;
             mActivity = BaseActivity.fromContext(mCaller.getContext());
+            mPriority = priority;
+            mSequence = sequence;
             if (DEBUG) {
-                Log.d(TAG, String.format("%s, %s, %d, %d",
-                        mKey, mInfo, mPreviewHeight, mPreviewWidth));
+                Log.d(TAG, String.format("%s, %s, %d, %d, %d",
+                        mKey, mInfo, mPreviewHeight, mPreviewWidth, mPriority));
             }
         }
 
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
         @Override
-        protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
+        public int compareTo(PreviewLoadRequest other) {
+            if (mPriority != other.mPriority) {
+                return Integer.compare(mPriority, other.mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
 
+        @Override
+        public void run() {
             // If already cancelled before this gets to run in the background, then return early
-            if (isCancelled()) {
-                return null;
+            if (mCancelled) {
+                return;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
-                    }
-                }
-            }
-
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
+            Bitmap preview;
+            synchronized (mMemoryCache) {
+                preview = mMemoryCache.get(mKey);
             }
-            // If cancelled now, don't bother reading the preview from the DB
-            if (isCancelled()) {
-                return unusedBitmap;
+            if (preview == null) {
+                preview = readFromDb(mKey, this);
             }
-            Bitmap preview = readFromDb(mKey, unusedBitmap, this);
-            // Only consider generating the preview if we have not cancelled the task already
-            if (!isCancelled() && preview == null) {
+            // Only consider generating the preview if we have not cancelled the request already
+            if (!mCancelled && preview == null) {
                 // Fetch the version info before we generate the preview, so that, in-case the
                 // app was updated while we are generating the preview, we use the old version info,
                 // which would gets re-written next time.
                 boolean persistable = mInfo.activityInfo == null
                         || mInfo.activityInfo.isPersistable();
-                mVersions = persistable ? getPackageVersion(mKey.componentName.getPackageName())
-                        : null;
+                final long[] versions = persistable
+                        ? getPackageVersion(mKey.componentName.getPackageName()) : null;
 
                 // it's not in the db... we need to generate it
-                preview = generatePreview(mActivity, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
-            }
-            return preview;
-        }
+                preview = generatePreview(mActivity, mInfo, null, mPreviewWidth, mPreviewHeight);
 
-        @Override
-        protected void onPostExecute(final Bitmap preview) {
-            mCaller.applyPreview(preview);
-
-            // Write the generated preview to the DB in the worker thread
-            if (mVersions != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
-                    }
-                });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
+                // Write the generated preview to the DB in the worker thread
+                if (versions != null) {
+                    final Bitmap generated = preview;
+                    mWorkerHandler.post(() -> writeToDb(mKey, versions, generated));
+                }
             }
-        }
-
-        @Override
-        protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
-            if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
-                    }
-                });
+            if (preview == null) {
+                return;
             }
+            synchronized (mMemoryCache) {
+                mMemoryCache.put(mKey, preview);
+            }
+
+            final Bitmap result = preview;
+            mMainHandler.post(() -> {
+                if (!mCancelled) {
+                    mCaller.applyPreview(result);
+                }
+            });
         }
 
         @Override
         public void onCancel() {
-            cancel(true);
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mBitmapToRecycle != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mBitmapToRecycle);
-                        }
-                        mBitmapToRecycle = null;
-                    }
-                });
-            }
+            mCancelled = true;
+            // Drop it from the queue right away, so that requests of rows which were scrolled
+            // off-screen don't delay the visible ones
+            mPreviewExecutor.remove(this);
         }
     }
 
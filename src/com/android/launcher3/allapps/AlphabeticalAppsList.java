@@ -20,7 +20,6 @@ import android.content.pm.LauncherActivityInfo;
 
 import android.graphics.Color;
 import android.os.UserHandle;
-import android.support.v4.graphics.ColorUtils;
 import ch.deletescape.lawnchair.LawnchairPreferences;
 import ch.deletescape.lawnchair.allapps.AppColorComparator;
 import ch.deletescape.lawnchair.groups.DrawerFolderInfo;
@@ -40,7 +39,6 @@ import com.android.launcher3.util.LabelComparator;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -188,7 +186,6 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
 
     // The of ordered component names as a result of a search query
     private ArrayList<ComponentKey> mSearchResults;
-    private HashMap<AppInfo, String> mCachedSectionNames = new HashMap<>();
     private AllAppsGridAdapter mAdapter;
     private AlphabeticIndexCompat mIndexer;
     private AppInfoComparator mAppNameComparator;
@@ -325,6 +322,8 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
             }
         }
 
+        // Keys are only computed again for apps whose title changed, sorting just compares them
+        mAppNameComparator.updateSortKeys(mApps);
         if (prefs.getSortDrawerByColors()) {
             Collections.sort(mApps, mAppColorComparator);
         } else {
@@ -373,7 +372,7 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
 
     /**
      * Updates the set of filtered apps with the current filter.  At this point, we expect
-     * mCachedSectionNames to have been calculated for the set of all apps in mApps.
+     * the sort keys to have been updated for the set of all apps in mApps.
      */
     public void updateAdapterItems() {
         refillAdapterItems();
@@ -568,22 +567,16 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
     }
 
     /**
-     * Returns the cached section name for the given title, recomputing and updating the cache if
-     * the title has no cached section name.
+     * Returns the section name for the given app from its sort key, which is only computed again
+     * once the title or icon color changed.
      */
     private String getAndUpdateCachedSectionName(AppInfo info) {
-        String sectionName = mCachedSectionNames.get(info);
-        if (sectionName == null) {
-            if (prefs.getSortDrawerByColors()) {
-                float[] hsl = new float[3];
-                ColorUtils.colorToHSL(info.iconColor, hsl);
-                sectionName = String.format("%d:%d:%d", AppColorComparator.remapHue(hsl[0]), AppColorComparator.remap(hsl[2]), AppColorComparator.remap(hsl[1]));
-            } else {
-                sectionName = mIndexer.computeSectionName(info.title);
-            }
-            mCachedSectionNames.put(info, sectionName);
+        AppSortKey key = mAppNameComparator.getSortKey(info);
+        if (prefs.getSortDrawerByColors()) {
+            return key.getColorSectionName(info.iconColor);
+        } else {
+            return key.getSectionName(mIndexer);
         }
-        return sectionName;
     }
 
     public void setIsWork(boolean isWork) {
@@ -22,31 +22,47 @@ import android.os.UserHandle;
 import ch.deletescape.lawnchair.override.AppInfoProvider;
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.compat.UserManagerCompat;
-import com.android.launcher3.util.LabelComparator;
 
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * A comparator to arrange items based on user profiles.
+ *
+ * Titles are compared with the {@link AppSortKey}s of the apps, call {@link #updateSortKeys}
+ * before sorting so that they are up to date.
  */
 public class AppInfoComparator implements Comparator<AppInfo> {
 
     private final UserManagerCompat mUserManager;
     private final UserHandle mMyUser;
-    private final LabelComparator mLabelComparator;
     private final AppInfoProvider mInfoProvider;
 
     public AppInfoComparator(Context context) {
         mUserManager = UserManagerCompat.getInstance(context);
         mMyUser = Process.myUserHandle();
-        mLabelComparator = new LabelComparator();
         mInfoProvider = AppInfoProvider.Companion.getInstance(context);
     }
 
+    /**
+     * Recomputes the sort keys of all {@param apps} whose title or locale changed.
+     */
+    public void updateSortKeys(List<AppInfo> apps) {
+        for (int i = apps.size() - 1; i >= 0; i--) {
+            AppInfo app = apps.get(i);
+            AppSortKey.update(app, mInfoProvider.getTitle(app));
+        }
+    }
+
+    public AppSortKey getSortKey(AppInfo app) {
+        return app.sortKey != null
+                ? app.sortKey : AppSortKey.update(app, mInfoProvider.getTitle(app));
+    }
+
     @Override
     public int compare(AppInfo a, AppInfo b) {
         // Order by the title in the current locale
-        int result = mLabelComparator.compare(mInfoProvider.getTitle(a), mInfoProvider.getTitle(b));
+        int result = getSortKey(a).compareTitle(getSortKey(b));
         if (result != 0) {
             return result;
         }
@@ -0,0 +1,112 @@
+package com.android.launcher3.allapps;
+
+import android.support.v4.graphics.ColorUtils;
+
+import ch.deletescape.lawnchair.allapps.AppColorComparator;
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.compat.AlphabeticIndexCompat;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Keys used to sort and section an app in the all apps list. They are derived from the title,
+ * icon color and locale once, and only computed again when one of these changes, so sorting
+ * compares precomputed keys instead of collating titles on every comparison.
+ *
+ * Only accessed on the main thread.
+ */
+public class AppSortKey {
+
+    private static Locale sCollatorLocale;
+    private static Collator sCollator;
+
+    private final String mTitle;
+    private final Locale mLocale;
+    private final boolean mStartsWithLetter;
+    private final CollationKey mCollationKey;
+    private String mSectionName;
+
+    private boolean mHasColorKey;
+    private int mColor;
+    private int mColorKey;
+    private String mColorSectionName;
+
+    private AppSortKey(String title, Locale locale) {
+        mTitle = title;
+        mLocale = locale;
+        // Same order as LabelComparator
+        mStartsWithLetter = title.length() > 0 && Character.isLetterOrDigit(title.codePointAt(0));
+        mCollationKey = getCollator(locale).getCollationKey(title);
+    }
+
+    /**
+     * Returns the keys of {@param app} for {@param title}, reusing the ones stored in the app if
+     * they are still valid.
+     */
+    public static AppSortKey update(AppInfo app, String title) {
+        Locale locale = Locale.getDefault();
+        AppSortKey key = app.sortKey;
+        if (key == null || !key.mLocale.equals(locale) || !key.mTitle.equals(title)) {
+            key = new AppSortKey(title, locale);
+            app.sortKey = key;
+        }
+        return key;
+    }
+
+    private static Collator getCollator(Locale locale) {
+        // Keys of different collators can't be compared, so all apps share one
+        if (sCollator == null || !locale.equals(sCollatorLocale)) {
+            sCollator = Collator.getInstance(locale);
+            sCollatorLocale = locale;
+        }
+        return sCollator;
+    }
+
+    /**
+     * Compares the titles the same way as {@link com.android.launcher3.util.LabelComparator}.
+     */
+    public int compareTitle(AppSortKey other) {
+        if (mStartsWithLetter != other.mStartsWithLetter) {
+            return mStartsWithLetter ? -1 : 1;
+        }
+        return mCollationKey.compareTo(other.mCollationKey);
+    }
+
+    public String getSectionName(AlphabeticIndexCompat indexer) {
+        if (mSectionName == null) {
+            mSectionName = indexer.computeSectionName(mTitle);
+        }
+        return mSectionName;
+    }
+
+    /**
+     * Returns the color buckets of {@param color} packed into one int, see
+     * {@link AppColorComparator#packColorKey(float[])}.
+     */
+    public int getColorKey(int color) {
+        updateColor(color);
+        return mColorKey;
+    }
+
+    public String getColorSectionName(int color) {
+        updateColor(color);
+        if (mColorSectionName == null) {
+            mColorSectionName = AppColorComparator.getSectionName(color);
+        }
+        return mColorSectionName;
+    }
+
+    private void updateColor(int color) {
+        if (mHasColorKey && mColor == color) {
+            return;
+        }
+        float[] hsl = new float[3];
+        ColorUtils.colorToHSL(color, hsl);
+        mColorKey = AppColorComparator.packColorKey(hsl);
+        mColorSectionName = null;
+        mColor = color;
+        mHasColorKey = true;
+    }
+}
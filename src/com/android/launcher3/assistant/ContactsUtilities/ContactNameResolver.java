@@ -0,0 +1,212 @@
+package com.android.launcher3.assistant.ContactsUtilities;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 전화번호들에 해당하는 주소이름을 한꺼번에 얻기 위한 class.
+ * 결과는 정규화된 전화번호를 열쇠로 하는 LRU cache 에 보관되며 주소록이 변경되면 비워진다.
+ */
+public class ContactNameResolver {
+
+    private static final String TAG = "ContactNameResolver";
+
+    private static final int CACHE_SIZE = 256;
+
+    // 한 query 에 넣을 최대 전화번호개수 (SQLite 변수개수 제한보다 작게)
+    private static final int BATCH_SIZE = 100;
+
+    // 주소록에 없는 번호를 표시하기 위한 값
+    private static final String NO_NAME = "";
+
+    private static ContactNameResolver sInstance;
+
+    private final Context mContext;
+    private final LruCache<String, String> mCache = new LruCache<>(CACHE_SIZE);
+    private final String mCountryIso;
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mCache.evictAll();
+        }
+    };
+
+    public static synchronized ContactNameResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactNameResolver(Context context) {
+        mContext = context;
+        TelephonyManager tm = context.getSystemService(TelephonyManager.class);
+        String countryIso = tm != null ? tm.getSimCountryIso() : null;
+        if (TextUtils.isEmpty(countryIso)) {
+            countryIso = Locale.getDefault().getCountry();
+        }
+        mCountryIso = countryIso.toUpperCase(Locale.US);
+
+        try {
+            context.getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, mContactsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Unable to observe contacts", e);
+        }
+    }
+
+    /**
+     * 주어진 전화번호들의 주소이름 얻기. 배경 thread 에서 호출하여야 한다.
+     * @param addresses 전화번호들 (중복될수 있음)
+     * @return 전화번호 → 주소이름, 주소록에 없는 번호는 포함되지 않는다
+     */
+    public Map<String, String> resolve(Collection<String> addresses) {
+        Map<String, String> result = new HashMap<>();
+
+        // cache 에 없는 번호들을 정규화된 번호별로 모으기
+        Map<String, List<String>> pending = new HashMap<>();
+        for (String address : new LinkedHashSet<>(addresses)) {
+            if (TextUtils.isEmpty(address)) {
+                continue;
+            }
+            String key = normalize(address);
+            String name = mCache.get(key);
+            if (name == null) {
+                List<String> list = pending.get(key);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    pending.put(key, list);
+                }
+                list.add(address);
+            } else if (!NO_NAME.equals(name)) {
+                result.put(address, name);
+            }
+        }
+        if (pending.isEmpty()) {
+            return result;
+        }
+
+        Map<String, String> found = new HashMap<>();
+        queryBatched(new ArrayList<>(pending.keySet()), found);
+
+        for (Map.Entry<String, List<String>> entry : pending.entrySet()) {
+            String key = entry.getKey();
+            String name = found.get(key);
+            if (name == null) {
+                // 저장형식이 달라 일치하지 않은 번호는 PhoneLookup 의 유연한 비교로 찾는다
+                name = lookup(entry.getValue().get(0));
+            }
+            if (name == null) {
+                // 주소록을 읽지 못한 번호는 cache 하지 않고 다음번에 다시 찾는다
+                continue;
+            }
+            mCache.put(key, name);
+            if (!NO_NAME.equals(name)) {
+                for (String address : entry.getValue()) {
+                    result.put(address, name);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 정규화된 번호들로 Phone 표를 묶음으로 검색.
+     * 한 묶음의 검색이 실패하여도 나머지 묶음들은 계속 검색한다.
+     */
+    private void queryBatched(List<String> keys, Map<String, String> found) {
+        ContentResolver cr = mContext.getContentResolver();
+        String[] projection = new String[] {Phone.NUMBER, Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME};
+        for (int start = 0; start < keys.size(); start += BATCH_SIZE) {
+            List<String> batch = keys.subList(start, Math.min(keys.size(), start + BATCH_SIZE));
+            String placeholders = TextUtils.join(",", Collections.nCopies(batch.size(), "?"));
+            String[] args = new String[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                args[i] = batch.get(i);
+                args[batch.size() + i] = batch.get(i);
+            }
+            try (Cursor c = cr.query(Phone.CONTENT_URI, projection,
+                    Phone.NORMALIZED_NUMBER + " IN (" + placeholders + ") OR "
+                            + Phone.NUMBER + " IN (" + placeholders + ")", args, null)) {
+                while (c != null && c.moveToNext()) {
+                    String name = c.getString(2);
+                    String normalized = c.getString(1);
+                    if (normalized != null && !found.containsKey(normalized)) {
+                        found.put(normalized, name);
+                    }
+                    String number = c.getString(0);
+                    if (number != null) {
+                        String key = normalize(number);
+                        if (!found.containsKey(key)) {
+                            found.put(key, name);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Unable to resolve contact names", e);
+            }
+        }
+    }
+
+    /**
+     * PhoneLookup 으로 한 번호의 주소이름 얻기
+     * @return 주소이름, 주소록에 없으면 NO_NAME, 주소록을 읽지 못하면 null
+     */
+    private String lookup(String address) {
+        if (!PhoneNumberUtils.isGlobalPhoneNumber(PhoneNumberUtils.normalizeNumber(address))) {
+            // 문자나 단축번호로 된 발신자는 주소록에 있을수 없다
+            return NO_NAME;
+        }
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(address));
+        try (Cursor c = mContext.getContentResolver().query(uri,
+                new String[] {PhoneLookup.DISPLAY_NAME}, null, null, null)) {
+            if (c == null) {
+                return null;
+            }
+            // 이름이 비여있는 contact 는 건너뛴다
+            while (c.moveToNext()) {
+                String name = c.getString(0);
+                if (!TextUtils.isEmpty(name)) {
+                    return name;
+                }
+            }
+            return NO_NAME;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to look up contact name", e);
+            return null;
+        }
+    }
+
+    /**
+     * 전화번호를 cache 열쇠로 쓸수 있게 정규화. 가능하면 E164 형식으로 만든다.
+     */
+    private String normalize(String address) {
+        String e164 = PhoneNumberUtils.formatNumberToE164(address, mCountryIso);
+        if (e164 != null) {
+            return e164;
+        }
+        String normalized = PhoneNumberUtils.normalizeNumber(address);
+        return TextUtils.isEmpty(normalized) ? address : normalized;
+    }
+}
@@ -40,7 +40,7 @@ import java.util.List;
 public class SearchItemContainer extends LinearLayout implements View.OnClickListener, SearchLayout.QueryChangListener {
 
     private static final int SHOW_RESULT_COUNT_ON_LESS = 3;
-    private static final int SHOW_RESULT_MAX_COUNT = 10;
+    protected static final int SHOW_RESULT_MAX_COUNT = 10;
     private static final int EXPAND_BUTTON_ANIMATOR_DURATION = 150;
     public static final long DEFAULT_PUSH_DURATION = 50;
     public static final long DEFAULT_RELEASE_DURATION = 125;
@@ -88,6 +88,9 @@ public class SearchItemContainer extends LinearLayout implements View.OnClickLis
     // 검색이 끝나면 true, 아니면 false
     private boolean mLoadFinished = true;
 
+    // 배경검색을 위한 thread, 첫 검색때 생성된다
+    private SearchWorker mSearchWorker;
+
     public SearchItemContainer(Context context) {
         this(context, null);
     }
@@ -234,6 +237,15 @@ public class SearchItemContainer extends LinearLayout implements View.OnClickLis
         mQuery = query;
         mLoadFinished = false;
 
+        // 배경검색을 지원하는 경우 검색 thread 에서 실행
+        if (searchesInBackground()) {
+            if (mSearchWorker == null) {
+                mSearchWorker = new SearchWorker(getClass().getSimpleName());
+            }
+            mSearchWorker.submit(query, this::doSearchInBackground, this::onBackgroundSearchResult);
+            return;
+        }
+
         // 검색을 위한 thread 실행
         post(new Runnable() {
             @Override
@@ -248,6 +260,40 @@ public class SearchItemContainer extends LinearLayout implements View.OnClickLis
         //Do nothing
     }
 
+    /**
+     * 배경 thread 에서 검색을 진행하려면 이 함수와 {@link #doSearchInBackground} 를 override 하여야 한다.
+     * @return true 이면 배경검색, false 이면 UI thread 에서 {@link #doSearch()} 호출
+     */
+    protected boolean searchesInBackground(){
+        return false;
+    }
+
+    /**
+     * 배경 thread 에서 실행되는 검색. View 에 접근해서는 안된다.
+     * @param query 검색문자렬
+     * @param token 검색 token, 취소되였으면 검색을 중단하여야 한다
+     * @return 검색결과목록
+     */
+    protected List<SearchItemInfo> doSearchInBackground(String query, SearchWorker.SearchToken token){
+        return new ArrayList<>();
+    }
+
+    /**
+     * 배경검색이 끝났을때 UI thread 에서 호출된다.
+     */
+    private void onBackgroundSearchResult(String query, List<SearchItemInfo> result){
+        updateSearchResult(result != null ? result : new ArrayList<>());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mSearchWorker != null) {
+            mSearchWorker.destroy();
+            mSearchWorker = null;
+        }
+        super.onDetachedFromWindow();
+    }
+
     public void updateSearchResult(List<SearchItemInfo> list){
 
         // 검색결과 보관
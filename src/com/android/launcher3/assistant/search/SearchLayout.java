@@ -24,6 +24,7 @@ import com.android.launcher3.Launcher;
 import com.android.launcher3.LauncherSettings;
 import com.android.launcher3.R;
 import com.android.launcher3.assistant.AssistViewsContainer;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 import com.chauthai.overscroll.RecyclerViewBouncy;
 import com.google.android.flexbox.FlexDirection;
 import com.google.android.flexbox.JustifyContent;
@@ -164,6 +165,9 @@ public class SearchLayout extends LinearLayout implements View.OnClickListener {
 
         // 처음에 ExtraView 표시
         mExtraView.onOpen();
+
+        // Sms, 미디어 검색색인 갱신 시작
+        LocalSearchIndex.getInstance(getContext()).start();
     }
 
     @Override
@@ -0,0 +1,143 @@
+package com.android.launcher3.assistant.search;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.launcher3.assistant.search.SearchItemContainer.SearchItemInfo;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 검색항목 container 마다 하나씩 가지는 배경검색 thread.
+ * 검색문자렬이 바뀔때마다 세대번호를 증가시키고 이전 검색을 취소하며,
+ * 입력이 잠시 멈출때까지 검색실행을 미룬다(debounce).
+ * 결과는 개별적인 container 마다 끝나는 즉시 UI thread 로 전달된다.
+ */
+public class SearchWorker {
+
+    private static final String TAG = "SearchWorker";
+
+    // 마지막 입력후 검색을 시작하기까지의 지연시간
+    public static final long DEBOUNCE_DELAY = 150;
+
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // 현재 검색의 세대번호
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // 현재 진행중인 검색의 token
+    private SearchToken mCurrentToken;
+
+    public SearchWorker(String name) {
+        mThread = new HandlerThread("search-" + name, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * 새 검색 요청. 이전에 요청된 검색들은 모두 취소된다.
+     * UI thread 에서 호출하여야 한다.
+     * @param query 검색문자렬
+     * @param task 배경 thread 에서 실행할 검색
+     * @param callback UI thread 에서 결과를 받을 callback
+     */
+    public void submit(String query, SearchTask task, ResultCallback callback) {
+        cancel();
+
+        final SearchToken token = new SearchToken(mGeneration.incrementAndGet());
+        mCurrentToken = token;
+        mWorkerHandler.postDelayed(() -> {
+            if (token.isCancelled()) {
+                return;
+            }
+
+            List<SearchItemInfo> result;
+            try {
+                result = task.search(query, token);
+            } catch (OperationCanceledException e) {
+                return;
+            } catch (RuntimeException e) {
+                // 개별적인 검색원천의 오유때문에 다른 검색결과들이 막히지 않게 한다.
+                Log.e(TAG, "Search failed for " + mThread.getName(), e);
+                result = null;
+            }
+
+            if (token.isCancelled()) {
+                return;
+            }
+            final List<SearchItemInfo> finalResult = result;
+            mUiHandler.post(() -> {
+                if (!token.isCancelled()) {
+                    callback.onSearchResult(query, finalResult);
+                }
+            });
+        }, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * 진행중이거나 대기중인 검색 취소
+     */
+    public void cancel() {
+        mWorkerHandler.removeCallbacksAndMessages(null);
+        if (mCurrentToken != null) {
+            mCurrentToken.cancel();
+            mCurrentToken = null;
+        }
+    }
+
+    /**
+     * 검색 thread 종료
+     */
+    public void destroy() {
+        cancel();
+        mThread.quitSafely();
+    }
+
+    /**
+     * 하나의 검색요청을 나타내는 token.
+     * 배경검색은 {@link #isCancelled()} 를 주기적으로 확인하여 이미 쓸모없게 된 검색을 빨리 끝내야 한다.
+     */
+    public class SearchToken {
+        private final int mTokenGeneration;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        SearchToken(int generation) {
+            mTokenGeneration = generation;
+        }
+
+        /**
+         * ContentResolver#query 에 넘겨 취소시 query 자체를 중단시키기 위한 signal
+         */
+        public CancellationSignal getCancellationSignal() {
+            return mCancellationSignal;
+        }
+
+        public boolean isCancelled() {
+            return mCancellationSignal.isCanceled() || mTokenGeneration != mGeneration.get();
+        }
+
+        void cancel() {
+            mCancellationSignal.cancel();
+        }
+    }
+
+    public interface SearchTask {
+        /**
+         * 배경 thread 에서 실행되는 검색
+         * @return 검색결과, 실패하면 null
+         */
+        List<SearchItemInfo> search(String query, SearchToken token);
+    }
+
+    public interface ResultCallback {
+        void onSearchResult(String query, List<SearchItemInfo> result);
+    }
+}
@@ -0,0 +1,542 @@
+package com.android.launcher3.assistant.search.index;
+
+import android.Manifest;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * Sms 와 미디어(화상, audio, 비데오) 검색을 위한 launcher 자체의 전문검색(fts4) 색인.
+ * 개별적인 원천의 ContentObserver 를 통하여 변경된 행들만 색인에 반영하며,
+ * 검색은 매 건반입력마다 원천 provider 에 LIKE 검색을 하는 대신 색인에서 token 접두사검색으로 진행한다.
+ */
+public class LocalSearchIndex {
+
+    private static final String TAG = "LocalSearchIndex";
+
+    private static final String DATABASE_NAME = "local_search_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    // 원천이 변경된 후 색인갱신을 시작하기까지의 지연시간
+    private static final long SYNC_DELAY = 2000;
+
+    // 한 transaction 에 써넣을 최대 행수
+    private static final int SYNC_BATCH_SIZE = 500;
+
+    private static final String TABLE_STATE = "index_state";
+
+    public interface IndexColumns {
+        String DOCID = "docid";
+        String TITLE = "title";
+        String ADDRESS = "address";
+        String DATA = "data";
+        String DATE = "date";
+    }
+
+    // query 결과 cursor 의 column 들과 그 위치
+    private static final String[] QUERY_PROJECTION = new String[] {IndexColumns.DOCID,
+            IndexColumns.TITLE, IndexColumns.ADDRESS, IndexColumns.DATA, IndexColumns.DATE};
+    public static final int QUERY_DOCID = 0;
+    public static final int QUERY_TITLE = 1;
+    public static final int QUERY_ADDRESS = 2;
+    public static final int QUERY_DATA = 3;
+    public static final int QUERY_DATE = 4;
+
+    private interface StateColumns {
+        String SOURCE = "source";
+        String LAST_CHANGE = "last_change";
+        String ROW_COUNT = "row_count";
+        String SYNCED_AT = "synced_at";
+        String SYNC_DURATION = "sync_duration";
+    }
+
+    /**
+     * 색인하는 원천들
+     */
+    // Sms 는 편집되여도 증가하는 column 이 없으므로 매번 내용을 비교하여 변경된 행들을 찾는다
+    public static final Source SMS = new Source("sms", Telephony.Sms.CONTENT_URI,
+            Manifest.permission.READ_SMS, Telephony.Sms.BODY, Telephony.Sms.ADDRESS, null,
+            Telephony.Sms.DATE, null);
+    public static final Source IMAGES = new Source("images",
+            MediaStore.Images.Media.EXTERNAL_CONTENT_URI, Manifest.permission.READ_EXTERNAL_STORAGE,
+            MediaStore.Images.Media.DISPLAY_NAME, null, MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.DATE_MODIFIED, MediaStore.Images.Media.DATE_MODIFIED);
+    public static final Source AUDIO = new Source("audio",
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, Manifest.permission.READ_EXTERNAL_STORAGE,
+            MediaStore.Audio.Media.DISPLAY_NAME, null, MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DATE_MODIFIED, MediaStore.Audio.Media.DATE_MODIFIED);
+    public static final Source VIDEO = new Source("video",
+            MediaStore.Video.Media.EXTERNAL_CONTENT_URI, Manifest.permission.READ_EXTERNAL_STORAGE,
+            MediaStore.Video.Media.DISPLAY_NAME, null, MediaStore.Video.Media.DATA,
+            MediaStore.Video.Media.DATE_MODIFIED, MediaStore.Video.Media.DATE_MODIFIED);
+
+    private static final Source[] SOURCES = new Source[] {SMS, IMAGES, AUDIO, VIDEO};
+
+    private static LocalSearchIndex sInstance;
+
+    private final Context mContext;
+    private final IndexDbHelper mDbHelper;
+    private final HandlerThread mThread;
+    private final Handler mWorkerHandler;
+
+    private boolean mStarted = false;
+
+    public static synchronized LocalSearchIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocalSearchIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LocalSearchIndex(Context context) {
+        mContext = context;
+        mDbHelper = new IndexDbHelper(context);
+        mThread = new HandlerThread("search-index", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mWorkerHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * 원천들의 변경감시를 시작하고 색인을 최신상태로 갱신한다.
+     * 여러번 호출하면 권한이 새로 허용된 원천들만 추가로 감시한다.
+     */
+    public void start() {
+        mWorkerHandler.post(() -> {
+            for (Source source : SOURCES) {
+                if (source.observer == null && hasPermission(source)) {
+                    source.syncTask = () -> sync(source);
+                    source.observer = new ContentObserver(mWorkerHandler) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            scheduleSync(source);
+                        }
+                    };
+                    mContext.getContentResolver().registerContentObserver(
+                            source.uri, true, source.observer);
+                    scheduleSync(source);
+                }
+            }
+            mStarted = true;
+        });
+    }
+
+    private void scheduleSync(Source source) {
+        mWorkerHandler.removeCallbacks(source.syncTask);
+        mWorkerHandler.postDelayed(source.syncTask, mStarted ? SYNC_DELAY : 0);
+    }
+
+    private boolean hasPermission(Source source) {
+        return Utilities.hasPermission(mContext, source.permission);
+    }
+
+    /**
+     * 주어진 원천의 색인에서 검색.
+     * @param source 검색할 원천
+     * @param query 검색문자렬
+     * @param limit 얻을 최대 행수
+     * @param signal 취소 signal
+     * @return 검색결과 cursor (column 위치는 QUERY_* 상수들), 색인이 준비되지 않았으면 null
+     */
+    public Cursor query(Source source, String query, int limit, CancellationSignal signal) {
+        if (!hasPermission(source) || source.rowCount < 0) {
+            return null;
+        }
+        String match = buildMatchExpression(query);
+        if (match == null) {
+            return null;
+        }
+        try {
+            return mDbHelper.getReadableDatabase().query(false, source.table, QUERY_PROJECTION,
+                    source.table + " MATCH ?", new String[] {match}, null, null,
+                    IndexColumns.DATE + " DESC", Integer.toString(limit), signal);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Index query failed for " + source.name, e);
+            return null;
+        }
+    }
+
+    /**
+     * 검색문자렬을 fts MATCH 식으로 변환. 매 단어를 접두사검색으로 만들고 AND 로 결합한다.
+     */
+    static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String token : query.trim().split("\\s+")) {
+            token = token.replace("\"", "");
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(token).append("\"*");
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * 원천의 변경된 행들을 색인에 반영. worker thread 에서 실행된다.
+     * 원천에서 삭제된 행들은 _id 를 비교하여 색인에서 지우며, 그래도 행수가 일치하지 않으면
+     * (변경기준값이 이전인 행이 추가되였으면) 해당 원천을 다시 색인한다.
+     */
+    private void sync(Source source) {
+        if (!hasPermission(source)) {
+            return;
+        }
+        try {
+            doSync(source);
+        } catch (SQLiteException e) {
+            // 색인 db 를 열거나 쓸수 없으면 (저장공간부족 등) 다음 변경때 다시 시도한다
+            Log.e(TAG, "Unable to sync " + source.name + " index", e);
+        }
+    }
+
+    private void doSync(Source source) {
+        final long startTime = SystemClock.uptimeMillis();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        loadState(db, source);
+
+        HashSet<Long> providerIds = queryProviderIds(source);
+        if (providerIds == null) {
+            return;
+        }
+        removeDeletedRows(db, source, providerIds);
+
+        long newLastChange;
+        if (source.changeColumn == null) {
+            newLastChange = indexChangedRows(db, source, Long.MIN_VALUE,
+                    loadIndexedContent(db, source));
+        } else {
+            newLastChange = indexChangedRows(db, source,
+                    source.rowCount < 0 ? Long.MIN_VALUE : source.lastChange, null);
+        }
+        int indexedCount = (int) DatabaseUtils.queryNumEntries(db, source.table);
+
+        if (indexedCount != providerIds.size()) {
+            Log.d(TAG, "Rebuilding " + source.name + " index: " + indexedCount
+                    + " indexed, " + providerIds.size() + " in provider");
+            db.delete(source.table, null, null);
+            newLastChange = indexChangedRows(db, source, Long.MIN_VALUE, null);
+            indexedCount = (int) DatabaseUtils.queryNumEntries(db, source.table);
+        }
+
+        source.lastChange = newLastChange;
+        source.rowCount = indexedCount;
+        source.syncedAt = System.currentTimeMillis();
+        source.syncDuration = SystemClock.uptimeMillis() - startTime;
+        saveState(db, source);
+    }
+
+    /**
+     * @return 원천의 모든 행 _id, 원천을 읽을수 없으면 null
+     */
+    private HashSet<Long> queryProviderIds(Source source) {
+        try (Cursor c = mContext.getContentResolver().query(source.uri,
+                new String[] {BaseColumns._ID}, null, null, null)) {
+            if (c == null) {
+                return null;
+            }
+            HashSet<Long> ids = new HashSet<>(c.getCount());
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+            return ids;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read " + source.name + " ids", e);
+            return null;
+        }
+    }
+
+    /**
+     * 원천에 없는 docid 들을 색인에서 지운다.
+     */
+    private void removeDeletedRows(SQLiteDatabase db, Source source, HashSet<Long> providerIds) {
+        ArrayList<Long> deleted = new ArrayList<>();
+        try (Cursor c = db.query(source.table, new String[] {IndexColumns.DOCID},
+                null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                long docId = c.getLong(0);
+                if (!providerIds.contains(docId)) {
+                    deleted.add(docId);
+                }
+            }
+        }
+        if (deleted.isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            for (long docId : deleted) {
+                db.delete(source.table, IndexColumns.DOCID + " = ?",
+                        new String[] {Long.toString(docId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 변경기준 column 이 없는 원천을 위해 색인된 행들의 내용을 docid 별로 읽는다.
+     */
+    private HashMap<Long, String> loadIndexedContent(SQLiteDatabase db, Source source) {
+        HashMap<Long, String> content = new HashMap<>();
+        try (Cursor c = db.query(source.table, QUERY_PROJECTION, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                content.put(c.getLong(QUERY_DOCID), contentKey(c.getString(QUERY_TITLE),
+                        c.getString(QUERY_ADDRESS), c.getString(QUERY_DATA),
+                        c.getLong(QUERY_DATE)));
+            }
+        }
+        return content;
+    }
+
+    private static String contentKey(String title, String address, String data, long date) {
+        return title + '\0' + address + '\0' + data + '\0' + date;
+    }
+
+    /**
+     * 변경기준 column 값이 lastChange 보다 큰 행들을 색인에 써넣는다.
+     * @param indexedContent null 이 아니면 모든 행을 읽고 색인된 내용과 다른 행들만 써넣는다
+     * @return 써넣은 행들중 가장 큰 변경기준 column 값
+     */
+    private long indexChangedRows(SQLiteDatabase db, Source source, long lastChange,
+            HashMap<Long, String> indexedContent) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (lastChange != Long.MIN_VALUE) {
+            // 같은 시각에 변경된 행을 놓치지 않도록 경계값도 포함한다
+            selection = source.changeColumn + " >= ?";
+            selectionArgs = new String[] {Long.toString(lastChange)};
+        }
+
+        long maxChange = lastChange;
+        long batchMaxChange = lastChange;
+        try (Cursor c = mContext.getContentResolver().query(source.uri, source.projection,
+                selection, selectionArgs, null)) {
+            if (c == null) {
+                return maxChange;
+            }
+            final int idIndex = c.getColumnIndexOrThrow(BaseColumns._ID);
+            final int titleIndex = c.getColumnIndexOrThrow(source.titleColumn);
+            final int addressIndex = source.addressColumn == null ? -1
+                    : c.getColumnIndexOrThrow(source.addressColumn);
+            final int dataIndex = source.dataColumn == null ? -1
+                    : c.getColumnIndexOrThrow(source.dataColumn);
+            final int dateIndex = c.getColumnIndexOrThrow(source.dateColumn);
+            final int changeIndex = source.changeColumn == null ? -1
+                    : c.getColumnIndexOrThrow(source.changeColumn);
+
+            ContentValues values = new ContentValues();
+            int batchCount = 0;
+            db.beginTransaction();
+            try {
+                while (c.moveToNext()) {
+                    long id = c.getLong(idIndex);
+                    String title = c.getString(titleIndex);
+                    String address = addressIndex < 0 ? null : c.getString(addressIndex);
+                    String data = dataIndex < 0 ? null : c.getString(dataIndex);
+                    long date = c.getLong(dateIndex);
+                    if (indexedContent != null && contentKey(title, address, data, date)
+                            .equals(indexedContent.get(id))) {
+                        continue;
+                    }
+
+                    values.clear();
+                    values.put(IndexColumns.DOCID, id);
+                    values.put(IndexColumns.TITLE, title);
+                    values.put(IndexColumns.ADDRESS, address);
+                    values.put(IndexColumns.DATA, data);
+                    values.put(IndexColumns.DATE, date);
+
+                    // 변경된 행은 먼저 지우고 다시 써넣는다
+                    db.delete(source.table, IndexColumns.DOCID + " = ?",
+                            new String[] {Long.toString(id)});
+                    db.insertOrThrow(source.table, null, values);
+                    if (changeIndex >= 0) {
+                        batchMaxChange = Math.max(batchMaxChange, c.getLong(changeIndex));
+                    }
+
+                    if (++batchCount >= SYNC_BATCH_SIZE) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        // 행들이 실제로 써넣어진 다음에야 변경기준값을 넘긴다
+                        maxChange = batchMaxChange;
+                        db.beginTransaction();
+                        batchCount = 0;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                if (db.inTransaction()) {
+                    db.endTransaction();
+                }
+            }
+            maxChange = batchMaxChange;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to index " + source.name, e);
+        }
+        return maxChange;
+    }
+
+    private void loadState(SQLiteDatabase db, Source source) {
+        if (source.stateLoaded) {
+            return;
+        }
+        try (Cursor c = db.query(TABLE_STATE, null, StateColumns.SOURCE + " = ?",
+                new String[] {source.name}, null, null, null)) {
+            if (c.moveToFirst()) {
+                source.lastChange = c.getLong(c.getColumnIndexOrThrow(StateColumns.LAST_CHANGE));
+                source.rowCount = c.getInt(c.getColumnIndexOrThrow(StateColumns.ROW_COUNT));
+                source.syncedAt = c.getLong(c.getColumnIndexOrThrow(StateColumns.SYNCED_AT));
+                source.syncDuration = c.getLong(c.getColumnIndexOrThrow(StateColumns.SYNC_DURATION));
+            }
+        }
+        source.stateLoaded = true;
+    }
+
+    private void saveState(SQLiteDatabase db, Source source) {
+        ContentValues values = new ContentValues();
+        values.put(StateColumns.SOURCE, source.name);
+        values.put(StateColumns.LAST_CHANGE, source.lastChange);
+        values.put(StateColumns.ROW_COUNT, source.rowCount);
+        values.put(StateColumns.SYNCED_AT, source.syncedAt);
+        values.put(StateColumns.SYNC_DURATION, source.syncDuration);
+        db.insertWithOnConflict(TABLE_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * 색인의 갱신상태와 크기 출력
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "LocalSearchIndex:");
+        writer.println(prefix + "  size=" + mContext.getDatabasePath(DATABASE_NAME).length()
+                + " bytes");
+        for (Source source : SOURCES) {
+            writer.println(prefix + "  " + source.name
+                    + " rows=" + source.rowCount
+                    + " syncedAt=" + source.syncedAt
+                    + " syncDuration=" + source.syncDuration + "ms"
+                    + " observing=" + (source.observer != null));
+        }
+    }
+
+    /**
+     * 색인하는 개별적인 원천 (provider uri 와 색인할 column 들)
+     */
+    public static class Source {
+        final String name;
+        final String table;
+        final Uri uri;
+        final String permission;
+        final String titleColumn;
+        final String addressColumn;
+        final String dataColumn;
+        final String dateColumn;
+        // 증분색인의 기준이 되는 column, 행이 추가되거나 변경되면 증가한다.
+        // null 이면 매번 모든 행의 내용을 색인과 비교한다.
+        final String changeColumn;
+        final String[] projection;
+
+        // 색인상태, worker thread 에서만 변경된다
+        volatile int rowCount = -1;
+        volatile long syncedAt;
+        volatile long syncDuration;
+        long lastChange;
+        boolean stateLoaded;
+        ContentObserver observer;
+        Runnable syncTask;
+
+        Source(String name, Uri uri, String permission, String titleColumn, String addressColumn,
+                String dataColumn, String dateColumn, String changeColumn) {
+            this.name = name;
+            this.table = name + "_index";
+            this.uri = uri;
+            this.permission = permission;
+            this.titleColumn = titleColumn;
+            this.addressColumn = addressColumn;
+            this.dataColumn = dataColumn;
+            this.dateColumn = dateColumn;
+            this.changeColumn = changeColumn;
+
+            LinkedHashSet<String> projection = new LinkedHashSet<>();
+            for (String column : new String[] {BaseColumns._ID, titleColumn, addressColumn,
+                    dataColumn, dateColumn, changeColumn}) {
+                if (column != null) {
+                    projection.add(column);
+                }
+            }
+            this.projection = projection.toArray(new String[projection.size()]);
+        }
+    }
+
+    private static class IndexDbHelper extends SQLiteOpenHelper {
+
+        IndexDbHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            for (Source source : SOURCES) {
+                db.execSQL("CREATE VIRTUAL TABLE " + source.table + " USING fts4(" +
+                        IndexColumns.TITLE + ", " +
+                        IndexColumns.ADDRESS + ", " +
+                        IndexColumns.DATA + ", " +
+                        IndexColumns.DATE + ", " +
+                        "notindexed=" + IndexColumns.DATA + ", " +
+                        "notindexed=" + IndexColumns.DATE + ", " +
+                        "tokenize=unicode61)");
+            }
+            db.execSQL("CREATE TABLE " + TABLE_STATE + "(" +
+                    StateColumns.SOURCE + " TEXT PRIMARY KEY, " +
+                    StateColumns.LAST_CHANGE + " INTEGER NOT NULL, " +
+                    StateColumns.ROW_COUNT + " INTEGER NOT NULL, " +
+                    StateColumns.SYNCED_AT + " INTEGER NOT NULL, " +
+                    StateColumns.SYNC_DURATION + " INTEGER NOT NULL)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            rebuild(db);
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            rebuild(db);
+        }
+
+        private void rebuild(SQLiteDatabase db) {
+            for (Source source : SOURCES) {
+                db.execSQL("DROP TABLE IF EXISTS " + source.table);
+            }
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+            onCreate(db);
+        }
+    }
+}
@@ -11,6 +11,8 @@ import androidx.annotation.Nullable;
 import com.android.launcher3.Launcher;
 import com.android.launcher3.R;
 import com.android.launcher3.assistant.search.SearchItemContainer;
+import com.android.launcher3.assistant.search.SearchWorker.SearchToken;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +22,13 @@ import java.util.List;
  */
 public class SearchAudioContainer extends SearchItemContainer {
 
+    // 자료기지에서 얻을 column 마당들
+    private static final String[] PROJECTION = new String[] {
+            MediaStore.Audio.Media.DISPLAY_NAME,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media._ID,
+    };
+
     Launcher mLauncher;
 
     public SearchAudioContainer(Context context) {
@@ -36,40 +45,78 @@ public class SearchAudioContainer extends SearchItemContainer {
         mLauncher = Launcher.getLauncher(context);
     }
 
+    @Override
+    protected boolean searchesInBackground() {
+        return true;
+    }
+
     /**
      * 주어진 문자렬에 관한 audio 검색
      */
     @Override
-    public void doSearch() {
-        List<SearchItemInfo> resultList = new ArrayList<>();
-        resultList = getAudios(mQuery);
-        updateSearchResult(resultList);
+    protected List<SearchItemInfo> doSearchInBackground(String query, SearchToken token) {
+        return getAudios(query, token);
     }
 
     /**
      * 주어진 검색문자렬에 준하여 Audio 얻기
      * @param query 검색문자렬
+     * @param token 검색 token
      * @return 검색문자렬을 포함하는 Audio 목록
      */
-    public List<SearchItemInfo> getAudios(String query) {
+    public List<SearchItemInfo> getAudios(String query, SearchToken token) {
         List<SearchItemInfo> list = new ArrayList<>();
+
+        // 색인이 준비되였으면 색인에서 검색
+        Cursor indexCursor = LocalSearchIndex.getInstance(getContext()).query(
+                LocalSearchIndex.AUDIO, query, SHOW_RESULT_MAX_COUNT,
+                token.getCancellationSignal());
+        if (indexCursor != null) {
+            try {
+                while (indexCursor.moveToNext()) {
+                    if (token.isCancelled()) {
+                        return list;
+                    }
+                    SearchAudioInfo audioInfo = new SearchAudioInfo();
+                    audioInfo.title = indexCursor.getString(LocalSearchIndex.QUERY_TITLE);
+                    audioInfo.dataPath = indexCursor.getString(LocalSearchIndex.QUERY_DATA);
+                    audioInfo.id = indexCursor.getLong(LocalSearchIndex.QUERY_DOCID);
+                    list.add(audioInfo);
+                }
+            } finally {
+                indexCursor.close();
+            }
+            return list;
+        }
+
         Uri allAudiosUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
         Cursor cursor = getContext().getContentResolver().query(
-                allAudiosUri, null, MediaStore.Audio.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"}, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i ++) {
+                allAudiosUri, PROJECTION, MediaStore.Audio.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"},
+                null, token.getCancellationSignal());
+        if (cursor == null) {
+            return list;
+        }
+        try {
+            final int nameIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DISPLAY_NAME);
+            final int dataPathIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
+            final int idIndex = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            while (cursor.moveToNext()) {
+                // 새 검색문자렬이 입력되였으면 중단
+                if (token.isCancelled()) {
+                    return list;
+                }
                 SearchAudioInfo audioInfo = new SearchAudioInfo();
-                String name = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.DISPLAY_NAME));
-                String dataPath = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.DATA));
-                long id = cursor.getLong(cursor.getColumnIndex(MediaStore.Audio.Media._ID));
+                String name = cursor.getString(nameIndex);
+                String dataPath = cursor.getString(dataPathIndex);
+                long id = cursor.getLong(idIndex);
 
                 audioInfo.title = name;
                 audioInfo.dataPath = dataPath;
                 audioInfo.id = id;
                 list.add(audioInfo);
-
-                cursor.moveToNext();
             }
+        } finally {
+            cursor.close();
         }
         return list;
     }
@@ -11,6 +11,8 @@ import androidx.annotation.Nullable;
 import com.android.launcher3.Launcher;
 import com.android.launcher3.R;
 import com.android.launcher3.assistant.search.SearchItemContainer;
+import com.android.launcher3.assistant.search.SearchWorker.SearchToken;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +22,12 @@ import java.util.List;
  */
 public class SearchImageContainer extends SearchItemContainer {
 
+    // 자료기지에서 얻을 column 마당들
+    private static final String[] PROJECTION = new String[] {
+            MediaStore.Images.Media.DISPLAY_NAME,
+            MediaStore.Images.Media.DATA,
+    };
+
     Launcher mLauncher;
 
     public SearchImageContainer(Context context) {
@@ -36,38 +44,74 @@ public class SearchImageContainer extends SearchItemContainer {
         mLauncher = Launcher.getLauncher(context);
     }
 
+    @Override
+    protected boolean searchesInBackground() {
+        return true;
+    }
+
     /**
      * 화상 검색
      */
     @Override
-    public void doSearch() {
-        List<SearchItemInfo> resultList = new ArrayList<>();
-        resultList = getImages(mQuery);
-        updateSearchResult(resultList);
+    protected List<SearchItemInfo> doSearchInBackground(String query, SearchToken token) {
+        return getImages(query, token);
     }
 
     /**
      * 주어진 검색문자렬에 관한 화상목록 얻기
      * @param query 검색문자렬
+     * @param token 검색 token
      * @return 화상목록
      */
-    public List<SearchItemInfo> getImages(String query) {
+    public List<SearchItemInfo> getImages(String query, SearchToken token) {
         List<SearchItemInfo> list = new ArrayList<>();
+
+        // 색인이 준비되였으면 색인에서 검색
+        Cursor indexCursor = LocalSearchIndex.getInstance(getContext()).query(
+                LocalSearchIndex.IMAGES, query, SHOW_RESULT_MAX_COUNT,
+                token.getCancellationSignal());
+        if (indexCursor != null) {
+            try {
+                while (indexCursor.moveToNext()) {
+                    if (token.isCancelled()) {
+                        return list;
+                    }
+                    SearchImageInfo imageInfo = new SearchImageInfo();
+                    imageInfo.title = indexCursor.getString(LocalSearchIndex.QUERY_TITLE);
+                    imageInfo.dataPath = indexCursor.getString(LocalSearchIndex.QUERY_DATA);
+                    list.add(imageInfo);
+                }
+            } finally {
+                indexCursor.close();
+            }
+            return list;
+        }
+
         Uri allImagesUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
         Cursor cursor = getContext().getContentResolver().query(
-                allImagesUri, null, MediaStore.Images.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"}, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i ++) {
+                allImagesUri, PROJECTION, MediaStore.Images.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"},
+                null, token.getCancellationSignal());
+        if (cursor == null) {
+            return list;
+        }
+        try {
+            final int nameIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DISPLAY_NAME);
+            final int dataPathIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+            while (cursor.moveToNext()) {
+                // 새 검색문자렬이 입력되였으면 중단
+                if (token.isCancelled()) {
+                    return list;
+                }
                 SearchImageInfo imageInfo = new SearchImageInfo();
-                String name = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DISPLAY_NAME));
-                String dataPath = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DATA));
+                String name = cursor.getString(nameIndex);
+                String dataPath = cursor.getString(dataPathIndex);
 
                 imageInfo.title = name;
                 imageInfo.dataPath = dataPath;
                 list.add(imageInfo);
-
-                cursor.moveToNext();
             }
+        } finally {
+            cursor.close();
         }
         return list;
     }
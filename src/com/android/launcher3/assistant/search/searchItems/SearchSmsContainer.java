@@ -1,25 +1,36 @@
 package com.android.launcher3.assistant.search.searchItems;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
-import android.provider.ContactsContract;
 import android.provider.Telephony;
 import android.util.AttributeSet;
 import androidx.annotation.Nullable;
 import com.android.launcher3.Launcher;
 import com.android.launcher3.R;
+import com.android.launcher3.assistant.ContactsUtilities.ContactNameResolver;
 import com.android.launcher3.assistant.search.SearchItemContainer;
+import com.android.launcher3.assistant.search.SearchWorker.SearchToken;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Sms 검색부분
  */
 public class SearchSmsContainer extends SearchItemContainer {
 
+    // 한번에 얻을 Sms 개수, 확대상태에서 현시할수 있는 개수보다 많을 필요가 없다
+    private static final int SEARCH_PAGE_SIZE = SHOW_RESULT_MAX_COUNT;
+
+    // 자료기지에서 얻을 column 마당들
+    private static final String[] PROJECTION = new String[] {
+            Telephony.Sms.ADDRESS,
+            Telephony.Sms.BODY,
+            Telephony.Sms.DATE,
+    };
+
     Launcher mLauncher;
 
     public SearchSmsContainer(Context context) {
@@ -36,80 +47,97 @@ public class SearchSmsContainer extends SearchItemContainer {
         mLauncher = Launcher.getLauncher(context);
     }
 
+    @Override
+    protected boolean searchesInBackground() {
+        return true;
+    }
+
     /**
      * Sms 검색
      */
     @Override
-    public void doSearch() {
-        List<SearchItemInfo> resultList = new ArrayList<>();
-        ArrayList<String[]> messages = new ArrayList<String[]>();
-        messages = fillMessages(mQuery);
-        for (String[] message : messages) {
-            SearchSmsInfo info = new SearchSmsInfo();
-            info.title = message[6] != null ? message[6] : message[0];
-            info.address = message[0];
-            info.shortContent = message[1];
-            info.modifiedDate = message[2];
+    protected List<SearchItemInfo> doSearchInBackground(String query, SearchToken token) {
+        List<SearchSmsInfo> messages = fillMessages(query, token, SEARCH_PAGE_SIZE);
+        if (token.isCancelled()) {
+            return new ArrayList<>();
+        }
+
+        // 결과에 나오는 번호들의 주소이름을 한번에 얻기
+        List<String> addresses = new ArrayList<>(messages.size());
+        for (SearchSmsInfo info : messages) {
+            addresses.add(info.address);
+        }
+        Map<String, String> names = ContactNameResolver.getInstance(getContext()).resolve(addresses);
+
+        List<SearchItemInfo> resultList = new ArrayList<>(messages.size());
+        for (SearchSmsInfo info : messages) {
+            String name = names.get(info.address);
+            info.title = name != null ? name : info.address;
             resultList.add(info);
         }
-        updateSearchResult(resultList);
+        return resultList;
     }
 
     /**
      * 주어진 검색문자렬에 관한 Sms 목록 얻기
-     * @param query 검색문자렬
-     * @return Sms 목록
+     * @param text 검색문자렬
+     * @param token 검색 token
+     * @param limit 얻을 최대 Sms 개수
+     * @return Sms 목록 (최근것부터)
      */
-    public ArrayList<String[]> fillMessages(String text) {
-        ArrayList<String[]> messages = new ArrayList<String[]>();
-
-        final String searchKeyword = "%" + mQuery + "%";
-        Cursor cursor = getContext().getContentResolver().query(Telephony.Sms.CONTENT_URI, null,
-                Telephony.Sms.BODY + " || " + Telephony.Sms.ADDRESS + " LIKE ? ", new String[] {searchKeyword}, "date DESC");
-
-        if (cursor != null && cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i++) {
-                String[] data = new String[7];
-                data[0] = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS));
-                data[1] = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.BODY));
-                data[2] = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.DATE));
-                data[3] = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms.TYPE));
-                data[4] = "false";
-                data[5] = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.Sms._ID));
-                data[6] = getContactName(getContext(), data[0]);
-                messages.add(data);
-
-                cursor.moveToNext();
+    public List<SearchSmsInfo> fillMessages(String text, SearchToken token, int limit) {
+        List<SearchSmsInfo> messages = new ArrayList<>();
+
+        // 색인이 준비되였으면 색인에서 검색
+        Cursor indexCursor = LocalSearchIndex.getInstance(getContext()).query(
+                LocalSearchIndex.SMS, text, limit, token.getCancellationSignal());
+        if (indexCursor != null) {
+            try {
+                while (messages.size() < limit && indexCursor.moveToNext()) {
+                    if (token.isCancelled()) {
+                        return messages;
+                    }
+                    SearchSmsInfo info = new SearchSmsInfo();
+                    info.address = indexCursor.getString(LocalSearchIndex.QUERY_ADDRESS);
+                    info.shortContent = indexCursor.getString(LocalSearchIndex.QUERY_TITLE);
+                    info.modifiedDate = indexCursor.getString(LocalSearchIndex.QUERY_DATE);
+                    messages.add(info);
+                }
+            } finally {
+                indexCursor.close();
             }
+            return messages;
         }
-        cursor.close();
 
-        return messages;
-    }
-
-    /**
-     * 주어진 전화번호에 관한 주소정보를 얻는 함수
-     * @param context The application context
-     * @param phoneNumber 전화번호
-     * @return 주소이름
-     */
-    public String getContactName(Context context, String phoneNumber) {
-        ContentResolver cr = context.getContentResolver();
-        Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phoneNumber));
-        Cursor cursor = cr.query(uri, new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME}, null, null, null);
+        final String searchKeyword = "%" + text + "%";
+        Cursor cursor = getContext().getContentResolver().query(Telephony.Sms.CONTENT_URI, PROJECTION,
+                Telephony.Sms.BODY + " || " + Telephony.Sms.ADDRESS + " LIKE ? ", new String[] {searchKeyword}, "date DESC",
+                token.getCancellationSignal());
         if (cursor == null) {
-            return null;
-        }
-        String contactName = null;
-        if(cursor.moveToFirst()) {
-            contactName = cursor.getString(cursor.getColumnIndex(ContactsContract.PhoneLookup.DISPLAY_NAME));
+            return messages;
         }
 
-        if(cursor != null && !cursor.isClosed()) {
+        try {
+            final int addressIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.ADDRESS);
+            final int bodyIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.BODY);
+            final int dateIndex = cursor.getColumnIndexOrThrow(Telephony.Sms.DATE);
+            // 현시할 page 만큼만 읽는다
+            while (messages.size() < limit && cursor.moveToNext()) {
+                // 새 검색문자렬이 입력되였으면 중단
+                if (token.isCancelled()) {
+                    return messages;
+                }
+                SearchSmsInfo info = new SearchSmsInfo();
+                info.address = cursor.getString(addressIndex);
+                info.shortContent = cursor.getString(bodyIndex);
+                info.modifiedDate = cursor.getString(dateIndex);
+                messages.add(info);
+            }
+        } finally {
             cursor.close();
         }
 
-        return contactName;
+        return messages;
     }
 
     /**
@@ -11,6 +11,8 @@ import androidx.annotation.Nullable;
 import com.android.launcher3.Launcher;
 import com.android.launcher3.R;
 import com.android.launcher3.assistant.search.SearchItemContainer;
+import com.android.launcher3.assistant.search.SearchWorker.SearchToken;
+import com.android.launcher3.assistant.search.index.LocalSearchIndex;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,6 +22,13 @@ import java.util.List;
  */
 public class SearchVideoContainer extends SearchItemContainer {
 
+    // 자료기지에서 얻을 column 마당들
+    private static final String[] PROJECTION = new String[] {
+            MediaStore.Video.Media.DISPLAY_NAME,
+            MediaStore.Video.Media.DATA,
+            MediaStore.Video.Media._ID,
+    };
+
     Launcher mLauncher;
 
     public SearchVideoContainer(Context context) {
@@ -36,40 +45,78 @@ public class SearchVideoContainer extends SearchItemContainer {
         mLauncher = Launcher.getLauncher(context);
     }
 
+    @Override
+    protected boolean searchesInBackground() {
+        return true;
+    }
+
     /**
      * 비데오 검색
      */
     @Override
-    public void doSearch() {
-        List<SearchItemInfo> resultList = new ArrayList<>();
-        resultList = getVideos(mQuery);
-        updateSearchResult(resultList);
+    protected List<SearchItemInfo> doSearchInBackground(String query, SearchToken token) {
+        return getVideos(query, token);
     }
 
     /**
      * 주어진 검색문자렬에 관한 비데오목록 얻기
      * @param query 검색문자렬
+     * @param token 검색 token
      * @return 비데오목록
      */
-    public List<SearchItemInfo> getVideos(String query) {
+    public List<SearchItemInfo> getVideos(String query, SearchToken token) {
         List<SearchItemInfo> list = new ArrayList<>();
+
+        // 색인이 준비되였으면 색인에서 검색
+        Cursor indexCursor = LocalSearchIndex.getInstance(getContext()).query(
+                LocalSearchIndex.VIDEO, query, SHOW_RESULT_MAX_COUNT,
+                token.getCancellationSignal());
+        if (indexCursor != null) {
+            try {
+                while (indexCursor.moveToNext()) {
+                    if (token.isCancelled()) {
+                        return list;
+                    }
+                    SearchVideoInfo videoInfo = new SearchVideoInfo();
+                    videoInfo.title = indexCursor.getString(LocalSearchIndex.QUERY_TITLE);
+                    videoInfo.dataPath = indexCursor.getString(LocalSearchIndex.QUERY_DATA);
+                    videoInfo.id = indexCursor.getLong(LocalSearchIndex.QUERY_DOCID);
+                    list.add(videoInfo);
+                }
+            } finally {
+                indexCursor.close();
+            }
+            return list;
+        }
+
         Uri allVideosUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
         Cursor cursor = getContext().getContentResolver().query(
-                allVideosUri, null, MediaStore.Video.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"}, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            for (int i = 0; i < cursor.getCount(); i ++) {
+                allVideosUri, PROJECTION, MediaStore.Video.Media.DISPLAY_NAME + " LIKE ?", new String[]{"%" + query + "%"},
+                null, token.getCancellationSignal());
+        if (cursor == null) {
+            return list;
+        }
+        try {
+            final int nameIndex = cursor.getColumnIndexOrThrow(MediaStore.Video.Media.DISPLAY_NAME);
+            final int dataPathIndex = cursor.getColumnIndexOrThrow(MediaStore.Video.Media.DATA);
+            final int idIndex = cursor.getColumnIndexOrThrow(MediaStore.Video.Media._ID);
+            while (cursor.moveToNext()) {
+                // 새 검색문자렬이 입력되였으면 중단
+                if (token.isCancelled()) {
+                    return list;
+                }
                 SearchVideoInfo videoInfo = new SearchVideoInfo();
-                String name = cursor.getString(cursor.getColumnIndex(MediaStore.Video.Media.DISPLAY_NAME));
-                String dataPath = cursor.getString(cursor.getColumnIndex(MediaStore.Video.Media.DATA));
-                long id = cursor.getLong(cursor.getColumnIndex(MediaStore.Video.Media._ID));
+                String name = cursor.getString(nameIndex);
+                String dataPath = cursor.getString(dataPathIndex);
+                long id = cursor.getLong(idIndex);
 
                 videoInfo.title = name;
                 videoInfo.dataPath = dataPath;
                 videoInfo.id = id;
                 list.add(videoInfo);
-
-                cursor.moveToNext();
             }
+        } finally {
+            cursor.close();
         }
         return list;
     }
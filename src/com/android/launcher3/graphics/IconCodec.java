@@ -0,0 +1,253 @@
+package com.android.launcher3.graphics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Serializes icon bitmaps for the icon DB.
+ *
+ * Icons are stored either as raw pixels, lossless WebP or PNG. Which one is used for a given icon
+ * size is decided by a small benchmark on the device, which weighs encode time, decode time and
+ * the number of bytes written to flash. Only formats which decode to the exact source pixels are
+ * considered, WebP is not lossless before Q. Raw pixels are also skipped when they take more than
+ * {@link #MAX_RAW_SIZE_RATIO} times the bytes of the smallest compressed format, as the icon DB is
+ * kept on disk for every app and would otherwise grow up to four times. The result is stored in
+ * the device prefs, so the benchmark only runs once per icon size. Decoding doesn't depend on the
+ * policy: raw blobs carry a header, everything else is left to {@link BitmapFactory}.
+ */
+public class IconCodec {
+
+    private static final String TAG = "IconCodec";
+    private static final boolean DEBUG = false;
+
+    public static final int FORMAT_PNG = 0;
+    public static final int FORMAT_WEBP = 1;
+    public static final int FORMAT_RAW = 2;
+    private static final int FORMAT_COUNT = 3;
+
+    // Bumped when the benchmark changes, so that it runs again
+    private static final String PREF_PREFIX = "pref_iconCodec_v3_";
+
+    // "RAWI", neither PNG nor WebP (RIFF) blobs start with it
+    private static final int RAW_MAGIC = 0x52415749;
+    private static final int RAW_HEADER_SIZE = 12;
+
+    private static final int BENCHMARK_ITERATIONS = 3;
+    // Rough cost of writing one byte to the DB, including the WAL and page overhead
+    private static final long WRITE_COST_NANOS_PER_BYTE = 20;
+    // Largest size of raw pixels relative to the smallest compressed format which is still used
+    private static final int MAX_RAW_SIZE_RATIO = 2;
+
+    // Null when the device can't write lossless WebP
+    private static final Bitmap.CompressFormat WEBP_LOSSLESS = getLosslessWebp();
+
+    private final SharedPreferences mPrefs;
+    private final int[] mFormats = new int[2];
+    private final int[] mSizes = new int[] {-1, -1};
+
+    public IconCodec(Context context) {
+        mPrefs = Utilities.getDevicePrefs(context);
+    }
+
+    /**
+     * Serializes {@param bitmap} in the format chosen for its size. Should be called on a
+     * background thread, the first call for a size runs the benchmark.
+     */
+    public byte[] encode(Bitmap bitmap) {
+        if (bitmap == null) {
+            return null;
+        }
+        if (bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        return encode(bitmap, getFormat(bitmap));
+    }
+
+    /**
+     * Returns the format used for bitmaps with the size of {@param sample}, running the
+     * benchmark with it if there is no stored result yet.
+     */
+    public synchronized int getFormat(Bitmap sample) {
+        int size = sample.getWidth();
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] == size) {
+                return mFormats[i];
+            }
+        }
+
+        String key = PREF_PREFIX + size;
+        int format = mPrefs.getInt(key, -1);
+        if (format < 0 || format >= FORMAT_COUNT) {
+            format = benchmark(sample);
+            mPrefs.edit().putInt(key, format).apply();
+        }
+
+        // Only the high-res and low-res sizes are used, remember the last two
+        mSizes[1] = mSizes[0];
+        mFormats[1] = mFormats[0];
+        mSizes[0] = size;
+        mFormats[0] = format;
+        return format;
+    }
+
+    private static int benchmark(Bitmap sample) {
+        long[] costs = new long[FORMAT_COUNT];
+        int[] sizes = new int[FORMAT_COUNT];
+        int smallestCompressed = Integer.MAX_VALUE;
+        for (int format = 0; format < FORMAT_COUNT; format++) {
+            sizes[format] = -1;
+            if (format == FORMAT_WEBP && WEBP_LOSSLESS == null) {
+                continue;
+            }
+            long encodeNanos = 0;
+            long decodeNanos = 0;
+            int bytes = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                byte[] data = encode(sample, format);
+                long encoded = SystemClock.elapsedRealtimeNanos();
+                Bitmap decoded = data == null ? null : decode(data, null);
+                decodeNanos += SystemClock.elapsedRealtimeNanos() - encoded;
+                encodeNanos += encoded - start;
+                boolean lossless = decoded != null && samePixels(sample, decoded);
+                if (decoded != null) {
+                    decoded.recycle();
+                }
+                if (!lossless) {
+                    if (DEBUG) {
+                        Log.d(TAG, "format=" + format + " does not round trip, skipping");
+                    }
+                    bytes = -1;
+                    break;
+                }
+                bytes = data.length;
+            }
+            if (bytes < 0) {
+                continue;
+            }
+            sizes[format] = bytes;
+            costs[format] = (encodeNanos + decodeNanos) / BENCHMARK_ITERATIONS
+                    + bytes * WRITE_COST_NANOS_PER_BYTE;
+            if (format != FORMAT_RAW) {
+                smallestCompressed = Math.min(smallestCompressed, bytes);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "format=" + format + " size=" + sample.getWidth() + " bytes=" + bytes
+                        + " encodeNs=" + encodeNanos / BENCHMARK_ITERATIONS
+                        + " decodeNs=" + decodeNanos / BENCHMARK_ITERATIONS
+                        + " cost=" + costs[format]);
+            }
+        }
+
+        int best = FORMAT_PNG;
+        long bestCost = Long.MAX_VALUE;
+        for (int format = 0; format < FORMAT_COUNT; format++) {
+            if (sizes[format] < 0) {
+                continue;
+            }
+            if (format == FORMAT_RAW && smallestCompressed != Integer.MAX_VALUE
+                    && sizes[format] > (long) smallestCompressed * MAX_RAW_SIZE_RATIO) {
+                continue;
+            }
+            if (costs[format] < bestCost) {
+                bestCost = costs[format];
+                best = format;
+            }
+        }
+        return best;
+    }
+
+    private static byte[] encode(Bitmap bitmap, int format) {
+        if (format == FORMAT_RAW) {
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + bitmap.getByteCount());
+            buffer.putInt(RAW_MAGIC);
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            bitmap.copyPixelsToBuffer(buffer);
+            return buffer.array();
+        }
+
+        int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        Bitmap.CompressFormat compressFormat = format == FORMAT_WEBP
+                ? WEBP_LOSSLESS : Bitmap.CompressFormat.PNG;
+        if (compressFormat == null || !bitmap.compress(compressFormat, 100, out)) {
+            Log.w(TAG, "Could not write bitmap");
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean samePixels(Bitmap a, Bitmap b) {
+        int width = a.getWidth();
+        int height = a.getHeight();
+        if (b.getWidth() != width || b.getHeight() != height) {
+            return false;
+        }
+        int[] pixels = new int[width * height];
+        int[] otherPixels = new int[width * height];
+        a.getPixels(pixels, 0, width, 0, 0, width, height);
+        b.getPixels(otherPixels, 0, width, 0, 0, width, height);
+        return Arrays.equals(pixels, otherPixels);
+    }
+
+    /**
+     * Returns the lossless WebP format: WEBP_LOSSLESS on R and up, which is looked up by name as
+     * it is newer than the compile SDK, and WEBP at quality 100 on Q. Before Q WebP is always
+     * lossy.
+     */
+    private static Bitmap.CompressFormat getLosslessWebp() {
+        try {
+            return Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+        } catch (IllegalArgumentException e) {
+            return Build.VERSION.SDK_INT >= 29 ? Bitmap.CompressFormat.WEBP : null;
+        }
+    }
+
+    /**
+     * Decodes a blob written by {@link #encode(Bitmap)} or {@link Utilities#flattenBitmap}.
+     */
+    public static Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        if (data == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < RAW_HEADER_SIZE || buffer.getInt(0) != RAW_MAGIC) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        int width = buffer.getInt(4);
+        int height = buffer.getInt(8);
+        if (width <= 0 || height <= 0
+                || (long) width * height * 4 != data.length - RAW_HEADER_SIZE) {
+            return null;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        buffer.position(RAW_HEADER_SIZE);
+        bitmap.copyPixelsFromBuffer(buffer);
+        Bitmap.Config config = options == null ? null : options.inPreferredConfig;
+        if (config != null && config != Bitmap.Config.ARGB_8888
+                && (config != Bitmap.Config.RGB_565 || !bitmap.hasAlpha())) {
+            Bitmap converted = bitmap.copy(config, false);
+            if (converted != null) {
+                bitmap.recycle();
+                bitmap = converted;
+            }
+        }
+        return bitmap;
+    }
+}
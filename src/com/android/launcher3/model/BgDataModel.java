@@ -111,6 +111,12 @@ public class BgDataModel {
      */
     public int lastBindId = 0;
 
+    /**
+     * Generation of the launcher database the workspace was loaded from, see
+     * {@link WorkspaceSnapshot#invalidate}
+     */
+    public int snapshotGeneration = 0;
+
     /**
      * Clears all the data
      */
@@ -43,6 +43,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
@@ -64,6 +65,13 @@ public class LoaderResults {
 
     private final WeakReference<Callbacks> mCallbacks;
 
+    // The screen bound first, picked by getFirstScreenId
+    private boolean mFirstScreenPicked;
+    private int mFirstScreen = PagedView.INVALID_RESTORE_PAGE;
+    // State of the bind started by bindFirstScreen, finished by bindRemainingScreens
+    private long mFirstScreenId = INVALID_SCREEN_ID;
+    private Executor mDeferredExecutor;
+
     public LoaderResults(LauncherAppState app, BgDataModel dataModel,
             AllAppsList allAppsList, int pageToBindFirst, WeakReference<Callbacks> callbacks) {
         mUiExecutor = new MainThreadExecutor();
@@ -78,6 +86,42 @@ public class LoaderResults {
      * Binds all loaded data to actual views on the main thread.
      */
     public void bindWorkspace() {
+        // The screens may have changed since a previous first screen bind
+        mFirstScreenPicked = false;
+        if (bindFirstScreen()) {
+            bindRemainingScreens();
+        }
+    }
+
+    /**
+     * Returns the id of the screen which is bound first, or -1 if there is none and only the
+     * hotseat is. The screen is picked once, so that the loader and the bind agree on it.
+     */
+    public long getFirstScreenId(List<Long> orderedScreenIds) {
+        if (!mFirstScreenPicked) {
+            Callbacks callbacks = mCallbacks.get();
+            int currScreen = mPageToBindFirst != PagedView.INVALID_RESTORE_PAGE
+                    ? mPageToBindFirst
+                    : callbacks != null ? callbacks.getCurrentWorkspaceScreen()
+                            : PagedView.INVALID_RESTORE_PAGE;
+            if (currScreen >= orderedScreenIds.size()) {
+                // There may be no workspace screens (just hotseat items and an empty page).
+                currScreen = PagedView.INVALID_RESTORE_PAGE;
+            }
+            mFirstScreen = currScreen;
+            mFirstScreenPicked = true;
+        }
+        return mFirstScreen >= 0 ? orderedScreenIds.get(mFirstScreen) : INVALID_SCREEN_ID;
+    }
+
+    /**
+     * Starts binding the workspace: binds the screens, then the items on the first screen and
+     * the hotseat, and reveals the workspace. The model only needs to contain those items yet,
+     * the other screens are bound by {@link #bindRemainingScreens()} once they are loaded.
+     *
+     * @return false if there is no launcher to bind to
+     */
+    public boolean bindFirstScreen() {
         Runnable r;
 
         Callbacks callbacks = mCallbacks.get();
@@ -86,7 +130,7 @@ public class LoaderResults {
         if (callbacks == null) {
             // This launcher has exited and nobody bothered to tell us.  Just bail.
             Log.w(TAG, "LoaderTask running with no launcher");
-            return;
+            return false;
         }
 
         // Save a copy of all the bg-thread collections
@@ -101,32 +145,18 @@ public class LoaderResults {
             mBgDataModel.lastBindId++;
         }
 
-        final int currentScreen;
-        {
-            int currScreen = mPageToBindFirst != PagedView.INVALID_RESTORE_PAGE
-                    ? mPageToBindFirst : callbacks.getCurrentWorkspaceScreen();
-            if (currScreen >= orderedScreenIds.size()) {
-                // There may be no workspace screens (just hotseat items and an empty page).
-                currScreen = PagedView.INVALID_RESTORE_PAGE;
-            }
-            currentScreen = currScreen;
-        }
-        final boolean validFirstPage = currentScreen >= 0;
-        final long currentScreenId =
-                validFirstPage ? orderedScreenIds.get(currentScreen) : INVALID_SCREEN_ID;
+        mFirstScreenId = getFirstScreenId(orderedScreenIds);
+        final boolean validFirstPage = mFirstScreen >= 0;
 
         // Separate the items that are on the current screen, and all the other remaining items
         ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<>();
-        ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<>();
         ArrayList<LauncherAppWidgetInfo> currentAppWidgets = new ArrayList<>();
-        ArrayList<LauncherAppWidgetInfo> otherAppWidgets = new ArrayList<>();
 
-        filterCurrentWorkspaceItems(currentScreenId, workspaceItems, currentWorkspaceItems,
-                otherWorkspaceItems);
-        filterCurrentWorkspaceItems(currentScreenId, appWidgets, currentAppWidgets,
-                otherAppWidgets);
+        filterCurrentWorkspaceItems(mFirstScreenId, workspaceItems, currentWorkspaceItems,
+                new ArrayList<>());
+        filterCurrentWorkspaceItems(mFirstScreenId, appWidgets, currentAppWidgets,
+                new ArrayList<>());
         sortWorkspaceItemsSpatially(currentWorkspaceItems);
-        sortWorkspaceItemsSpatially(otherWorkspaceItems);
 
         // Tell the workspace that we're about to start binding items
         r = new Runnable() {
@@ -162,6 +192,7 @@ public class LoaderResults {
         // In case of !validFirstPage, bind all pages one after other.
         final Executor deferredExecutor =
                 validFirstPage ? new ViewOnDrawExecutor() : mainExecutor;
+        mDeferredExecutor = deferredExecutor;
 
         mainExecutor.execute(new Runnable() {
             @Override
@@ -173,6 +204,40 @@ public class LoaderResults {
                 }
             }
         });
+        return true;
+    }
+
+    /**
+     * Binds the items which are not on the first screen or the hotseat, and finishes the bind
+     * started by {@link #bindFirstScreen()}.
+     */
+    public void bindRemainingScreens() {
+        Runnable r;
+
+        if (mDeferredExecutor == null) {
+            // The first screen was not bound
+            return;
+        }
+
+        ArrayList<ItemInfo> workspaceItems = new ArrayList<>();
+        ArrayList<LauncherAppWidgetInfo> appWidgets = new ArrayList<>();
+        synchronized (mBgDataModel) {
+            workspaceItems.addAll(mBgDataModel.workspaceItems);
+            appWidgets.addAll(mBgDataModel.appWidgets);
+        }
+
+        ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<>();
+        ArrayList<LauncherAppWidgetInfo> otherAppWidgets = new ArrayList<>();
+        filterCurrentWorkspaceItems(mFirstScreenId, workspaceItems, new ArrayList<>(),
+                otherWorkspaceItems);
+        filterCurrentWorkspaceItems(mFirstScreenId, appWidgets, new ArrayList<>(),
+                otherAppWidgets);
+        sortWorkspaceItemsSpatially(otherWorkspaceItems);
+
+        final int currentScreen = mFirstScreen;
+        final boolean validFirstPage = currentScreen >= 0;
+        final Executor deferredExecutor = mDeferredExecutor;
+        mDeferredExecutor = null;
 
         bindWorkspaceItems(otherWorkspaceItems, otherAppWidgets, deferredExecutor);
 
@@ -195,9 +260,7 @@ public class LoaderResults {
                         // We are loading synchronously, which means, some of the pages will be
                         // bound after first draw. Inform the callbacks that page binding is
                         // not complete, and schedule the remaining pages.
-                        if (currentScreen != PagedView.INVALID_RESTORE_PAGE) {
-                            callbacks.onPageBoundSynchronously(currentScreen);
-                        }
+                        callbacks.onPageBoundSynchronously(currentScreen);
                         callbacks.executeOnNextDraw((ViewOnDrawExecutor) deferredExecutor);
                     }
                 }
@@ -207,6 +270,81 @@ public class LoaderResults {
     }
 
 
+    /**
+     * Binds the workspace snapshot written by the previous process, so that the home screen is
+     * visible while the workspace is loaded from the database. The workspace stays locked until
+     * it is rebound with the loaded items by {@link #bindWorkspace()}.
+     */
+    public void bindSnapshot(WorkspaceSnapshot snapshot) {
+        Callbacks callbacks = mCallbacks.get();
+        if (callbacks == null) {
+            return;
+        }
+
+        final ArrayList<Long> orderedScreenIds = snapshot.workspaceScreens;
+        int currentScreen = mPageToBindFirst != PagedView.INVALID_RESTORE_PAGE
+                ? mPageToBindFirst : callbacks.getCurrentWorkspaceScreen();
+        final long currentScreenId = currentScreen >= 0 && currentScreen < orderedScreenIds.size()
+                ? orderedScreenIds.get(currentScreen) : INVALID_SCREEN_ID;
+
+        ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<>();
+        ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<>();
+        ArrayList<LauncherAppWidgetInfo> currentAppWidgets = new ArrayList<>();
+        ArrayList<LauncherAppWidgetInfo> otherAppWidgets = new ArrayList<>();
+        filterCurrentWorkspaceItems(currentScreenId, snapshot.workspaceItems,
+                currentWorkspaceItems, otherWorkspaceItems);
+        filterCurrentWorkspaceItems(currentScreenId, snapshot.appWidgets, currentAppWidgets,
+                otherAppWidgets);
+        sortWorkspaceItemsSpatially(currentWorkspaceItems);
+        sortWorkspaceItemsSpatially(otherWorkspaceItems);
+
+        mUiExecutor.execute(() -> {
+            Callbacks c = mCallbacks.get();
+            if (c != null) {
+                c.clearPendingBinds();
+                c.startBinding();
+                c.bindScreens(orderedScreenIds);
+            }
+        });
+        bindSnapshotItems(currentWorkspaceItems, currentAppWidgets);
+        mUiExecutor.execute(() -> {
+            Callbacks c = mCallbacks.get();
+            if (c != null) {
+                // Reveal the workspace, finishBindingItems is left to the real bind
+                c.finishFirstPageBind(null);
+            }
+        });
+        bindSnapshotItems(otherWorkspaceItems, otherAppWidgets);
+    }
+
+    /**
+     * Like {@link #bindWorkspaceItems}, but through {@link Callbacks#bindSnapshotItems} which
+     * never writes to the database or the widget host, as the ids come from the snapshot.
+     */
+    private void bindSnapshotItems(final ArrayList<ItemInfo> workspaceItems,
+            final ArrayList<LauncherAppWidgetInfo> appWidgets) {
+        int N = workspaceItems.size();
+        for (int i = 0; i < N; i += ITEMS_CHUNK) {
+            final List<ItemInfo> chunk =
+                    workspaceItems.subList(i, Math.min(i + ITEMS_CHUNK, N));
+            mUiExecutor.execute(() -> {
+                Callbacks c = mCallbacks.get();
+                if (c != null) {
+                    c.bindSnapshotItems(chunk);
+                }
+            });
+        }
+        if (!appWidgets.isEmpty()) {
+            final List<ItemInfo> widgets = new ArrayList<>(appWidgets);
+            mUiExecutor.execute(() -> {
+                Callbacks c = mCallbacks.get();
+                if (c != null) {
+                    c.bindSnapshotItems(widgets);
+                }
+            });
+        }
+    }
+
     /** Filters the set of items who are directly or indirectly (via another container) on the
      * specified screen. */
     public static <T extends ItemInfo> void filterCurrentWorkspaceItems(long currentScreenId,
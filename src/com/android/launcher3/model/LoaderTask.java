@@ -39,6 +39,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
 import android.util.MutableInt;
+import android.util.Pair;
 
 import ch.deletescape.lawnchair.ThemeChangeReceiver;
 import ch.deletescape.lawnchair.iconpack.IconPackManager;
@@ -54,11 +55,13 @@ import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.LauncherAppWidgetInfo;
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.LauncherSettings;
+import com.android.launcher3.LauncherSettings.Favorites;
 import com.android.launcher3.ShortcutInfo;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.PackageInstallerCompat;
+import com.android.launcher3.compat.ShortcutConfigActivityInfo;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.folder.Folder;
@@ -80,9 +83,19 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Runnable for the thread that loads the contents of the launcher:
@@ -94,6 +107,29 @@ import java.util.concurrent.CancellationException;
 public class LoaderTask implements Runnable {
     private static final String TAG = "LoaderTask";
 
+    /**
+     * Runs the system queries of the loading stages which don't depend on each other. Bounded to
+     * one thread per stage so that loading can't starve the UI thread. Stages only query the
+     * system services, their results are applied to the model and the icon cache on the loader
+     * thread.
+     */
+    private static final ThreadPoolExecutor STAGE_EXECUTOR = new ThreadPoolExecutor(3, 3,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, "launcher-loader-stage-" + mCount.incrementAndGet());
+                }
+            });
+
+    static {
+        STAGE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final LauncherAppState mApp;
     private final AllAppsList mBgAllAppsList;
     private final BgDataModel mBgDataModel;
@@ -111,6 +147,9 @@ public class LoaderTask implements Runnable {
 
     private boolean mStopped;
 
+    // Whether the bind of the first screen started while loading the workspace is still valid
+    private boolean mFirstScreenBound;
+
     public LoaderTask(LauncherAppState app, AllAppsList bgAllAppsList, BgDataModel dataModel,
             LoaderResults results) {
         mApp = app;
@@ -167,18 +206,45 @@ public class LoaderTask implements Runnable {
         }
 
         TraceHelper.beginSection(TAG);
+        Future<LinkedHashMap<UserHandle, List<LauncherActivityInfo>>> allAppsStage = null;
+        Future<HashMap<UserHandle, List<ShortcutInfoCompat>>> deepShortcutsStage = null;
+        Future<Pair<List<AppWidgetProviderInfo>, List<ShortcutConfigActivityInfo>>> widgetsStage =
+                null;
         try (LauncherModel.LoaderTransaction transaction = mApp.getModel().beginLoader(this)) {
-            TraceHelper.partitionSection(TAG, "step 1.1: loading workspace");
+            if (mBgDataModel.lastBindId == 0) {
+                // Nothing was bound by this process yet, show the last known workspace while the
+                // real one is being loaded
+                TraceHelper.partitionSection(TAG, "step 1.0: bind workspace snapshot");
+                bindWorkspaceSnapshot();
+            }
+
+            // The queries for all apps and widgets don't depend on the workspace, they run while
+            // the workspace is loaded and bound. Their results are applied on this thread.
+            TraceHelper.partitionSection(TAG, "step 1.1: start querying all apps and widgets");
+            allAppsStage = startStage(this::queryAllApps);
+            widgetsStage = startStage(this::queryWidgets);
+
+            verifyNotStopped();
+            TraceHelper.partitionSection(TAG, "step 1.2: loading workspace");
+            // Binds the first screen as soon as its items are loaded
             loadWorkspace();
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 1.2: bind workspace workspace");
-            mResults.bindWorkspace();
+            TraceHelper.partitionSection(TAG, "step 1.3: bind remaining screens");
+            if (mFirstScreenBound) {
+                mResults.bindRemainingScreens();
+            } else {
+                mResults.bindWorkspace();
+            }
 
             // Notify the installer packages of packages with active installs on the first screen.
-            TraceHelper.partitionSection(TAG, "step 1.3: send first screen broadcast");
+            TraceHelper.partitionSection(TAG, "step 1.4: send first screen broadcast");
             sendFirstScreenActiveInstallsBroadcast();
 
+            // Started only now, loading the workspace uses the shortcut manager as well
+            TraceHelper.partitionSection(TAG, "step 1.5: start querying deep shortcuts");
+            deepShortcutsStage = startStage(this::queryDeepShortcuts);
+
             // Take a break
             TraceHelper.partitionSection(TAG, "step 1 completed, wait for idle");
             waitForIdle();
@@ -186,7 +252,7 @@ public class LoaderTask implements Runnable {
 
             // second step
             TraceHelper.partitionSection(TAG, "step 2.1: loading all apps");
-            loadAllApps();
+            loadAllApps(awaitStage(allAppsStage));
 
             TraceHelper.partitionSection(TAG, "step 2.2: Binding all apps");
             verifyNotStopped();
@@ -203,7 +269,7 @@ public class LoaderTask implements Runnable {
 
             // third step
             TraceHelper.partitionSection(TAG, "step 3.1: loading deep shortcuts");
-            loadDeepShortcuts();
+            loadDeepShortcuts(awaitStage(deepShortcutsStage));
 
             verifyNotStopped();
             TraceHelper.partitionSection(TAG, "step 3.2: bind deep shortcuts");
@@ -216,23 +282,110 @@ public class LoaderTask implements Runnable {
 
             // fourth step
             TraceHelper.partitionSection(TAG, "step 4.1: loading widgets");
-            mBgDataModel.widgetsModel.update(mApp, null);
+            Pair<List<AppWidgetProviderInfo>, List<ShortcutConfigActivityInfo>> widgets =
+                    awaitStage(widgetsStage);
+            if (widgets != null) {
+                mBgDataModel.widgetsModel.update(mApp, widgets.first, widgets.second);
+            } else {
+                // The query failed, update queries again and handles the failure
+                mBgDataModel.widgetsModel.update(mApp, null);
+            }
 
             verifyNotStopped();
             TraceHelper.partitionSection(TAG, "step 4.2: Binding widgets");
             mResults.bindWidgets();
 
             transaction.commit();
+
+            TraceHelper.partitionSection(TAG, "step 5: write workspace snapshot");
+            WorkspaceSnapshot.write(mApp.getContext(), mBgDataModel);
         } catch (CancellationException e) {
             // Loader stopped, ignore
             TraceHelper.partitionSection(TAG, "Cancelled");
+        } finally {
+            // Stages don't touch the model, the queries of a stopped loader are just dropped
+            cancelStages(allAppsStage, deepShortcutsStage, widgetsStage);
         }
         TraceHelper.endSection(TAG);
     }
 
     public synchronized void stopLocked() {
         mStopped = true;
-        this.notify();
+        this.notifyAll();
+    }
+
+    private <T> Future<T> startStage(Callable<T> stage) {
+        FutureTask<T> task = new FutureTask<T>(stage) {
+            @Override
+            protected void done() {
+                synchronized (LoaderTask.this) {
+                    LoaderTask.this.notifyAll();
+                }
+            }
+        };
+        STAGE_EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * Waits for {@param stage} to finish and rethrows any failure on the loader thread.
+     */
+    private synchronized <T> T awaitStage(Future<T> stage) throws CancellationException {
+        while (!mStopped && !stage.isDone()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Loader interrupted");
+            }
+        }
+        verifyNotStopped();
+        try {
+            return stage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Loader interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void cancelStages(Future<?>... stages) {
+        for (Future<?> stage : stages) {
+            if (stage != null) {
+                stage.cancel(false);
+            }
+        }
+    }
+
+    private void bindWorkspaceSnapshot() {
+        WorkspaceSnapshot snapshot = WorkspaceSnapshot.read(mApp.getContext(),
+                mApp.getInvariantDeviceProfile());
+        if (snapshot == null) {
+            return;
+        }
+        for (ShortcutInfo info : snapshot.shortcuts) {
+            if (info.iconBitmap != null) {
+                continue;
+            }
+            // Keep the title that was bound, the cache only knows the activity label
+            CharSequence title = info.title;
+            if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                mIconCache.getTitleAndIcon(info, true /* useLowResIcon */);
+            } else {
+                mIconCache.getDefaultIcon(info.user).applyTo(info);
+            }
+            info.title = title;
+            info.contentDescription = title;
+        }
+        verifyNotStopped();
+        mResults.bindSnapshot(snapshot);
     }
 
     private void loadWorkspace() {
@@ -273,15 +426,36 @@ public class LoaderTask implements Runnable {
 
         synchronized (mBgDataModel) {
             mBgDataModel.clear();
+            // Read after the migrations above, which invalidate the snapshot
+            mBgDataModel.snapshotGeneration = WorkspaceSnapshot.getGeneration(context);
 
             final HashMap<String, SessionInfo> installingPkgs =
                     mPackageInstaller.updateAndGetActiveSessionCache();
             mFirstScreenBroadcast = new FirstScreenBroadcast(installingPkgs);
             mBgDataModel.workspaceScreens.addAll(LauncherModel.loadWorkspaceScreensDb(context));
 
+            // Items on the first screen, in the hotseat and in folders on either are read first,
+            // and bound as soon as they are loaded. Rows are ordered by container within each
+            // group so that folders are read before their contents, and by id after that so that
+            // overlapping items are resolved as before.
+            mFirstScreenBound = false;
+            final long firstScreenId = mResults.getFirstScreenId(mBgDataModel.workspaceScreens);
+            final String onFirstScreen = "(" + Favorites.CONTAINER + " = "
+                    + Favorites.CONTAINER_HOTSEAT + " OR (" + Favorites.CONTAINER + " = "
+                    + Favorites.CONTAINER_DESKTOP + " AND " + Favorites.SCREEN + " = "
+                    + firstScreenId + "))";
+            final String firstScreenOrder = "CASE WHEN " + onFirstScreen + " OR "
+                    + Favorites.CONTAINER + " IN (SELECT " + Favorites._ID + " FROM "
+                    + Favorites.TABLE_NAME + " WHERE " + onFirstScreen + ") THEN 0 ELSE 1 END, "
+                    + Favorites.CONTAINER + ", " + Favorites._ID;
+            // Null once the first screen is loaded
+            HashSet<Long> firstScreenContainers = new HashSet<>();
+            final HashSet<Long> firstScreenFolders = new HashSet<>();
+
             Map<ShortcutKey, ShortcutInfoCompat> shortcutKeyToPinnedShortcuts = new HashMap<>();
             final LoaderCursor c = new LoaderCursor(contentResolver.query(
-                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, null), mApp);
+                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, firstScreenOrder),
+                    mApp);
 
             HashMap<ComponentKey, AppWidgetProviderInfo> widgetProvidersMap = null;
 
@@ -304,6 +478,7 @@ public class LoaderTask implements Runnable {
                         LauncherSettings.Favorites.CUSTOM_ICON_ENTRY);
                 final int swipeUpActionEntryIndex = c.getColumnIndexOrThrow(
                         LauncherSettings.Favorites.SWIPE_UP_ACTION);
+                final int screenIndex = c.getColumnIndexOrThrow(Favorites.SCREEN);
 
                 final LongSparseArray<UserHandle> allUsers = c.allUsers;
                 final LongSparseArray<Boolean> quietMode = new LongSparseArray<>();
@@ -345,6 +520,17 @@ public class LoaderTask implements Runnable {
                 FolderIconPreviewVerifier verifier =
                         new FolderIconPreviewVerifier(mApp.getInvariantDeviceProfile());
                 while (!mStopped && c.moveToNext()) {
+                    if (firstScreenContainers != null) {
+                        if (c.container == Favorites.CONTAINER_HOTSEAT
+                                || (c.container == Favorites.CONTAINER_DESKTOP
+                                        && c.getLong(screenIndex) == firstScreenId)) {
+                            firstScreenContainers.add(c.id);
+                        } else if (!firstScreenContainers.contains(c.container)) {
+                            // All items of the first screen are loaded
+                            firstScreenContainers = null;
+                            bindFirstScreen(firstScreenFolders);
+                        }
+                    }
                     try {
                         if (c.user == null) {
                             // User has been deleted, remove the item.
@@ -736,6 +922,11 @@ public class LoaderTask implements Runnable {
                 return;
             }
 
+            if (firstScreenContainers != null) {
+                // Everything is on the first screen
+                bindFirstScreen(firstScreenFolders);
+            }
+
             // Remove dead items
             if (c.commitDeleted()) {
                 // Remove any empty folder
@@ -744,6 +935,10 @@ public class LoaderTask implements Runnable {
                                 LauncherSettings.Settings.METHOD_DELETE_EMPTY_FOLDERS)
                         .getSerializable(LauncherSettings.Settings.EXTRA_VALUE);
                 for (long folderId : deletedFolderIds) {
+                    if (firstScreenFolders.contains(folderId)) {
+                        // Already bound, rebind everything
+                        mFirstScreenBound = false;
+                    }
                     mBgDataModel.workspaceItems.remove(mBgDataModel.folders.get(folderId));
                     mBgDataModel.folders.remove(folderId);
                     mBgDataModel.itemsIdMap.remove(folderId);
@@ -768,27 +963,8 @@ public class LoaderTask implements Runnable {
                 }
             }
 
-            FolderIconPreviewVerifier verifier =
-                    new FolderIconPreviewVerifier(mApp.getInvariantDeviceProfile());
-            // Sort the folder items and make sure all items in the preview are high resolution.
-            for (FolderInfo folder : mBgDataModel.folders) {
-                Collections.sort(folder.contents, Folder.ITEM_POS_COMPARATOR);
-                verifier.setFolderInfo(folder);
-
-                int numItemsInPreview = 0;
-                for (ShortcutInfo info : folder.contents) {
-                    if (info.usingLowResIcon
-                            && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
-                            && verifier.isItemInPreview(info.rank)) {
-                        mIconCache.getTitleAndIcon(info, false);
-                        numItemsInPreview++;
-                    }
-
-                    if (numItemsInPreview >= MAX_NUM_ITEMS_IN_PREVIEW) {
-                        break;
-                    }
-                }
-            }
+            // The folders bound with the first screen are already prepared
+            prepareFolders(firstScreenFolders);
 
             c.commitRestoredItems();
             if (!isSdCardReady && !pendingPackages.isEmpty()) {
@@ -811,12 +987,54 @@ public class LoaderTask implements Runnable {
 
             // If there are any empty screens remove them, and update.
             if (unusedScreens.size() != 0) {
+                // The screens were bound with the first screen, rebind everything
+                mFirstScreenBound = false;
                 mBgDataModel.workspaceScreens.removeAll(unusedScreens);
                 LauncherModel.updateWorkspaceScreenOrder(context, mBgDataModel.workspaceScreens);
             }
         }
     }
 
+    /**
+     * Binds the items loaded so far, which are the ones on the first screen and in the hotseat.
+     * The loader keeps holding the model lock, the UI thread only reads the bound items.
+     */
+    private void bindFirstScreen(HashSet<Long> outFolders) {
+        prepareFolders(outFolders);
+        mFirstScreenBound = mResults.bindFirstScreen();
+    }
+
+    /**
+     * Sorts the contents of the loaded folders and makes sure all items in their previews are
+     * high resolution. Adds the ids of the prepared folders to {@param preparedFolders}, and skips
+     * the folders already in it.
+     */
+    private void prepareFolders(HashSet<Long> preparedFolders) {
+        FolderIconPreviewVerifier verifier =
+                new FolderIconPreviewVerifier(mApp.getInvariantDeviceProfile());
+        for (FolderInfo folder : mBgDataModel.folders) {
+            if (!preparedFolders.add(folder.id)) {
+                continue;
+            }
+            Collections.sort(folder.contents, Folder.ITEM_POS_COMPARATOR);
+            verifier.setFolderInfo(folder);
+
+            int numItemsInPreview = 0;
+            for (ShortcutInfo info : folder.contents) {
+                if (info.usingLowResIcon
+                        && info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION
+                        && verifier.isItemInPreview(info.rank)) {
+                    mIconCache.getTitleAndIcon(info, false);
+                    numItemsInPreview++;
+                }
+
+                if (numItemsInPreview >= MAX_NUM_ITEMS_IN_PREVIEW) {
+                    break;
+                }
+            }
+        }
+    }
+
     private void updateIconCache() {
         // Ignore packages which have a promise icon.
         HashSet<String> packagesToIgnore = new HashSet<>();
@@ -838,14 +1056,25 @@ public class LoaderTask implements Runnable {
         mIconCache.updateDbIcons(packagesToIgnore);
     }
 
-    private void loadAllApps() {
-        final List<UserHandle> profiles = mUserManager.getUserProfiles();
+    /**
+     * Queries the launcher activities of all profiles, runs as a stage.
+     */
+    private LinkedHashMap<UserHandle, List<LauncherActivityInfo>> queryAllApps() {
+        LinkedHashMap<UserHandle, List<LauncherActivityInfo>> result = new LinkedHashMap<>();
+        for (UserHandle user : mUserManager.getUserProfiles()) {
+            verifyNotStopped();
+            result.put(user, mLauncherApps.getActivityList(null, user));
+        }
+        return result;
+    }
 
+    private void loadAllApps(LinkedHashMap<UserHandle, List<LauncherActivityInfo>> activities) {
         // Clear the list of apps
         mBgAllAppsList.clear();
-        for (UserHandle user : profiles) {
-            // Query for the set of apps
-            final List<LauncherActivityInfo> apps = mLauncherApps.getActivityList(null, user);
+        for (Map.Entry<UserHandle, List<LauncherActivityInfo>> entry : activities.entrySet()) {
+            verifyNotStopped();
+            final UserHandle user = entry.getKey();
+            final List<LauncherActivityInfo> apps = entry.getValue();
             // Fail if we don't have any apps
             if (apps == null || apps.isEmpty()) {
                 continue;
@@ -883,20 +1112,51 @@ public class LoaderTask implements Runnable {
         mBgAllAppsList.added = new ArrayList<>();
     }
 
-    private void loadDeepShortcuts() {
+    /**
+     * Queries the deep shortcuts of all unlocked profiles, runs as a stage.
+     *
+     * @return the shortcuts per profile, or null without the shortcut host permission
+     */
+    private HashMap<UserHandle, List<ShortcutInfoCompat>> queryDeepShortcuts() {
+        if (!mShortcutManager.hasHostPermission()) {
+            return null;
+        }
+        HashMap<UserHandle, List<ShortcutInfoCompat>> result = new HashMap<>();
+        for (UserHandle user : mUserManager.getUserProfiles()) {
+            verifyNotStopped();
+            if (mUserManager.isUserUnlocked(user)) {
+                result.put(user, mShortcutManager.queryForAllShortcuts(user));
+            }
+        }
+        return result;
+    }
+
+    private void loadDeepShortcuts(HashMap<UserHandle, List<ShortcutInfoCompat>> shortcuts) {
         mBgDataModel.deepShortcutMap.clear();
-        mBgDataModel.hasShortcutHostPermission = mShortcutManager.hasHostPermission();
-        if (mBgDataModel.hasShortcutHostPermission) {
-            for (UserHandle user : mUserManager.getUserProfiles()) {
-                if (mUserManager.isUserUnlocked(user)) {
-                    List<ShortcutInfoCompat> shortcuts =
-                            mShortcutManager.queryForAllShortcuts(user);
-                    mBgDataModel.updateDeepShortcutMap(null, user, shortcuts);
-                }
+        mBgDataModel.hasShortcutHostPermission = shortcuts != null;
+        if (shortcuts != null) {
+            for (Map.Entry<UserHandle, List<ShortcutInfoCompat>> entry : shortcuts.entrySet()) {
+                mBgDataModel.updateDeepShortcutMap(null, entry.getKey(), entry.getValue());
             }
         }
     }
 
+    /**
+     * Queries the widget providers and shortcut config activities, runs as a stage.
+     *
+     * @return the providers and activities, or null if the query failed
+     */
+    private Pair<List<AppWidgetProviderInfo>, List<ShortcutConfigActivityInfo>> queryWidgets() {
+        try {
+            return Pair.create(mAppWidgetManager.getAllProviders(null),
+                    mLauncherApps.getCustomShortcutActivityList(null));
+        } catch (RuntimeException e) {
+            // WidgetsModel handles failures like binder size errors itself
+            Log.w(TAG, "Unable to query widgets", e);
+            return null;
+        }
+    }
+
     public static boolean isValidProvider(AppWidgetProviderInfo provider) {
         return (provider != null) && (provider.provider != null)
                 && (provider.provider.getPackageName() != null);
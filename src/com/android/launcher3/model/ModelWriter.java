@@ -410,6 +410,7 @@ public class ModelWriter {
                 mBgDataModel.addItem(mContext, item, true);
                 verifier.verifyModel();
             }
+            WorkspaceSnapshot.scheduleWrite(mContext, mBgDataModel);
         });
     }
 
@@ -441,6 +442,7 @@ public class ModelWriter {
                 mBgDataModel.removeItem(mContext, item);
                 verifier.verifyModel();
             }
+            WorkspaceSnapshot.scheduleWrite(mContext, mBgDataModel);
         });
     }
 
@@ -460,6 +462,7 @@ public class ModelWriter {
             cr.delete(LauncherSettings.Favorites.getContentUri(info.id), null, null);
             mBgDataModel.removeItem(mContext, info);
             verifier.verifyModel();
+            WorkspaceSnapshot.scheduleWrite(mContext, mBgDataModel);
         });
     }
 
@@ -618,6 +621,7 @@ public class ModelWriter {
                 }
                 mVerifier.verifyModel();
             }
+            WorkspaceSnapshot.scheduleWrite(mContext, mBgDataModel);
         }
     }
 
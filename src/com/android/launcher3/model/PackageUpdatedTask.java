@@ -367,12 +367,26 @@ public class PackageUpdatedTask extends BaseModelUpdateTask {
             });
         }
 
-        if (Utilities.ATLEAST_OREO && mOp == OP_ADD) {
-            // Load widgets for the new package. Changes due to app updates are handled through
-            // AppWidgetHost events, this is just to initialize the long-press options.
-            for (int i = 0; i < N; i++) {
-                dataModel.widgetsModel.update(app, new PackageUserKey(packages[i], mUser));
+        // Apply the widget changes of all packages at once, so that a batch of updates only
+        // binds the widgets once and never rescans packages outside of the batch.
+        final ArrayList<PackageUserKey> packageUsers = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            packageUsers.add(new PackageUserKey(packages[i], mUser));
+        }
+        boolean widgetsChanged = false;
+        if (mOp == OP_REMOVE || mOp == OP_UNAVAILABLE) {
+            widgetsChanged = dataModel.widgetsModel.removePackages(app, packageUsers);
+        } else if (mOp == OP_UPDATE) {
+            // Providers of updated packages can't be reused, even if they look the same
+            dataModel.widgetsModel.invalidatePackages(packageUsers);
+            if (Utilities.ATLEAST_OREO) {
+                widgetsChanged = dataModel.widgetsModel.updatePackages(app, packageUsers);
             }
+        } else if (Utilities.ATLEAST_OREO && mOp == OP_ADD) {
+            // Load widgets for the new packages, this initializes the long-press options.
+            widgetsChanged = dataModel.widgetsModel.updatePackages(app, packageUsers);
+        }
+        if (widgetsChanged) {
             bindUpdatedWidgets(dataModel);
         }
     }
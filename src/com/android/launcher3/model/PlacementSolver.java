@@ -0,0 +1,439 @@
+package com.android.launcher3.model;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.launcher3.model.GridSizeMigrationTask.DbEntry;
+import com.android.launcher3.util.GridOccupancy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Finds the placement of items on a grid which loses the least weight, used by
+ * {@link GridSizeMigrationTask} to fit the items of a screen into a smaller grid.
+ *
+ * Widgets are tried at every position and size while 1x1 items are placed at the closest vacant
+ * cell, in a depth first branch and bound search. To keep dense screens from taking exponential
+ * time:
+ *   1) Branches are cut as soon as the items left can't all fit and dropping the lightest of them
+ *      already loses as much as the best placement found so far.
+ *   2) States are memoized by item index and occupied cells. The rest of the search only depends
+ *      on those two, so a state reached again with no lower weight loss is skipped.
+ *   3) The search stops when the deadline passes. The best of the placement found so far and
+ *      a greedy placement is used instead, and {@link #optimalityLoss} reports how much more
+ *      weight than necessary it might lose. The deadline is shared by all the searches for one
+ *      screen.
+ * Like the exhaustive search, the first placement found with the least weight loss is kept and
+ * move cost only orders the search, so within the budget the result is the same as the one of
+ * the exhaustive search.
+ */
+class PlacementSolver {
+
+    private static final String TAG = "PlacementSolver";
+
+    // Reading the clock on every step would cost more than the step itself
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+    private static final int MAX_MEMO_SIZE = 1 << 16;
+
+    private final int mCountX, mCountY;
+    private final ArrayList<DbEntry> itemsToPlace;
+    private final GridOccupancy occupied;
+
+    // If set to true, item movement are not considered in move cost, leading to a more
+    // linear placement.
+    private final boolean ignoreMove;
+
+    // The first row in the grid from where the placement should start.
+    private final int startY;
+
+    // Uptime at which the search stops, Long.MAX_VALUE for no limit
+    private final long mDeadline;
+
+    // Lightest item and smallest total area of the items from an index on, for the lower bound
+    private final float[] mMinWeightFrom;
+    private final int[] mMinAreaFrom;
+    private int mFreeCells;
+
+    // Least weight loss each state was reached with, by item index and occupied cells as bits,
+    // or null if the grid is too large to be memoized
+    private final HashMap<Long, Float>[] mMemo;
+    private long mOccupiedMask;
+    private int mMemoSize;
+
+    private int mStepsUntilCheck;
+
+    float lowestWeightLoss = Float.MAX_VALUE;
+    float lowestMoveCost = Float.MAX_VALUE;
+    ArrayList<DbEntry> finalPlacedItems;
+
+    // Set when the budget ran out and the result might not be optimal
+    boolean timedOut;
+    // Upper bound of the weight which could have been kept with an unlimited budget
+    float optimalityLoss;
+
+    @SuppressWarnings("unchecked")
+    PlacementSolver(int countX, int countY, GridOccupancy occupied,
+            ArrayList<DbEntry> itemsToPlace, int startY, boolean ignoreMove, long deadline) {
+        mCountX = countX;
+        mCountY = countY;
+        this.occupied = occupied;
+        this.itemsToPlace = itemsToPlace;
+        this.ignoreMove = ignoreMove;
+        this.startY = startY;
+        mDeadline = deadline;
+
+        // Sort the items such that larger widgets appear first followed by 1x1 items
+        Collections.sort(this.itemsToPlace);
+
+        int count = itemsToPlace.size();
+        mMinWeightFrom = new float[count + 1];
+        mMinAreaFrom = new int[count + 1];
+        mMinWeightFrom[count] = Float.MAX_VALUE;
+        for (int i = count - 1; i >= 0; i--) {
+            DbEntry item = itemsToPlace.get(i);
+            mMinWeightFrom[i] = Math.min(mMinWeightFrom[i + 1], item.weight);
+            mMinAreaFrom[i] = mMinAreaFrom[i + 1]
+                    + Math.max(1, item.minSpanX) * Math.max(1, item.minSpanY);
+        }
+
+        for (int y = startY; y < countY; y++) {
+            for (int x = 0; x < countX; x++) {
+                if (!occupied.cells[x][y]) {
+                    mFreeCells++;
+                }
+            }
+        }
+
+        if (countX * countY <= Long.SIZE) {
+            mMemo = new HashMap[count];
+            for (int y = 0; y < countY; y++) {
+                for (int x = 0; x < countX; x++) {
+                    if (occupied.cells[x][y]) {
+                        mOccupiedMask |= 1L << (y * countX + x);
+                    }
+                }
+            }
+        } else {
+            mMemo = null;
+        }
+    }
+
+    public void find() {
+        long start = SystemClock.uptimeMillis();
+        // Check the deadline on the first step, it may have passed during an earlier search
+        mStepsUntilCheck = 1;
+        float lowerBound = lowerBound(0, 0);
+        find(0, 0, 0, new ArrayList<DbEntry>());
+
+        if (timedOut) {
+            findGreedy();
+            optimalityLoss = lowestWeightLoss - lowerBound;
+            Log.w(TAG, String.format("Placement of %d items ran out of time after %dms, "
+                    + "up to %.1f weight might be lost needlessly",
+                    itemsToPlace.size(), SystemClock.uptimeMillis() - start, optimalityLoss));
+        }
+    }
+
+    /**
+     * Returns the least weight loss of any placement continuing from {@param index}.
+     */
+    private float lowerBound(int index, float weightLoss) {
+        // If the rest doesn't fit, at least the lightest item is lost
+        return mMinAreaFrom[index] > mFreeCells ? weightLoss + mMinWeightFrom[index] : weightLoss;
+    }
+
+    private void mark(DbEntry item, boolean value) {
+        occupied.markCells(item, value);
+        int area = item.spanX * item.spanY;
+        mFreeCells += value ? -area : area;
+        if (mMemo != null) {
+            for (int y = item.cellY; y < item.cellY + item.spanY; y++) {
+                for (int x = item.cellX; x < item.cellX + item.spanX; x++) {
+                    mOccupiedMask ^= 1L << (y * mCountX + x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the search has to stop, either because the deadline passed or because this
+     * state was already searched with at most {@param weightLoss}.
+     */
+    private boolean shouldSkip(int index, float weightLoss) {
+        if (timedOut) {
+            return true;
+        }
+        if (--mStepsUntilCheck <= 0) {
+            mStepsUntilCheck = DEADLINE_CHECK_INTERVAL;
+            if (SystemClock.uptimeMillis() > mDeadline) {
+                timedOut = true;
+                return true;
+            }
+        }
+        if (mMemo == null || index >= itemsToPlace.size()) {
+            return false;
+        }
+        HashMap<Long, Float> seen = mMemo[index];
+        if (seen == null) {
+            seen = mMemo[index] = new HashMap<>();
+        }
+        Float reached = seen.get(mOccupiedMask);
+        if (reached != null) {
+            if (weightLoss >= reached) {
+                return true;
+            }
+            seen.put(mOccupiedMask, weightLoss);
+        } else if (mMemoSize < MAX_MEMO_SIZE) {
+            seen.put(mOccupiedMask, weightLoss);
+            mMemoSize++;
+        }
+        return false;
+    }
+
+    /**
+     * Recursively finds a placement for the provided items.
+     * @param index the position in {@link #itemsToPlace} to start looking at.
+     * @param weightLoss total weight loss upto this point
+     * @param moveCost total move cost upto this point
+     * @param itemsPlaced all the items already placed upto this point
+     */
+    private void find(int index, float weightLoss, float moveCost,
+            ArrayList<DbEntry> itemsPlaced) {
+        if ((weightLoss >= lowestWeightLoss) ||
+                ((weightLoss == lowestWeightLoss) && (moveCost >= lowestMoveCost))) {
+            // Abort, as we already have a better solution.
+            return;
+
+        } else if (index >= itemsToPlace.size()) {
+            // End loop.
+            lowestWeightLoss = weightLoss;
+            lowestMoveCost = moveCost;
+
+            // Keep a deep copy of current configuration as it can change during recursion.
+            finalPlacedItems = GridSizeMigrationTask.deepCopy(itemsPlaced);
+            return;
+        }
+
+        if (lowerBound(index, weightLoss) >= lowestWeightLoss || shouldSkip(index, weightLoss)) {
+            // A placement with as much weight loss as the best one is never kept
+            return;
+        }
+
+        DbEntry me = itemsToPlace.get(index);
+        int myX = me.cellX;
+        int myY = me.cellY;
+
+        // List of items to pass over if this item was placed.
+        ArrayList<DbEntry> itemsIncludingMe = new ArrayList<>(itemsPlaced.size() + 1);
+        itemsIncludingMe.addAll(itemsPlaced);
+        itemsIncludingMe.add(me);
+
+        if (me.spanX > 1 || me.spanY > 1) {
+            // If the current item is a widget (and it greater than 1x1), try to place it at
+            // all possible positions. This is because a widget placed at one position can
+            // affect the placement of a different widget.
+            int myW = me.spanX;
+            int myH = me.spanY;
+
+            for (int y = startY; y < mCountY; y++) {
+                for (int x = 0; x < mCountX; x++) {
+                    float newMoveCost = moveCost;
+                    if (x != myX) {
+                        me.cellX = x;
+                        newMoveCost ++;
+                    }
+                    if (y != myY) {
+                        me.cellY = y;
+                        newMoveCost ++;
+                    }
+                    if (ignoreMove) {
+                        newMoveCost = moveCost;
+                    }
+
+                    if (occupied.isRegionVacant(x, y, myW, myH)) {
+                        // place at this position and continue search.
+                        mark(me, true);
+                        find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
+                        mark(me, false);
+                    }
+
+                    // Try resizing horizontally
+                    if (myW > me.minSpanX && occupied.isRegionVacant(x, y, myW - 1, myH)) {
+                        me.spanX --;
+                        mark(me, true);
+                        // 1 extra move cost
+                        find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
+                        mark(me, false);
+                        me.spanX ++;
+                    }
+
+                    // Try resizing vertically
+                    if (myH > me.minSpanY && occupied.isRegionVacant(x, y, myW, myH - 1)) {
+                        me.spanY --;
+                        mark(me, true);
+                        // 1 extra move cost
+                        find(index + 1, weightLoss, newMoveCost + 1, itemsIncludingMe);
+                        mark(me, false);
+                        me.spanY ++;
+                    }
+
+                    // Try resizing horizontally & vertically
+                    if (myH > me.minSpanY && myW > me.minSpanX &&
+                            occupied.isRegionVacant(x, y, myW - 1, myH - 1)) {
+                        me.spanX --;
+                        me.spanY --;
+                        mark(me, true);
+                        // 2 extra move cost
+                        find(index + 1, weightLoss, newMoveCost + 2, itemsIncludingMe);
+                        mark(me, false);
+                        me.spanX ++;
+                        me.spanY ++;
+                    }
+                    me.cellX = myX;
+                    me.cellY = myY;
+                }
+            }
+
+            // Finally also try a solution when this item is not included. Trying it in the end
+            // causes it to get skipped in most cases due to higher weight loss, and prevents
+            // unnecessary deep copies of various configurations.
+            find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+        } else {
+            // Since this is a 1x1 item and all the following items are also 1x1, just place
+            // it at 'the most appropriate position' and hope for the best.
+            // The most appropriate position: one with lease straight line distance
+            int[] cell = new int[2];
+            if (findClosestCell(me, cell)) {
+                int newX = cell[0];
+                int newY = cell[1];
+                float newMoveCost = moveCost;
+                if (newX != myX) {
+                    me.cellX = newX;
+                    newMoveCost ++;
+                }
+                if (newY != myY) {
+                    me.cellY = newY;
+                    newMoveCost ++;
+                }
+                if (ignoreMove) {
+                    newMoveCost = moveCost;
+                }
+                mark(me, true);
+                find(index + 1, weightLoss, newMoveCost, itemsIncludingMe);
+                mark(me, false);
+                me.cellX = myX;
+                me.cellY = myY;
+
+                // Try to find a solution without this item, only if
+                //  1) there was at least one space, i.e., we were able to place this item
+                //  2) if the next item has the same weight (all items are already sorted), as
+                //     if it has lower weight, that solution will automatically get discarded.
+                //  3) ignoreMove false otherwise, move cost is ignored and the weight will
+                //      anyway be same.
+                if (index + 1 < itemsToPlace.size()
+                        && itemsToPlace.get(index + 1).weight >= me.weight && !ignoreMove) {
+                    find(index + 1, weightLoss + me.weight, moveCost, itemsPlaced);
+                }
+            } else {
+                // No more space. Jump to the end.
+                for (int i = index + 1; i < itemsToPlace.size(); i++) {
+                    weightLoss += itemsToPlace.get(i).weight;
+                }
+                find(itemsToPlace.size(), weightLoss + me.weight, moveCost, itemsPlaced);
+            }
+        }
+    }
+
+    /**
+     * Finds the vacant cell closest to the current position of {@param item}, or the first one
+     * if move cost is ignored.
+     */
+    private boolean findClosestCell(DbEntry item, int[] outCell) {
+        int newDistance = Integer.MAX_VALUE;
+        boolean found = false;
+        for (int y = startY; y < mCountY; y++) {
+            for (int x = 0; x < mCountX; x++) {
+                if (!occupied.cells[x][y]) {
+                    int dist = ignoreMove ? 0 : ((item.cellX - x) * (item.cellX - x)
+                            + (item.cellY - y) * (item.cellY - y));
+                    if (dist < newDistance) {
+                        outCell[0] = x;
+                        outCell[1] = y;
+                        newDistance = dist;
+                        found = true;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Places every item at the first position where it fits, shrinking widgets if needed, and
+     * keeps the result if it loses less weight than the placement found by the search.
+     */
+    private void findGreedy() {
+        GridOccupancy searchOccupied = new GridOccupancy(mCountX, mCountY);
+        occupied.copyTo(searchOccupied);
+
+        ArrayList<DbEntry> placed = new ArrayList<>();
+        float weightLoss = 0;
+        float moveCost = 0;
+        int[] cell = new int[2];
+        for (DbEntry original : itemsToPlace) {
+            DbEntry item = original.copy();
+            boolean fits = item.spanX > 1 || item.spanY > 1
+                    ? placeWidget(item) : placeIcon(item, cell);
+            if (fits) {
+                occupied.markCells(item, true);
+                placed.add(item);
+                if (!ignoreMove) {
+                    moveCost += (item.cellX != original.cellX ? 1 : 0)
+                            + (item.cellY != original.cellY ? 1 : 0)
+                            + (item.spanX != original.spanX ? 1 : 0)
+                            + (item.spanY != original.spanY ? 1 : 0);
+                }
+            } else {
+                weightLoss += item.weight;
+            }
+        }
+        searchOccupied.copyTo(occupied);
+
+        if (weightLoss < lowestWeightLoss) {
+            lowestWeightLoss = weightLoss;
+            lowestMoveCost = moveCost;
+            finalPlacedItems = placed;
+        }
+    }
+
+    private boolean placeIcon(DbEntry item, int[] tmpCell) {
+        if (!findClosestCell(item, tmpCell)) {
+            return false;
+        }
+        item.cellX = tmpCell[0];
+        item.cellY = tmpCell[1];
+        return true;
+    }
+
+    private boolean placeWidget(DbEntry item) {
+        // Prefer the full size anywhere over a smaller one close by
+        for (int spanY = item.spanY; spanY >= Math.max(1, item.minSpanY); spanY--) {
+            for (int spanX = item.spanX; spanX >= Math.max(1, item.minSpanX); spanX--) {
+                for (int y = startY; y < mCountY; y++) {
+                    for (int x = 0; x < mCountX; x++) {
+                        if (occupied.isRegionVacant(x, y, spanX, spanY)) {
+                            item.cellX = x;
+                            item.cellY = y;
+                            item.spanX = spanX;
+                            item.spanY = spanY;
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -4,11 +4,13 @@ package com.android.launcher3.model;
 import static android.appwidget.AppWidgetProviderInfo.WIDGET_FEATURE_HIDE_FROM_PICKER;
 
 import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Process;
 import android.os.UserHandle;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.launcher3.AppFilter;
@@ -29,15 +31,22 @@ import com.android.launcher3.widget.WidgetItemComparator;
 import com.android.launcher3.widget.WidgetListRowEntry;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Widgets data model that is used by the adapters of the widget views and controllers.
  *
  * <p> The widgets and shortcuts are organized using package name as its index.
+ *
+ * <p> The scanned widgets and shortcuts are also indexed per package/user, so that updates only
+ * rebuild the rows of the packages which actually changed.
  */
 public class WidgetsModel {
 
@@ -47,6 +56,14 @@ public class WidgetsModel {
     /* Map of widgets and shortcuts that are tracked per package. */
     private final MultiHashMap<PackageItemInfo, WidgetItem> mWidgetsList = new MultiHashMap<>();
 
+    /* Unfiltered widgets and shortcuts of every package/user, as returned by the last scan. */
+    private final HashMap<PackageUserKey, ArrayList<WidgetItem>> mPackageIndex = new HashMap<>();
+    /* Packages updated since their last scan, whose items can't be reused. */
+    private final HashSet<PackageUserKey> mStalePackages = new HashSet<>();
+    private boolean mIndexLoaded;
+    private InvariantDeviceProfile mIndexIdp;
+    private String mIndexLocales;
+
     private AppFilter mAppFilter;
 
     /**
@@ -74,78 +91,290 @@ public class WidgetsModel {
     /**
      * @param packageUser If null, all widgets and shortcuts are updated and returned, otherwise
      *                    only widgets and shortcuts associated with the package/user are.
+     * @return whether the widgets list changed
+     */
+    public boolean update(LauncherAppState app, @Nullable PackageUserKey packageUser) {
+        return updatePackages(app,
+                packageUser == null ? null : Collections.singletonList(packageUser));
+    }
+
+    /**
+     * Rescans the given packages, or all packages if null. Providers which did not change since
+     * the last scan keep their {@link WidgetItem}, and previews are only validated for the
+     * packages whose widgets changed.
+     *
+     * <p> A full scan still rebuilds every row, so that package headers and the
+     * {@link AppFilter} pick up icon cache and filter changes which the index can't detect.
+     *
+     * @return whether the widgets list changed, always true for a full scan
+     */
+    public boolean updatePackages(LauncherAppState app,
+            @Nullable Collection<PackageUserKey> packages) {
+        return updatePackages(app, packages, null, null);
+    }
+
+    /**
+     * Full scan from the widget providers and shortcut config activities of all packages, which
+     * were queried ahead of time so that the queries can overlap with loading the workspace.
+     *
+     * @return whether the widgets list changed, always true
      */
-    public void update(LauncherAppState app, @Nullable PackageUserKey packageUser) {
+    public boolean update(LauncherAppState app, List<AppWidgetProviderInfo> providers,
+            List<ShortcutConfigActivityInfo> shortcuts) {
+        return updatePackages(app, null, providers, shortcuts);
+    }
+
+    private boolean updatePackages(LauncherAppState app,
+            @Nullable Collection<PackageUserKey> packages,
+            @Nullable List<AppWidgetProviderInfo> providers,
+            @Nullable List<ShortcutConfigActivityInfo> shortcuts) {
         Preconditions.assertWorkerThread();
 
         Context context = app.getContext();
-        final ArrayList<WidgetItem> widgetsAndShortcuts = new ArrayList<>();
+        InvariantDeviceProfile idp = app.getInvariantDeviceProfile();
+        String locales = context.getResources().getConfiguration().getLocales().toLanguageTags();
+        HashMap<PackageUserKey, ArrayList<WidgetItem>> scanned = new HashMap<>();
+        HashSet<PackageUserKey> changed = new HashSet<>();
+        boolean initialScan;
+        synchronized (this) {
+            if (idp != mIndexIdp || !locales.equals(mIndexLocales)) {
+                // Spans and labels depend on these, nothing can be reused
+                mStalePackages.addAll(mPackageIndex.keySet());
+                mIndexIdp = idp;
+                mIndexLocales = locales;
+            }
+            initialScan = !mIndexLoaded;
+        }
         try {
             PackageManager pm = context.getPackageManager();
-            InvariantDeviceProfile idp = app.getInvariantDeviceProfile();
-
-            // Widgets
             AppWidgetManagerCompat widgetManager = AppWidgetManagerCompat.getInstance(context);
-            for (AppWidgetProviderInfo widgetInfo : widgetManager.getAllProviders(packageUser)) {
-                widgetsAndShortcuts.add(new WidgetItem(LauncherAppWidgetProviderInfo
-                        .fromProviderInfo(context, widgetInfo), pm, idp));
-            }
-
-            // Shortcuts
-            for (ShortcutConfigActivityInfo info : LauncherAppsCompat.getInstance(context)
-                    .getCustomShortcutActivityList(packageUser)) {
-                widgetsAndShortcuts.add(new WidgetItem(info));
+            LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
+            if (packages == null) {
+                if (providers == null) {
+                    providers = widgetManager.getAllProviders(null);
+                    shortcuts = launcherApps.getCustomShortcutActivityList(null);
+                }
+                scan(context, pm, idp, providers, shortcuts, scanned);
+            } else {
+                for (PackageUserKey packageUser : packages) {
+                    scanned.put(packageUser, new ArrayList<>());
+                    scan(context, pm, idp, widgetManager.getAllProviders(packageUser),
+                            launcherApps.getCustomShortcutActivityList(packageUser), scanned);
+                }
             }
-            setWidgetsAndShortcuts(widgetsAndShortcuts, app, packageUser);
         } catch (Exception e) {
             if (!FeatureFlags.IS_DOGFOOD_BUILD && Utilities.isBinderSizeError(e)) {
                 // the returned value may be incomplete and will not be refreshed until the next
                 // time Launcher starts.
                 // TODO: after figuring out a repro step, introduce a dirty bit to check when
                 // onResume is called to refresh the widget provider list.
+                return false;
             } else {
                 throw e;
             }
         }
 
-        app.getWidgetCache().removeObsoletePreviews(widgetsAndShortcuts, packageUser);
+        synchronized (this) {
+            if (packages == null) {
+                for (PackageUserKey key : mPackageIndex.keySet()) {
+                    if (!scanned.containsKey(key)) {
+                        changed.add(key);
+                    }
+                }
+                mPackageIndex.keySet().retainAll(scanned.keySet());
+                mStalePackages.clear();
+                mIndexLoaded = true;
+            } else {
+                mStalePackages.removeAll(packages);
+            }
+            for (Map.Entry<PackageUserKey, ArrayList<WidgetItem>> entry : scanned.entrySet()) {
+                ArrayList<WidgetItem> items = entry.getValue();
+                ArrayList<WidgetItem> old = items.isEmpty()
+                        ? mPackageIndex.remove(entry.getKey())
+                        : mPackageIndex.put(entry.getKey(), items);
+                if (old == null ? !items.isEmpty() : !sameItems(old, items)) {
+                    changed.add(entry.getKey());
+                }
+            }
+            if (packages == null) {
+                setWidgetsAndShortcuts(app, null);
+            } else if (!changed.isEmpty()) {
+                setWidgetsAndShortcuts(app, changed);
+            }
+        }
+
+        if (initialScan && packages == null) {
+            // Also drops previews of packages which changed while the launcher was dead
+            app.getWidgetCache().removeObsoletePreviews(getIndexedItems(null),
+                    (PackageUserKey) null);
+        } else if (!changed.isEmpty()) {
+            app.getWidgetCache().removeObsoletePreviews(getIndexedItems(changed), changed);
+        }
+        return packages == null || !changed.isEmpty();
+    }
+
+    /**
+     * Drops the widgets of the given packages without querying the system, used when the
+     * packages were removed or became unavailable.
+     *
+     * @return whether the widgets list changed
+     */
+    public synchronized boolean removePackages(LauncherAppState app,
+            Collection<PackageUserKey> packages) {
+        HashSet<PackageUserKey> changed = new HashSet<>();
+        mStalePackages.removeAll(packages);
+        for (PackageUserKey packageUser : packages) {
+            if (mPackageIndex.remove(packageUser) != null) {
+                changed.add(packageUser);
+            }
+        }
+        if (!changed.isEmpty()) {
+            setWidgetsAndShortcuts(app, changed);
+        }
+        return !changed.isEmpty();
+    }
+
+    /**
+     * Marks the widgets of the given packages as stale, so that the next scan recreates them
+     * instead of reusing the existing {@link WidgetItem}s. Used when the packages were updated.
+     */
+    public synchronized void invalidatePackages(Collection<PackageUserKey> packages) {
+        mStalePackages.addAll(packages);
+    }
+
+    private void scan(Context context, PackageManager pm, InvariantDeviceProfile idp,
+            List<AppWidgetProviderInfo> providers, List<ShortcutConfigActivityInfo> shortcuts,
+            HashMap<PackageUserKey, ArrayList<WidgetItem>> out) {
+        // Widgets
+        for (AppWidgetProviderInfo widgetInfo : providers) {
+            PackageUserKey key = new PackageUserKey(widgetInfo.provider.getPackageName(),
+                    widgetInfo.getProfile());
+            WidgetItem item = findIndexed(key, widgetInfo.provider);
+            if (item == null || !isSameProvider(item.widgetInfo, widgetInfo)) {
+                item = new WidgetItem(LauncherAppWidgetProviderInfo
+                        .fromProviderInfo(context, widgetInfo), pm, idp);
+            }
+            addToList(out, key, item);
+        }
+
+        // Shortcuts
+        for (ShortcutConfigActivityInfo info : shortcuts) {
+            PackageUserKey key = new PackageUserKey(info.getComponent().getPackageName(),
+                    info.getUser());
+            WidgetItem item = findIndexed(key, info.getComponent());
+            if (item == null || item.activityInfo == null) {
+                item = new WidgetItem(info);
+            }
+            addToList(out, key, item);
+        }
+    }
+
+    private synchronized WidgetItem findIndexed(PackageUserKey key, ComponentName cn) {
+        ArrayList<WidgetItem> items = mStalePackages.contains(key) ? null : mPackageIndex.get(key);
+        if (items != null) {
+            for (WidgetItem item : items) {
+                if (item.componentName.equals(cn)) {
+                    return item;
+                }
+            }
+        }
+        return null;
     }
 
-    private synchronized void setWidgetsAndShortcuts(ArrayList<WidgetItem> rawWidgetsShortcuts,
-            LauncherAppState app, @Nullable PackageUserKey packageUser) {
+    private synchronized ArrayList<WidgetItem> getIndexedItems(
+            @Nullable Collection<PackageUserKey> packages) {
+        ArrayList<WidgetItem> result = new ArrayList<>();
+        for (Map.Entry<PackageUserKey, ArrayList<WidgetItem>> entry : mPackageIndex.entrySet()) {
+            if (packages == null || packages.contains(entry.getKey())) {
+                result.addAll(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static void addToList(HashMap<PackageUserKey, ArrayList<WidgetItem>> map,
+            PackageUserKey key, WidgetItem item) {
+        ArrayList<WidgetItem> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(item);
+    }
+
+    private static boolean sameItems(ArrayList<WidgetItem> a, ArrayList<WidgetItem> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the attributes a {@link WidgetItem} and its preview depend on, so that unchanged
+     * providers don't need to be copied and have their label loaded again.
+     */
+    private static boolean isSameProvider(@Nullable LauncherAppWidgetProviderInfo indexed,
+            AppWidgetProviderInfo info) {
+        return indexed != null
+                && indexed.provider.equals(info.provider)
+                && indexed.minWidth == info.minWidth
+                && indexed.minHeight == info.minHeight
+                && indexed.minResizeWidth == info.minResizeWidth
+                && indexed.minResizeHeight == info.minResizeHeight
+                && indexed.resizeMode == info.resizeMode
+                && indexed.widgetCategory == info.widgetCategory
+                && indexed.previewImage == info.previewImage
+                && indexed.icon == info.icon
+                && indexed.initialLayout == info.initialLayout
+                && (!Utilities.ATLEAST_P || indexed.widgetFeatures == info.widgetFeatures)
+                && TextUtils.equals(indexed.label, info.label);
+    }
+
+    /**
+     * Rebuilds the rows of the packages with changed widgets from the index, or all rows if
+     * changed is null. Rows are per package name, so all users of a changed package are added
+     * again.
+     */
+    private void setWidgetsAndShortcuts(LauncherAppState app,
+            @Nullable Set<PackageUserKey> changed) {
+        HashSet<String> changedPackages = null;
+        if (changed != null) {
+            changedPackages = new HashSet<>();
+            for (PackageUserKey packageUser : changed) {
+                changedPackages.add(packageUser.mPackageName);
+            }
+        }
+        ArrayList<WidgetItem> rawWidgetsShortcuts = new ArrayList<>();
+        for (Map.Entry<PackageUserKey, ArrayList<WidgetItem>> entry : mPackageIndex.entrySet()) {
+            if (changedPackages == null
+                    || changedPackages.contains(entry.getKey().mPackageName)) {
+                rawWidgetsShortcuts.addAll(entry.getValue());
+            }
+        }
         if (DEBUG) {
-            Log.d(TAG, "addWidgetsAndShortcuts, widgetsShortcuts#=" + rawWidgetsShortcuts.size());
+            Log.d(TAG, "addWidgetsAndShortcuts, packages#="
+                    + (changedPackages == null ? "all" : changedPackages.size())
+                    + ", widgetsShortcuts#=" + rawWidgetsShortcuts.size());
         }
 
         // Temporary list for {@link PackageItemInfos} to avoid having to go through
         // {@link mPackageItemInfos} to locate the key to be used for {@link #mWidgetsList}
         HashMap<String, PackageItemInfo> tmpPackageItemInfos = new HashMap<>();
 
-        // clear the lists.
-        if (packageUser == null) {
-            mWidgetsList.clear();
-        } else {
-            // Only clear the widgets for the given package/user.
-            PackageItemInfo packageItem = null;
-            for (PackageItemInfo item : mWidgetsList.keySet()) {
-                if (item.packageName.equals(packageUser.mPackageName)) {
-                    packageItem = item;
-                    break;
-                }
-            }
-            if (packageItem != null) {
+        // Only clear the rows of the changed packages.
+        Iterator<PackageItemInfo> packageItemIterator = mWidgetsList.keySet().iterator();
+        while (packageItemIterator.hasNext()) {
+            PackageItemInfo packageItem = packageItemIterator.next();
+            if (changedPackages == null || changedPackages.contains(packageItem.packageName)) {
                 // We want to preserve the user that was on the packageItem previously,
                 // so add it to tmpPackageItemInfos here to avoid creating a new entry.
                 tmpPackageItemInfos.put(packageItem.packageName, packageItem);
-
-                Iterator<WidgetItem> widgetItemIterator = mWidgetsList.get(packageItem).iterator();
-                while (widgetItemIterator.hasNext()) {
-                    WidgetItem nextWidget = widgetItemIterator.next();
-                    if (nextWidget.componentName.getPackageName().equals(packageUser.mPackageName)
-                            && nextWidget.user.equals(packageUser.mUser)) {
-                        widgetItemIterator.remove();
-                    }
-                }
+                packageItemIterator.remove();
             }
         }
 
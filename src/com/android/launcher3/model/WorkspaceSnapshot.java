@@ -0,0 +1,409 @@
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.launcher3.FolderInfo;
+import com.android.launcher3.InvariantDeviceProfile;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.LauncherAppState;
+import com.android.launcher3.LauncherAppWidgetInfo;
+import com.android.launcher3.LauncherModel;
+import com.android.launcher3.LauncherSettings.Favorites;
+import com.android.launcher3.ShortcutInfo;
+import com.android.launcher3.Utilities;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.LongArrayMap;
+import com.android.launcher3.util.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A compact binary copy of the bound workspace (screens, item positions, titles and folder
+ * contents), written whenever the model is loaded or changed.
+ *
+ * On the next process start it is read back and bound right away, before the authoritative
+ * load from {@link com.android.launcher3.LauncherProvider} which rebinds the workspace once it
+ * is done. App icons are not stored, they are looked up by component in the icon cache. Only
+ * shortcuts whose icon can't be found there store their icon.
+ */
+public class WorkspaceSnapshot {
+
+    private static final String TAG = "WorkspaceSnapshot";
+
+    private static final String FILE_NAME = "workspace.snapshot";
+
+    private static final int MAGIC = 0x4c435753; // "LCWS"
+    private static final int VERSION = 2;
+
+    private static final String KEY_GENERATION = "workspace_snapshot_generation";
+
+    // Delay after a model change before the snapshot is rewritten, to batch up drag and drops
+    private static final long WRITE_DELAY = 1000;
+
+    private static final Comparator<ItemInfo> RANK_COMPARATOR =
+            (lhs, rhs) -> Integer.compare(lhs.rank, rhs.rank);
+
+    private static final Object WRITE_TOKEN = new Object();
+    private static Handler sWorkerHandler;
+
+    public final ArrayList<Long> workspaceScreens = new ArrayList<>();
+    public final ArrayList<ItemInfo> workspaceItems = new ArrayList<>();
+    public final ArrayList<LauncherAppWidgetInfo> appWidgets = new ArrayList<>();
+
+    /**
+     * All shortcuts including the ones in folders, so their icons can be loaded before binding
+     */
+    public final ArrayList<ShortcutInfo> shortcuts = new ArrayList<>();
+
+    private WorkspaceSnapshot() { }
+
+    /**
+     * Reads the snapshot written for the current grid, or returns null if there is none.
+     */
+    public static WorkspaceSnapshot read(Context context, InvariantDeviceProfile idp) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != idp.numColumns || buffer.getInt() != idp.numRows
+                    || buffer.getInt() != idp.numHotseatIcons) {
+                // Written by a different version or for a different grid
+                return null;
+            }
+            if (buffer.getInt() != getGeneration(context)) {
+                // Written before the database was replaced
+                file.delete();
+                return null;
+            }
+            return new WorkspaceSnapshot().readItems(context, buffer);
+        } catch (IOException | BufferUnderflowException | URISyntaxException e) {
+            Log.w(TAG, "Unable to read workspace snapshot", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private WorkspaceSnapshot readItems(Context context, ByteBuffer buffer)
+            throws IOException, URISyntaxException {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+
+        int screenCount = buffer.getInt();
+        for (int i = 0; i < screenCount; i++) {
+            workspaceScreens.add(buffer.getLong());
+        }
+
+        LongArrayMap<FolderInfo> folders = new LongArrayMap<>();
+        ArrayList<ShortcutInfo> folderItems = new ArrayList<>();
+        int itemCount = buffer.getInt();
+        for (int i = 0; i < itemCount; i++) {
+            int itemType = buffer.getInt();
+            ItemInfo info;
+            switch (itemType) {
+                case Favorites.ITEM_TYPE_APPLICATION:
+                case Favorites.ITEM_TYPE_SHORTCUT:
+                case Favorites.ITEM_TYPE_DEEP_SHORTCUT: {
+                    ShortcutInfo shortcut = new ShortcutInfo();
+                    info = shortcut;
+                    readItem(buffer, info, userManager);
+                    shortcut.customTitle = readString(buffer);
+                    shortcut.swipeUpAction = readString(buffer);
+                    String intent = readString(buffer);
+                    shortcut.intent = intent == null ? null : Intent.parseUri(intent, 0);
+                    shortcut.status = buffer.getInt();
+                    shortcut.runtimeStatusFlags = buffer.getInt();
+                    byte[] icon = readBytes(buffer);
+                    if (icon != null) {
+                        shortcut.iconBitmap = BitmapFactory.decodeByteArray(icon, 0, icon.length);
+                        shortcut.iconColor = buffer.getInt();
+                    }
+                    break;
+                }
+                case Favorites.ITEM_TYPE_FOLDER: {
+                    FolderInfo folder = new FolderInfo();
+                    info = folder;
+                    readItem(buffer, info, userManager);
+                    folder.swipeUpAction = readString(buffer);
+                    folder.options = buffer.getInt();
+                    folders.put(folder.id, folder);
+                    break;
+                }
+                case Favorites.ITEM_TYPE_APPWIDGET:
+                case Favorites.ITEM_TYPE_CUSTOM_APPWIDGET: {
+                    int appWidgetId = buffer.getInt();
+                    String providerName = readString(buffer);
+                    ComponentName provider = providerName == null
+                            ? null : ComponentName.unflattenFromString(providerName);
+                    LauncherAppWidgetInfo widget =
+                            new LauncherAppWidgetInfo(appWidgetId, provider);
+                    info = widget;
+                    readItem(buffer, info, userManager);
+                    widget.restoreStatus = buffer.getInt();
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown item type " + itemType);
+            }
+            info.itemType = itemType;
+            if (info.user == null) {
+                // The profile doesn't exist anymore, skip the item
+                continue;
+            }
+
+            if (info instanceof ShortcutInfo) {
+                shortcuts.add((ShortcutInfo) info);
+                if (info.container >= 0) {
+                    folderItems.add((ShortcutInfo) info);
+                }
+            }
+            if (info instanceof LauncherAppWidgetInfo) {
+                appWidgets.add((LauncherAppWidgetInfo) info);
+            } else if (info.container == Favorites.CONTAINER_DESKTOP
+                    || info.container == Favorites.CONTAINER_HOTSEAT) {
+                workspaceItems.add(info);
+            }
+        }
+
+        // Attach the folder contents, in rank order like the loader does
+        for (ShortcutInfo info : folderItems) {
+            FolderInfo folder = folders.get(info.container);
+            if (folder != null) {
+                folder.contents.add(info);
+            }
+        }
+        for (FolderInfo folder : folders) {
+            Collections.sort(folder.contents, RANK_COMPARATOR);
+        }
+        return this;
+    }
+
+    private static void readItem(ByteBuffer buffer, ItemInfo info,
+            UserManagerCompat userManager) {
+        info.id = buffer.getLong();
+        info.container = buffer.getLong();
+        info.screenId = buffer.getLong();
+        info.cellX = buffer.getInt();
+        info.cellY = buffer.getInt();
+        info.spanX = buffer.getInt();
+        info.spanY = buffer.getInt();
+        info.minSpanX = buffer.getInt();
+        info.minSpanY = buffer.getInt();
+        info.rank = buffer.getInt();
+        info.user = userManager.getUserForSerialNumber(buffer.getLong());
+        info.title = readString(buffer);
+        info.contentDescription = info.title;
+    }
+
+    /**
+     * Schedules a rewrite of the snapshot after the model was changed.
+     */
+    public static void scheduleWrite(Context context, BgDataModel dataModel) {
+        Handler handler = getWorkerHandler();
+        handler.removeCallbacksAndMessages(WRITE_TOKEN);
+        handler.postAtTime(() -> {
+            // If a loader is pending it writes a fresh snapshot once it is done
+            if (LauncherAppState.getInstance(context).getModel().isModelLoaded()) {
+                write(context, dataModel);
+            }
+        }, WRITE_TOKEN, SystemClock.uptimeMillis() + WRITE_DELAY);
+    }
+
+    /**
+     * Writes a snapshot of the fully loaded {@param dataModel}.
+     */
+    public static void write(Context context, BgDataModel dataModel) {
+        Preconditions.assertWorkerThread();
+        getWorkerHandler().removeCallbacksAndMessages(WRITE_TOKEN);
+
+        InvariantDeviceProfile idp = LauncherAppState.getIDP(context);
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(idp.numColumns);
+            out.writeInt(idp.numRows);
+            out.writeInt(idp.numHotseatIcons);
+
+            synchronized (dataModel) {
+                out.writeInt(dataModel.snapshotGeneration);
+                out.writeInt(dataModel.workspaceScreens.size());
+                for (long screenId : dataModel.workspaceScreens) {
+                    out.writeLong(screenId);
+                }
+
+                // Folders first, so their contents can be attached while reading
+                ArrayList<ItemInfo> items = new ArrayList<>(dataModel.itemsIdMap.size());
+                for (ItemInfo info : dataModel.itemsIdMap) {
+                    if (info instanceof FolderInfo) {
+                        items.add(info);
+                    }
+                }
+                for (ItemInfo info : dataModel.itemsIdMap) {
+                    if (info instanceof ShortcutInfo || info instanceof LauncherAppWidgetInfo) {
+                        items.add(info);
+                    }
+                }
+                out.writeInt(items.size());
+                for (ItemInfo info : items) {
+                    writeItem(out, info, userManager);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to create workspace snapshot", e);
+            return;
+        }
+
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write workspace snapshot", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, ItemInfo info,
+            UserManagerCompat userManager) throws IOException {
+        out.writeInt(info.itemType);
+        if (info instanceof LauncherAppWidgetInfo) {
+            LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) info;
+            out.writeInt(widget.appWidgetId);
+            writeString(out, widget.providerName == null
+                    ? null : widget.providerName.flattenToString());
+        }
+
+        out.writeLong(info.id);
+        out.writeLong(info.container);
+        out.writeLong(info.screenId);
+        out.writeInt(info.cellX);
+        out.writeInt(info.cellY);
+        out.writeInt(info.spanX);
+        out.writeInt(info.spanY);
+        out.writeInt(info.minSpanX);
+        out.writeInt(info.minSpanY);
+        out.writeInt(info.rank);
+        out.writeLong(userManager.getSerialNumberForUser(info.user));
+        writeString(out, info.title == null ? null : info.title.toString());
+
+        if (info instanceof ShortcutInfo) {
+            ShortcutInfo shortcut = (ShortcutInfo) info;
+            writeString(out, shortcut.customTitle == null ? null : shortcut.customTitle.toString());
+            writeString(out, shortcut.swipeUpAction);
+            writeString(out, shortcut.intent == null ? null : shortcut.intent.toUri(0));
+            out.writeInt(shortcut.status);
+            out.writeInt(shortcut.runtimeStatusFlags);
+            if (needsIcon(shortcut)) {
+                ByteArrayOutputStream icon = new ByteArrayOutputStream();
+                shortcut.iconBitmap.compress(Bitmap.CompressFormat.PNG, 100, icon);
+                writeBytes(out, icon.toByteArray());
+                out.writeInt(shortcut.iconColor);
+            } else {
+                writeBytes(out, null);
+            }
+        } else if (info instanceof FolderInfo) {
+            FolderInfo folder = (FolderInfo) info;
+            writeString(out, folder.swipeUpAction);
+            out.writeInt(folder.options);
+        } else if (info instanceof LauncherAppWidgetInfo) {
+            out.writeInt(((LauncherAppWidgetInfo) info).restoreStatus);
+        }
+    }
+
+    /**
+     * App icons come from the icon cache, everything else has to be stored with the snapshot.
+     */
+    private static boolean needsIcon(ShortcutInfo info) {
+        return info.iconBitmap != null && !info.iconBitmap.isRecycled()
+                && (info.itemType != Favorites.ITEM_TYPE_APPLICATION || info.customIcon != null
+                        || info.customIconEntry != null);
+    }
+
+    public static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    /**
+     * Invalidates the snapshot after the database was replaced or changed outside of
+     * {@link ModelWriter}, by a restore, an import or a migration. Snapshots written from a model
+     * that was loaded before are ignored as well, even if they are written later.
+     */
+    public static void invalidate(Context context) {
+        SharedPreferences prefs = Utilities.getDevicePrefs(context);
+        prefs.edit().putInt(KEY_GENERATION, prefs.getInt(KEY_GENERATION, 0) + 1).commit();
+        delete(context);
+    }
+
+    public static int getGeneration(Context context) {
+        return Utilities.getDevicePrefs(context).getInt(KEY_GENERATION, 0);
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    private static synchronized Handler getWorkerHandler() {
+        if (sWorkerHandler == null) {
+            sWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        }
+        return sWorkerHandler;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
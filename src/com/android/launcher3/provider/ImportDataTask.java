@@ -50,6 +50,7 @@ import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.logging.FileLog;
 import com.android.launcher3.model.GridSizeMigrationTask;
+import com.android.launcher3.model.WorkspaceSnapshot;
 import com.android.launcher3.util.LongArrayMap;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -370,6 +371,7 @@ public class ImportDataTask {
                             context.checkPermission(info.readPermission, Process.myPid(),
                                     Process.myUid()) == PackageManager.PERMISSION_GRANTED) {
                         // All checks passed, run the import task.
+                        WorkspaceSnapshot.invalidate(context);
                         return new ImportDataTask(context, sourceAuthority).importWorkspace();
                     }
                 }
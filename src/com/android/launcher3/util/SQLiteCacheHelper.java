@@ -7,14 +7,26 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.android.launcher3.Utilities;
 import com.android.launcher3.config.FeatureFlags;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * An extension of {@link SQLiteOpenHelper} with utility methods for a single table cache DB.
  * Any exception during write operations are ignored, and any version change causes a DB reset.
+ *
+ * The DB uses write-ahead logging. Writes made through {@link #insertOrReplaceDeferred} are
+ * coalesced by row and written in a single transaction once the batch is full or after a short
+ * delay, see {@link #enableWriteBehind(Looper)}.
  */
 public abstract class SQLiteCacheHelper {
     private static final String TAG = "SQLiteCacheHelper";
@@ -27,6 +39,14 @@ public abstract class SQLiteCacheHelper {
 
     private boolean mIgnoreWrites;
 
+    private static final long WRITE_BEHIND_DELAY_MS = 500;
+    private static final int WRITE_BEHIND_MAX_BATCH = 64;
+
+    // Pending deferred writes, keyed by row. Guarded by itself.
+    private final LinkedHashMap<String, ContentValues> mPendingWrites = new LinkedHashMap<>();
+    private final Runnable mFlushRunnable = this::flush;
+    private Handler mFlushHandler;
+
     public SQLiteCacheHelper(Context context, String name, int version, String tableName) {
         if (NO_ICON_CACHE) {
             name = null;
@@ -44,6 +64,8 @@ public abstract class SQLiteCacheHelper {
         if (mIgnoreWrites) {
             return;
         }
+        // Keep the order of operations, a pending write could be for a deleted row
+        flush();
         try {
             mOpenHelper.getWritableDatabase().delete(mTableName, whereClause, whereArgs);
         } catch (SQLiteFullException e) {
@@ -70,6 +92,111 @@ public abstract class SQLiteCacheHelper {
         }
     }
 
+    /**
+     * Inserts or replaces all of {@param valuesList} in a single transaction.
+     */
+    public void insertOrReplace(List<ContentValues> valuesList) {
+        if (mIgnoreWrites || valuesList.isEmpty()) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues values : valuesList) {
+                    db.insertWithOnConflict(
+                            mTableName, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteFullException e) {
+            onDiskFull(e);
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Ignoring sqlite exception", e);
+        }
+    }
+
+    /**
+     * Makes {@link #insertOrReplaceDeferred} write behind on {@param looper}. Without it deferred
+     * writes are done immediately.
+     */
+    public void enableWriteBehind(Looper looper) {
+        synchronized (mPendingWrites) {
+            mFlushHandler = new Handler(looper);
+        }
+    }
+
+    /**
+     * Schedules {@param values} to be inserted or replaced. A later write for the same
+     * {@param rowKey} replaces a pending one. Until the write is flushed, the values are only
+     * visible through {@link #getPendingValues(String)}.
+     */
+    public void insertOrReplaceDeferred(String rowKey, ContentValues values) {
+        if (mIgnoreWrites) {
+            return;
+        }
+        synchronized (mPendingWrites) {
+            if (mFlushHandler == null) {
+                insertOrReplace(values);
+                return;
+            }
+            mPendingWrites.remove(rowKey);
+            mPendingWrites.put(rowKey, values);
+            if (mPendingWrites.size() >= WRITE_BEHIND_MAX_BATCH) {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+                mFlushHandler.post(mFlushRunnable);
+            } else if (mPendingWrites.size() == 1) {
+                mFlushHandler.postDelayed(mFlushRunnable, WRITE_BEHIND_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Returns the values of a deferred write for {@param rowKey} which is not flushed yet.
+     */
+    public ContentValues getPendingValues(String rowKey) {
+        synchronized (mPendingWrites) {
+            return mPendingWrites.get(rowKey);
+        }
+    }
+
+    /**
+     * Writes all pending deferred writes in a single transaction.
+     */
+    public void flush() {
+        ArrayList<Map.Entry<String, ContentValues>> batch;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            if (mFlushHandler != null) {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+            }
+            batch = new ArrayList<>(mPendingWrites.size());
+            for (Map.Entry<String, ContentValues> e : mPendingWrites.entrySet()) {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(e));
+            }
+        }
+
+        ArrayList<ContentValues> values = new ArrayList<>(batch.size());
+        for (Map.Entry<String, ContentValues> e : batch) {
+            values.add(e.getValue());
+        }
+        insertOrReplace(values);
+
+        // Entries stay visible through getPendingValues until they are in the DB. Rows written
+        // again in the meantime are kept for the next batch.
+        synchronized (mPendingWrites) {
+            for (Map.Entry<String, ContentValues> e : batch) {
+                if (mPendingWrites.get(e.getKey()) == e.getValue()) {
+                    mPendingWrites.remove(e.getKey());
+                }
+            }
+        }
+    }
+
     private void onDiskFull(SQLiteFullException e) {
         Log.e(TAG, "Disk full, all write operations will be ignored", e);
         mIgnoreWrites = true;
@@ -84,6 +211,12 @@ public abstract class SQLiteCacheHelper {
     }
 
     public void clear() {
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+            if (mFlushHandler != null) {
+                mFlushHandler.removeCallbacks(mFlushRunnable);
+            }
+        }
         mOpenHelper.clearDB(mOpenHelper.getWritableDatabase());
     }
 
@@ -96,6 +229,7 @@ public abstract class SQLiteCacheHelper {
 
         public MySQLiteOpenHelper(Context context, String name, int version) {
             super(context, name, version);
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
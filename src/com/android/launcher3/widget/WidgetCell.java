@@ -73,6 +73,7 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
     private StylusEventHelper mStylusEventHelper;
 
     protected CancellationSignal mActiveRequest;
+    private int mPreviewPriority = 0;
     private boolean mAnimatePreview = true;
 
     private boolean mApplyBitmapDeferred = false;
@@ -195,12 +196,19 @@ public class WidgetCell extends LinearLayout implements OnLayoutChangeListener {
         }
     }
 
+    /**
+     * Sets the priority of the preview request, lower values are loaded first.
+     */
+    public void setPreviewPriority(int priority) {
+        mPreviewPriority = priority;
+    }
+
     public void ensurePreview() {
         if (mActiveRequest != null) {
             return;
         }
         mActiveRequest = mWidgetPreviewLoader.getPreview(
-                mItem, mPresetPreviewSize, mPresetPreviewSize, this);
+                mItem, mPresetPreviewSize, mPresetPreviewSize, this, mPreviewPriority);
     }
 
     @Override
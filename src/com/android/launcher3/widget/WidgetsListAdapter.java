@@ -52,6 +52,9 @@ public class WidgetsListAdapter extends Adapter<WidgetsRowViewHolder> {
     private static final String TAG = "WidgetsListAdapter";
     private static final boolean DEBUG = false;
 
+    // Widget cells per row never get close to this, so it keeps the rows ordered
+    private static final int PREVIEW_PRIORITY_ROW_STRIDE = 1000;
+
     private final WidgetPreviewLoader mWidgetPreviewLoader;
     private final LayoutInflater mLayoutInflater;
 
@@ -159,6 +162,8 @@ public class WidgetsListAdapter extends Adapter<WidgetsRowViewHolder> {
             WidgetCell widget = (WidgetCell) row.getChildAt(2*i);
             widget.applyFromCellItem(infoList.get(i), mWidgetPreviewLoader);
             widget.setApplyBitmapDeferred(mApplyBitmapDeferred);
+            // Load the rows from top to bottom, and the cells of a row from left to right
+            widget.setPreviewPriority(pos * PREVIEW_PRIORITY_ROW_STRIDE + i);
             widget.ensurePreview();
             widget.setVisibility(View.VISIBLE);
 
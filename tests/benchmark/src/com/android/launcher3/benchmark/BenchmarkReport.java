@@ -0,0 +1,120 @@
+package com.android.launcher3.benchmark;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Minimal on-device microbenchmark harness. Each measured operation is warmed up, then timed in
+ * batches sized to take at least {@link #TARGET_BATCH_NS}, and the per-op batch timings are
+ * written as JSON so runs from different builds can be diffed.
+ *
+ * Results are written to {@code <external files>/benchmarks/<suite>.json} of the target app and
+ * logged under {@link #TAG}.
+ */
+public class BenchmarkReport {
+
+    public static final String TAG = "LauncherBenchmark";
+
+    private static final long WARMUP_NS = 250_000_000L;
+    private static final long TARGET_BATCH_NS = 5_000_000L;
+    private static final int BATCH_COUNT = 30;
+
+    /**
+     * Sink for benchmark results so that the JIT can't eliminate the measured work.
+     */
+    public static volatile Object sBlackhole;
+
+    private final String mSuite;
+    private final JSONArray mResults = new JSONArray();
+
+    public BenchmarkReport(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Measures {@param op} and records the result under {@param name}.
+     */
+    public void measure(String name, Runnable op) {
+        // Warm up and find out how many ops fit in one batch
+        long start = SystemClock.elapsedRealtimeNanos();
+        long ops = 0;
+        while (SystemClock.elapsedRealtimeNanos() - start < WARMUP_NS) {
+            op.run();
+            ops++;
+        }
+        long nsPerOp = Math.max(1, (SystemClock.elapsedRealtimeNanos() - start) / ops);
+        int opsPerBatch = (int) Math.max(1, TARGET_BATCH_NS / nsPerOp);
+
+        long[] samples = new long[BATCH_COUNT];
+        for (int batch = 0; batch < BATCH_COUNT; batch++) {
+            long batchStart = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < opsPerBatch; i++) {
+                op.run();
+            }
+            samples[batch] = (SystemClock.elapsedRealtimeNanos() - batchStart) / opsPerBatch;
+        }
+        record(name, opsPerBatch, samples);
+    }
+
+    /**
+     * Records {@param samples} measured by the caller under {@param name}, for metrics other than
+     * the wall time of a single op.
+     */
+    public void record(String name, long[] samples) {
+        record(name, 1, samples.clone());
+    }
+
+    private void record(String name, int opsPerBatch, long[] samples) {
+        Arrays.sort(samples);
+        int count = samples.length;
+        try {
+            JSONObject result = new JSONObject()
+                    .put("name", name)
+                    .put("opsPerBatch", opsPerBatch)
+                    .put("batches", count)
+                    .put("minNs", samples[0])
+                    .put("medianNs", samples[count / 2])
+                    .put("p90Ns", samples[count * 9 / 10])
+                    .put("maxNs", samples[count - 1]);
+            mResults.put(result);
+            Log.i(TAG, mSuite + "#" + result);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes all recorded results to the report file.
+     */
+    public File write() throws IOException, JSONException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        JSONObject report = new JSONObject()
+                .put("suite", mSuite)
+                .put("device", Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("fingerprint", Build.FINGERPRINT)
+                .put("timestamp", System.currentTimeMillis())
+                .put("results", mResults);
+
+        File dir = new File(context.getExternalFilesDir(null), "benchmarks");
+        dir.mkdirs();
+        File file = new File(dir, mSuite + ".json");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(report.toString(2));
+        }
+        Log.i(TAG, "Wrote " + file);
+        return file;
+    }
+}
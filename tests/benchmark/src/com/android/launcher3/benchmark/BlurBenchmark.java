@@ -0,0 +1,132 @@
+package com.android.launcher3.benchmark;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.hoko.blur.HokoBlur;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import ch.deletescape.lawnchair.blur.BlurPyramid;
+import ch.deletescape.lawnchair.blur.BlurWallpaperProvider;
+
+/**
+ * Compares the blur applied ahead of time with the live blur drawn from a {@link BlurPyramid}.
+ *
+ * Frames draw a dock and a full drawer background into a software canvas, so the numbers are
+ * only meaningful relative to each other. The radius change cases measure what has to happen
+ * before the next frame when the blur intensity setting changes.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class BlurBenchmark {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("blur");
+
+    private static final int SCREEN_WIDTH = 1080;
+    private static final int SCREEN_HEIGHT = 1920;
+    private static final int DOCK_HEIGHT = 300;
+    private static final float[] RADII = {25, 100, 150};
+
+    private Bitmap mWallpaper;
+    private Canvas mCanvas;
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Before
+    public void setUp() {
+        int factor = BlurWallpaperProvider.DOWNSAMPLE_FACTOR;
+        mWallpaper = Bitmap.createBitmap(SCREEN_WIDTH / factor, SCREEN_HEIGHT / factor,
+                Bitmap.Config.ARGB_8888);
+        // Noise is the worst case for the filters and can't be optimized away
+        Random random = new Random(42);
+        int[] pixels = new int[mWallpaper.getWidth() * mWallpaper.getHeight()];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0xffffff);
+        }
+        mWallpaper.setPixels(pixels, 0, mWallpaper.getWidth(), 0, 0, mWallpaper.getWidth(),
+                mWallpaper.getHeight());
+        mCanvas = new Canvas(Bitmap.createBitmap(SCREEN_WIDTH, SCREEN_HEIGHT,
+                Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void benchPrecomputedBlur() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        BitmapShader shader = new BitmapShader(mWallpaper, Shader.TileMode.CLAMP,
+                Shader.TileMode.CLAMP);
+        Matrix matrix = new Matrix();
+        matrix.setScale(BlurWallpaperProvider.DOWNSAMPLE_FACTOR,
+                BlurWallpaperProvider.DOWNSAMPLE_FACTOR);
+        shader.setLocalMatrix(matrix);
+        paint.setShader(shader);
+
+        sReport.measure("precomputed/frame", () -> drawFrame(paint, null));
+
+        for (float radius : RADII) {
+            int filterRadius = Math.max(1, Math.min(25,
+                    (int) radius / BlurWallpaperProvider.DOWNSAMPLE_FACTOR));
+            sReport.measure("precomputed/radiusChange/r" + (int) radius, () -> {
+                Bitmap blurred = HokoBlur.with(context)
+                        .scheme(HokoBlur.SCHEME_OPENGL)
+                        .mode(HokoBlur.MODE_STACK)
+                        .radius(filterRadius)
+                        .sampleFactor(1f)
+                        .forceCopy(true)
+                        .needUpscale(false)
+                        .processor()
+                        .blur(mWallpaper);
+                blurred.recycle();
+            });
+        }
+    }
+
+    @Test
+    public void benchLiveBlur() {
+        float scale = BlurWallpaperProvider.DOWNSAMPLE_FACTOR;
+        sReport.measure("live/build", () -> new BlurPyramid(mWallpaper, scale).recycle());
+
+        BlurPyramid pyramid = new BlurPyramid(mWallpaper, scale);
+        Paint lower = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        Paint upper = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+        for (float radius : RADII) {
+            sReport.measure("live/frame/r" + (int) radius, () -> {
+                boolean crossFade = pyramid.setupPaints(radius, 255, lower, upper);
+                drawFrame(lower, crossFade ? upper : null);
+            });
+        }
+        sReport.measure("live/radiusChange", () -> {
+            for (float radius : RADII) {
+                BenchmarkReport.sBlackhole = pyramid.setupPaints(radius, 255, lower, upper);
+            }
+        });
+        pyramid.recycle();
+    }
+
+    private void drawFrame(Paint paint, Paint crossFade) {
+        mCanvas.drawRect(0, SCREEN_HEIGHT - DOCK_HEIGHT, SCREEN_WIDTH, SCREEN_HEIGHT, paint);
+        mCanvas.drawRect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, paint);
+        if (crossFade != null) {
+            mCanvas.drawRect(0, SCREEN_HEIGHT - DOCK_HEIGHT, SCREEN_WIDTH, SCREEN_HEIGHT,
+                    crossFade);
+            mCanvas.drawRect(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT, crossFade);
+        }
+    }
+}
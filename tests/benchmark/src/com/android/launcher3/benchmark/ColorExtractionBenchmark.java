@@ -0,0 +1,50 @@
+package com.android.launcher3.benchmark;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.launcher3.uioverrides.ColorExtractionAlgorithm;
+import com.android.launcher3.uioverrides.WallpaperColorsCompat;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Benchmarks for the tonal palette extraction of wallpaper colors.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ColorExtractionBenchmark {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("color_extraction");
+
+    private static final int[][] WALLPAPER_COLORS = {
+            {0xff1e88e5, 0xff43a047, 0xfffdd835},
+            {0xff212121, 0xff424242, 0xff9e9e9e},
+            {0xfff06292, 0xffba68c8, 0xff4db6ac},
+            {0xffffffff, 0xfff5f5f5, 0xffe0e0e0},
+    };
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Test
+    public void benchExtractInto() {
+        ColorExtractionAlgorithm algorithm = new ColorExtractionAlgorithm();
+        WallpaperColorsCompat[] colors = new WallpaperColorsCompat[WALLPAPER_COLORS.length * 2];
+        for (int i = 0; i < WALLPAPER_COLORS.length; i++) {
+            int[] c = WALLPAPER_COLORS[i];
+            colors[i * 2] = new WallpaperColorsCompat(c[0], c[1], c[2], 0);
+            colors[i * 2 + 1] = new WallpaperColorsCompat(c[0], c[1], c[2],
+                    WallpaperColorsCompat.HINT_SUPPORTS_DARK_TEXT);
+        }
+        sReport.measure("ColorExtractionAlgorithm.extractInto/" + colors.length, () -> {
+            for (WallpaperColorsCompat color : colors) {
+                BenchmarkReport.sBlackhole = algorithm.extractInto(color);
+            }
+        });
+    }
+}
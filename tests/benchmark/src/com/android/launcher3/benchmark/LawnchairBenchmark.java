@@ -0,0 +1,77 @@
+package com.android.launcher3.benchmark;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.deletescape.lawnchair.flowerpot.Flowerpot;
+import ch.deletescape.lawnchair.flowerpot.parser.FlowerpotBundle;
+import ch.deletescape.lawnchair.flowerpot.parser.LineParser;
+import ch.deletescape.lawnchair.predictions.LawnchairEventPredictor;
+
+/**
+ * Benchmarks for Flowerpot rule parsing and app launch ranking.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class LawnchairBenchmark {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("lawnchair");
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Test
+    public void benchFlowerpotBundle() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        FlowerpotBundle bundle = FlowerpotBundle.Companion.fromAssets(context,
+                Flowerpot.BUNDLE_PATH);
+        List<String> pots = bundle.getPotNames();
+
+        // The bundle is mapped, so this measures decoding the rules of every pot
+        sReport.measure("FlowerpotBundle.readRules/" + pots.size() + "pots", () -> {
+            int rules = 0;
+            for (String pot : pots) {
+                rules += bundle.readRules(pot).size();
+            }
+            BenchmarkReport.sBlackhole = rules;
+        });
+    }
+
+    @Test
+    public void benchLineParser() {
+        String[] lines = {"com.example.app", ":android.intent.action.VIEW",
+                ";android.intent.category.APP_MUSIC", "&flag|8", "# comment"};
+        sReport.measure("LineParser.parse/" + lines.length, () -> {
+            for (String line : lines) {
+                BenchmarkReport.sBlackhole = LineParser.INSTANCE.parse(line,
+                        Flowerpot.VERSION_CURRENT);
+            }
+        });
+    }
+
+    @Test
+    public void benchCountRankedGetRanked() {
+        // Matches the size of the recent app launches preference
+        List<String> launches = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 250; i++) {
+            // Skewed distribution over 60 apps, like real launch histories
+            int app = (int) (60 * Math.pow(random.nextDouble(), 3));
+            launches.add("com.example.app" + app + "/.MainActivity#0");
+        }
+        sReport.measure("CountRankedArrayPreference.getRanked/250",
+                () -> BenchmarkReport.sBlackhole = LawnchairEventPredictor.rank(launches));
+    }
+}
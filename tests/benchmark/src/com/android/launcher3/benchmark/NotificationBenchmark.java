@@ -0,0 +1,174 @@
+package com.android.launcher3.benchmark;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Notification;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.launcher3.LauncherModel;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ch.deletescape.lawnchair.smartspace.NotificationsManager;
+import ch.deletescape.lawnchair.smartspace.NotificationsManager.Delta;
+import ch.deletescape.lawnchair.smartspace.NotificationsManager.OnChangeListener;
+
+/**
+ * Replays notification storms through {@link NotificationsManager} and measures how much time the
+ * main thread spends on them, including the listener callbacks.
+ *
+ * Main thread time is taken from the message logging of the main looper, so it covers every
+ * dispatch caused by a storm and not only the first one.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NotificationBenchmark implements OnChangeListener {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("notifications");
+
+    private static final int REPLAYS = 30;
+    private static final int CONVERSATIONS = 5;
+    private static final int STORM_SIZE = 50;
+
+    private final Handler mWorker = new Handler(LauncherModel.getUiWorkerLooper());
+    private NotificationsManager mManager;
+
+    private volatile long mMainThreadNs;
+    private volatile int mDispatches;
+    private long mMessageStart;
+
+    private volatile Object mAwaited;
+    private volatile CountDownLatch mDelivered;
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mManager = NotificationsManager.getInstance();
+            mManager.addListener(this);
+        });
+        Looper.getMainLooper().setMessageLogging(line -> {
+            if (line.startsWith(">>>>>")) {
+                mMessageStart = SystemClock.elapsedRealtimeNanos();
+            } else if (line.startsWith("<<<<<") && mMessageStart != 0) {
+                mMainThreadNs += SystemClock.elapsedRealtimeNanos() - mMessageStart;
+                mDispatches++;
+                mMessageStart = 0;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        Looper.getMainLooper().setMessageLogging(null);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                () -> mManager.removeListener(this));
+    }
+
+    @Test
+    public void benchBurst() throws Exception {
+        replay("burst", 0);
+    }
+
+    @Test
+    public void benchTrickle() throws Exception {
+        // About the rate of a busy group chat syncing after coming back online
+        replay("trickle", 5);
+    }
+
+    private void replay(String name, long intervalMs) throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        long[] postSamples = new long[REPLAYS];
+        long[] removeSamples = new long[REPLAYS];
+        int postDispatches = 0;
+        for (int replay = 0; replay < REPLAYS; replay++) {
+            // Chat apps update the same few conversation notifications over and over
+            List<StatusBarNotification> storm = new ArrayList<>(STORM_SIZE);
+            for (int i = 0; i < STORM_SIZE; i++) {
+                storm.add(createNotification(context, replay, i % CONVERSATIONS, i));
+            }
+            StatusBarNotification last = storm.get(STORM_SIZE - 1);
+            postSamples[replay] = measure(last, () -> {
+                for (StatusBarNotification sbn : storm) {
+                    mWorker.post(() -> mManager.updateNotification(sbn.getKey(), sbn));
+                    if (intervalMs > 0) {
+                        SystemClock.sleep(intervalMs);
+                    }
+                }
+            });
+            postDispatches += mDispatches;
+
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < CONVERSATIONS; i++) {
+                keys.add(storm.get(i).getKey());
+            }
+            removeSamples[replay] = measure(keys.get(CONVERSATIONS - 1), () -> {
+                for (String key : keys) {
+                    mWorker.post(() -> mManager.updateNotification(key, null));
+                }
+            });
+        }
+        sReport.record(name + "/post/mainThread", postSamples);
+        sReport.record(name + "/remove/mainThread", removeSamples);
+        Log.i(BenchmarkReport.TAG, "notifications#" + name + " main thread messages per storm: "
+                + (float) postDispatches / REPLAYS);
+    }
+
+    /**
+     * Runs {@param storm} and returns the main thread time spent until {@param awaited} was
+     * delivered to the listeners.
+     */
+    private long measure(Object awaited, Runnable storm) throws InterruptedException {
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        mAwaited = awaited;
+        mDelivered = new CountDownLatch(1);
+        mMainThreadNs = 0;
+        mDispatches = 0;
+        storm.run();
+        assertTrue(mDelivered.await(10, TimeUnit.SECONDS));
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        return mMainThreadNs;
+    }
+
+    @Override
+    public void onNotificationsChanged(Delta delta) {
+        Object awaited = mAwaited;
+        if (delta.getAdded().contains(awaited) || delta.getRemoved().contains(awaited)) {
+            mDelivered.countDown();
+        }
+    }
+
+    private static StatusBarNotification createNotification(
+            Context context, int replay, int conversation, int message) {
+        Notification notification = new Notification.Builder(context, "benchmark")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setContentTitle("Conversation " + conversation)
+                .setContentText("Message " + message)
+                .build();
+        return new StatusBarNotification(context.getPackageName(), context.getPackageName(),
+                replay * CONVERSATIONS + conversation, "benchmark", Process.myUid(), 0,
+                notification, Process.myUserHandle(), null, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,109 @@
+package com.android.launcher3.benchmark;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.launcher3.AppFilter;
+import com.android.launcher3.AppInfo;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.deletescape.lawnchair.allapps.AppSearchIndex;
+import ch.deletescape.lawnchair.allapps.FuzzyAppSearchAlgorithm;
+import ch.deletescape.lawnchair.allapps.WinklerWeightedRatio;
+
+/**
+ * Benchmarks for the all apps search path.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SearchBenchmark {
+
+    private static final int APP_COUNT = 500;
+    private static final String[] TYPED_QUERY = {"c", "ch", "chr", "chro", "chrom", "chrome"};
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("search");
+
+    private Context mContext;
+    private List<AppInfo> mApps;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mApps = createApps(APP_COUNT);
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Test
+    public void benchWinklerWeightedRatio() {
+        WinklerWeightedRatio ratio = new WinklerWeightedRatio();
+        sReport.measure("WinklerWeightedRatio.apply/" + APP_COUNT, () -> {
+            int sum = 0;
+            for (AppInfo app : mApps) {
+                sum += ratio.apply("chrome", app.title.toString());
+            }
+            BenchmarkReport.sBlackhole = sum;
+        });
+    }
+
+    @Test
+    public void benchAppSearchIndexBuild() {
+        sReport.measure("AppSearchIndex.<init>/" + APP_COUNT,
+                () -> BenchmarkReport.sBlackhole = new AppSearchIndex(mApps));
+    }
+
+    @Test
+    public void benchAppSearchIndexTyping() {
+        AppSearchIndex index = new AppSearchIndex(mApps);
+        sReport.measure("AppSearchIndex.query/typing/" + APP_COUNT, () -> {
+            for (String query : TYPED_QUERY) {
+                BenchmarkReport.sBlackhole = index.query(query, FuzzyAppSearchAlgorithm.MIN_SCORE);
+            }
+        });
+    }
+
+    @Test
+    public void benchFuzzyAppSearchAlgorithmQuery() {
+        AppFilter filter = new AppFilter();
+        sReport.measure("FuzzyAppSearchAlgorithm.query/typing/" + APP_COUNT, () -> {
+            for (String query : TYPED_QUERY) {
+                BenchmarkReport.sBlackhole =
+                        FuzzyAppSearchAlgorithm.query(mContext, query, mApps, filter);
+            }
+        });
+    }
+
+    /**
+     * Creates apps with pseudo-random but reproducible titles.
+     */
+    static List<AppInfo> createApps(int count) {
+        String[] words = {"Chrome", "Calendar", "Camera", "Clock", "Contacts", "Drive", "Duo",
+                "Files", "Gmail", "Google", "Keep", "Maps", "Messages", "Music", "News", "Notes",
+                "Phone", "Photos", "Play", "Podcasts", "Settings", "Sheets", "Slides", "Store",
+                "Translate", "Weather", "YouTube", "Banking", "Chat", "Fitness", "Wallet"};
+        Random random = new Random(42);
+        List<AppInfo> apps = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            AppInfo info = new AppInfo();
+            info.title = words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)] + " " + i;
+            info.componentName = new ComponentName("com.example.app" + i, "MainActivity");
+            apps.add(info);
+        }
+        return apps;
+    }
+}
@@ -0,0 +1,106 @@
+package com.android.launcher3.benchmark;
+
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.launcher3.CellLayout;
+import com.android.launcher3.Launcher;
+import com.android.launcher3.util.FocusLogic;
+import com.android.launcher3.util.GridOccupancy;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Benchmarks for workspace grid searches and keyboard focus matrices.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class WorkspaceBenchmark {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("workspace");
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Test
+    public void benchGridOccupancyFindVacantCell() {
+        for (int size : new int[] {4, 5, 6}) {
+            GridOccupancy grid = createGrid(size, size, 0.8f);
+            int[] vacant = new int[2];
+            sReport.measure("GridOccupancy.findVacantCell/" + size + "x" + size, () -> {
+                boolean found = false;
+                for (int spanX = 1; spanX <= 2; spanX++) {
+                    for (int spanY = 1; spanY <= 2; spanY++) {
+                        found |= grid.findVacantCell(vacant, spanX, spanY);
+                    }
+                }
+                BenchmarkReport.sBlackhole = found;
+            });
+        }
+    }
+
+    @Test
+    public void benchGridOccupancyIsRegionVacant() {
+        GridOccupancy grid = createGrid(6, 6, 0.5f);
+        sReport.measure("GridOccupancy.isRegionVacant/6x6", () -> {
+            int count = 0;
+            for (int x = 0; x < 5; x++) {
+                for (int y = 0; y < 5; y++) {
+                    if (grid.isRegionVacant(x, y, 2, 2)) count++;
+                }
+            }
+            BenchmarkReport.sBlackhole = count;
+        });
+    }
+
+    @Test
+    public void benchCellLayout() {
+        Intent home = new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_HOME)
+                .setPackage(InstrumentationRegistry.getTargetContext().getPackageName())
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        Launcher launcher =
+                (Launcher) InstrumentationRegistry.getInstrumentation().startActivitySync(home);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            CellLayout page = (CellLayout) launcher.getWorkspace().getPageAt(0);
+            CellLayout hotseat = launcher.getHotseat().getLayout();
+            int[] result = new int[2];
+
+            sReport.measure("CellLayout.findNearestArea", () -> {
+                int w = page.getWidth();
+                int h = page.getHeight();
+                for (int i = 0; i < 4; i++) {
+                    BenchmarkReport.sBlackhole = page.findNearestArea(
+                            w * i / 4, h * i / 4, 1, 1, result);
+                }
+            });
+            sReport.measure("FocusLogic.createSparseMatrix",
+                    () -> BenchmarkReport.sBlackhole = FocusLogic.createSparseMatrix(page));
+            sReport.measure("FocusLogic.createSparseMatrixWithHotseat",
+                    () -> BenchmarkReport.sBlackhole = FocusLogic.createSparseMatrixWithHotseat(
+                            page, hotseat, launcher.getDeviceProfile()));
+        });
+    }
+
+    /**
+     * Creates a grid where roughly {@param fill} of the cells are occupied.
+     */
+    static GridOccupancy createGrid(int countX, int countY, float fill) {
+        Random random = new Random(42);
+        GridOccupancy grid = new GridOccupancy(countX, countY);
+        for (int x = 0; x < countX; x++) {
+            for (int y = 0; y < countY; y++) {
+                grid.cells[x][y] = random.nextFloat() < fill;
+            }
+        }
+        return grid;
+    }
+}
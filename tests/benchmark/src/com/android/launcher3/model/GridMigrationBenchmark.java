@@ -0,0 +1,145 @@
+package com.android.launcher3.model;
+
+import android.graphics.Point;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.android.launcher3.InvariantDeviceProfile;
+import com.android.launcher3.LauncherSettings.Favorites;
+import com.android.launcher3.benchmark.BenchmarkReport;
+import com.android.launcher3.model.GridSizeMigrationTask.DbEntry;
+import com.android.launcher3.util.GridOccupancy;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Benchmarks the placement search of {@link GridSizeMigrationTask} on dense screens.
+ *
+ * Screens are migrated in memory, so only the search is measured and not the database. Every
+ * case runs with the default budget and a tight one, the lost weight of both is logged to show
+ * what the greedy fallback costs.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class GridMigrationBenchmark {
+
+    private static final BenchmarkReport sReport = new BenchmarkReport("gridMigration");
+
+    private static final long[] BUDGETS_MS = {100, 10};
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        sReport.write();
+    }
+
+    @Test
+    public void benchDense5x5To4x4() {
+        // x, y, spanX, spanY, minSpanX, minSpanY
+        ArrayList<DbEntry> screen = createScreen(5, 5, new int[][] {
+                {0, 0, 2, 2, 1, 1},
+                {2, 0, 3, 1, 2, 1},
+                {0, 2, 4, 1, 2, 1},
+                {3, 3, 2, 2, 1, 1},
+        });
+        for (long budget : BUDGETS_MS) {
+            float[] loss = new float[2];
+            sReport.measure("5x5to4x4/budget" + budget, () -> migrate(screen, loss, budget,
+                    new Point(5, 5), new Point(4, 4)));
+            log("5x5to4x4", budget, loss);
+        }
+    }
+
+    @Test
+    public void benchDense6x6To4x5() {
+        ArrayList<DbEntry> screen = createScreen(6, 6, new int[][] {
+                {0, 0, 4, 2, 2, 1},
+                {4, 0, 2, 2, 1, 1},
+                {0, 2, 2, 2, 1, 1},
+                {2, 3, 3, 1, 2, 1},
+                {4, 4, 2, 2, 1, 1},
+        });
+        for (long budget : BUDGETS_MS) {
+            float[] loss = new float[2];
+            // Migrated in the same steps as MultiStepMigrationTask would
+            sReport.measure("6x6to4x5/budget" + budget, () -> migrate(
+                    migrate(screen, loss, budget, new Point(6, 6), new Point(5, 5)),
+                    loss, budget, new Point(5, 5), new Point(4, 5)));
+            log("6x6to4x5", budget, loss);
+        }
+    }
+
+    private static ArrayList<DbEntry> migrate(ArrayList<DbEntry> items, float[] outLoss,
+            long budget, Point sourceSize, Point targetSize) {
+        GridSizeMigrationTask task = new GridSizeMigrationTask(
+                InstrumentationRegistry.getTargetContext(), new InvariantDeviceProfile(),
+                new HashSet<>(), sourceSize, targetSize);
+        task.setPlacementBudget(budget);
+        ArrayList<DbEntry> result = task.findBestRemoval(items, 0, outLoss);
+        BenchmarkReport.sBlackhole = result;
+        return result;
+    }
+
+    private static void log(String name, long budget, float[] loss) {
+        Log.i(BenchmarkReport.TAG, "gridMigration#" + name + "/budget" + budget
+                + " weightLoss=" + loss[0] + " moveCost=" + loss[1]);
+    }
+
+    /**
+     * Creates a screen with the given widgets and an app, shortcut or folder in each remaining
+     * cell, so that the screen is full.
+     */
+    private static ArrayList<DbEntry> createScreen(int countX, int countY, int[][] widgets) {
+        ArrayList<DbEntry> items = new ArrayList<>();
+        GridOccupancy occupied = new GridOccupancy(countX, countY);
+        long id = 0;
+        for (int[] widget : widgets) {
+            DbEntry entry = new DbEntry();
+            entry.id = id++;
+            entry.itemType = Favorites.ITEM_TYPE_APPWIDGET;
+            entry.cellX = widget[0];
+            entry.cellY = widget[1];
+            entry.spanX = widget[2];
+            entry.spanY = widget[3];
+            entry.minSpanX = widget[4];
+            entry.minSpanY = widget[5];
+            entry.weight = Math.max(2, 0.6f * entry.spanX * entry.spanY);
+            occupied.markCells(entry, true);
+            items.add(entry);
+        }
+        for (int y = 0; y < countY; y++) {
+            for (int x = 0; x < countX; x++) {
+                if (occupied.cells[x][y]) {
+                    continue;
+                }
+                DbEntry entry = new DbEntry();
+                entry.id = id++;
+                entry.cellX = x;
+                entry.cellY = y;
+                entry.spanX = entry.spanY = 1;
+                switch ((x + y) % 3) {
+                    case 0:
+                        entry.itemType = Favorites.ITEM_TYPE_APPLICATION;
+                        entry.weight = 0.8f;
+                        break;
+                    case 1:
+                        entry.itemType = Favorites.ITEM_TYPE_SHORTCUT;
+                        entry.weight = 1;
+                        break;
+                    default:
+                        entry.itemType = Favorites.ITEM_TYPE_FOLDER;
+                        entry.weight = 0.5f * (2 + x);
+                }
+                occupied.markCells(entry, true);
+                items.add(entry);
+            }
+        }
+        return items;
+    }
+}